@@ -1,10 +1,12 @@
 package com.tubebreakup.stripe;
 
 import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 
 @Getter
 @AllArgsConstructor
+@EqualsAndHashCode
 public class SubscriptionUpdateResult {
     private String subscriptionExternalId;
     private String subscriptionStatus;
@@ -0,0 +1,139 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.Subscription;
+import com.tubebreakup.exception.CommonErrors;
+import com.tubebreakup.exception.ErrorCodedHttpException;
+import com.tubebreakup.model.NameProvider;
+import com.tubebreakup.stripe.LocalPaymentMethod;
+import com.tubebreakup.stripe.SubscriptionMetaProvider;
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Non-blocking counterpart of StripeService. Each operation runs on a dedicated
+// pool (stripe.async.poolSize, stripe.async.queueCapacity) so request threads
+// are released while Stripe calls are in flight. Failures complete the future
+// exceptionally with the same ErrorCodedHttpException the blocking call throws;
+// a full queue fails it with a 503.
+@Service
+public class AsyncStripeService implements InitializingBean, DisposableBean {
+
+    @Autowired
+    private StripeService stripeService;
+
+    @Value("${stripe.async.poolSize:16}")
+    private int poolSize;
+
+    @Value("${stripe.async.queueCapacity:1000}")
+    private int queueCapacity;
+
+    private ThreadPoolExecutor executor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("stripe-async-");
+        threadFactory.setDaemon(true);
+        executor = new ThreadPoolExecutor(poolSize, poolSize, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+    }
+
+    // completes with null when the organization has no payment method
+    public CompletableFuture<SubscriptionUpdateResult> createSubscription(NameProvider user, LocalOrganization organization,
+                                                                          SubscriptionMetaProvider metaProvider, Long trialDays) {
+        return submit(() -> stripeService.provisionSubscription(user, organization, metaProvider, trialDays));
+    }
+
+    // repeats of the token share the first call's result, see StripeService
+    public CompletableFuture<SubscriptionUpdateResult> createSubscription(NameProvider user, LocalOrganization organization,
+                                                                          SubscriptionMetaProvider metaProvider, Long trialDays,
+                                                                          String idempotencyToken) {
+        return submit(() -> stripeService.createSubscription(user, organization, metaProvider, trialDays, idempotencyToken));
+    }
+
+    public CompletableFuture<Subscription> getSubscription(String id) {
+        return submit(() -> stripeService.getSubscription(id));
+    }
+
+    public CompletableFuture<Void> updateSubscriptionPlan(NameProvider user, LocalOrganization organization,
+                                                          SubscriptionMetaProvider metaProvider) {
+        return run(() -> stripeService.updateSubscriptionPlan(user, organization, metaProvider));
+    }
+
+    public CompletableFuture<SubscriptionUpdateResult> updateSubscriptionPlan(NameProvider user, LocalOrganization organization,
+                                                                              SubscriptionMetaProvider metaProvider,
+                                                                              String idempotencyToken) {
+        return submit(() -> stripeService.updateSubscriptionPlan(user, organization, metaProvider, idempotencyToken));
+    }
+
+    public CompletableFuture<Void> cancelSubscription(NameProvider user, LocalOrganization organization) {
+        return run(() -> stripeService.cancelSubscription(user, organization));
+    }
+
+    public CompletableFuture<PaymentMethod> refreshPaymentMethod(NameProvider user, LocalPaymentMethod localPaymentMethod,
+                                                                 String paymentMethodId) {
+        return submit(() -> stripeService.refreshPaymentMethod(user, localPaymentMethod, paymentMethodId));
+    }
+
+    public CompletableFuture<Void> refreshSubscriptionStatus(NameProvider user, LocalOrganization organization) {
+        return run(() -> stripeService.refreshSubscriptionStatus(user, organization));
+    }
+
+    // Voiding a stale invoice and attaching the new payment method to the
+    // customer don't depend on each other, so they run concurrently; the
+    // invoice is only retried once both are done.
+    public CompletableFuture<Void> updateSubscription(NameProvider user, LocalOrganization organization, PaymentMethod pm) {
+        if (pm == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        StripeFetchContext context = stripeService.newFetchContext(organization);
+        CompletableFuture<Void> voided = run(() -> stripeService.voidInvoiceIfNecessary(user, context));
+        CompletableFuture<Void> attached = run(() -> stripeService.updateCustomerPaymentMethod(user, organization, pm));
+        // through run() like the other steps, so a full queue fails it with the same 503
+        return CompletableFuture.allOf(voided, attached)
+                .thenCompose(v -> run(() -> stripeService.updateInvoiceStatus(user, context)));
+    }
+
+    // repeats of the token share the first call's result, see StripeService; the
+    // steps run in turn, each with its own key derived from the token
+    public CompletableFuture<SubscriptionUpdateResult> updateSubscription(NameProvider user, LocalOrganization organization,
+                                                                          PaymentMethod pm, String idempotencyToken) {
+        return submit(() -> stripeService.updateSubscription(user, organization, pm, idempotencyToken));
+    }
+
+    private CompletableFuture<Void> run(Runnable operation) {
+        return submit(() -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> operation) {
+        try {
+            return CompletableFuture.supplyAsync(operation, executor);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new ErrorCodedHttpException(HttpStatus.SERVICE_UNAVAILABLE,
+                    CommonErrors.SERVER_ERROR, "Stripe: too many pending requests", e));
+            return rejected;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.exception.CommonErrors;
+import com.tubebreakup.exception.ErrorCodedHttpException;
+import com.tubebreakup.model.NameProvider;
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Provisions subscriptions for many organizations at once (e.g. onboarding an
+// enterprise account). Work runs on a small fixed pool so the number of
+// in-flight Stripe requests never exceeds stripe.bulk.parallelism; each
+// createSubscription is at most three sequential round-trips, so the default
+// of 4 workers stays well below Stripe's per-account rate limit.
+@Service
+public class BulkSubscriptionProvisioner implements InitializingBean, DisposableBean {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StripeService stripeService;
+
+    @Value("${stripe.bulk.parallelism:4}")
+    private int parallelism;
+
+    private ExecutorService executor;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("stripe-bulk-");
+        threadFactory.setDaemon(true);
+        executor = Executors.newFixedThreadPool(Math.max(1, parallelism), threadFactory);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        executor.shutdown();
+    }
+
+    // returns one outcome per request, in request order; a failing organization
+    // never aborts the rest of the batch
+    public List<SubscriptionProvisioningOutcome> provision(NameProvider user, Collection<SubscriptionProvisioningRequest> requests) {
+        List<CompletableFuture<SubscriptionProvisioningOutcome>> futures = new ArrayList<>(requests.size());
+        for (SubscriptionProvisioningRequest request : requests) {
+            futures.add(CompletableFuture.supplyAsync(() -> provision(user, request), executor));
+        }
+        List<SubscriptionProvisioningOutcome> outcomes = new ArrayList<>(futures.size());
+        int failed = 0;
+        for (CompletableFuture<SubscriptionProvisioningOutcome> future : futures) {
+            SubscriptionProvisioningOutcome outcome = future.join();
+            if (outcome.isFailed()) {
+                failed++;
+            }
+            outcomes.add(outcome);
+        }
+        logger.info("Stripe: bulk provisioned {} subscriptions ({} failed) ({})", outcomes.size(), failed, user.getEmail());
+        return outcomes;
+    }
+
+    private SubscriptionProvisioningOutcome provision(NameProvider user, SubscriptionProvisioningRequest request) {
+        LocalOrganization organization = request.getOrganization();
+        try {
+            SubscriptionUpdateResult result = stripeService.provisionSubscription(user, organization,
+                    request.getMetaProvider(), request.getTrialDays());
+            if (result == null) {
+                return SubscriptionProvisioningOutcome.skipped(organization);
+            }
+            return SubscriptionProvisioningOutcome.created(organization, result);
+        } catch (ErrorCodedHttpException e) {
+            return SubscriptionProvisioningOutcome.failed(organization, e);
+        } catch (RuntimeException e) {
+            logger.error("Stripe: unexpected failure provisioning subscription ({}) ({})", organization.getUuid(), user.getEmail(), e);
+            return SubscriptionProvisioningOutcome.failed(organization,
+                    new ErrorCodedHttpException(HttpStatus.INTERNAL_SERVER_ERROR, CommonErrors.SERVER_ERROR,
+                            "Stripe: failed provisioning subscription", e));
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.PaymentMethod;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// In-memory index of known cards bucketed by expiry month. It is fed by
+// StripeService whenever it reads payment methods and by payment method
+// webhook events. Looking up the cards expiring in the next N days visits only
+// the months in that range, so its cost depends on the number of matches, not
+// on how many cards are indexed. Not persisted; a node starts empty and fills
+// as payment methods are refreshed.
+@Component
+public class CardExpirationIndex {
+
+    private final Map<YearMonth, Map<String, ExpiringCard>> byMonth = new HashMap<>();
+
+    private final Map<String, ExpiringCard> byId = new HashMap<>();
+
+    // indexes a card payment method, or drops one that is no longer a card or
+    // no longer attached to a customer
+    public void index(PaymentMethod paymentMethod) {
+        if (paymentMethod == null || paymentMethod.getId() == null) {
+            return;
+        }
+        PaymentMethod.Card card = paymentMethod.getCard();
+        if (card == null || card.getExpMonth() == null || card.getExpYear() == null || paymentMethod.getCustomer() == null) {
+            remove(paymentMethod.getId());
+            return;
+        }
+        ExpiringCard entry = new ExpiringCard(paymentMethod.getId(), paymentMethod.getCustomer(), card.getBrand(),
+                card.getLast4(), YearMonth.of(card.getExpYear().intValue(), card.getExpMonth().intValue()));
+        synchronized (this) {
+            removeLocked(entry.getPaymentMethodId());
+            byId.put(entry.getPaymentMethodId(), entry);
+            byMonth.computeIfAbsent(entry.getExpiration(), month -> new LinkedHashMap<>())
+                    .put(entry.getPaymentMethodId(), entry);
+        }
+    }
+
+    public synchronized void remove(String paymentMethodId) {
+        removeLocked(paymentMethodId);
+    }
+
+    // cards still valid today whose last valid day is within the next days,
+    // soonest first
+    public List<ExpiringCard> expiringWithin(int days) {
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        LocalDate until = today.plusDays(days);
+        List<ExpiringCard> cards = new ArrayList<>();
+        synchronized (this) {
+            for (YearMonth month = YearMonth.from(today); !month.atEndOfMonth().isAfter(until); month = month.plusMonths(1)) {
+                Map<String, ExpiringCard> bucket = byMonth.get(month);
+                if (bucket != null) {
+                    cards.addAll(bucket.values());
+                }
+            }
+        }
+        return cards;
+    }
+
+    public synchronized ExpiringCard get(String paymentMethodId) {
+        return byId.get(paymentMethodId);
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    public synchronized Map<YearMonth, Integer> countsByMonth() {
+        Map<YearMonth, Integer> counts = new HashMap<>();
+        for (Map.Entry<YearMonth, Map<String, ExpiringCard>> entry : byMonth.entrySet()) {
+            counts.put(entry.getKey(), entry.getValue().size());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    private void removeLocked(String paymentMethodId) {
+        ExpiringCard existing = byId.remove(paymentMethodId);
+        if (existing == null) {
+            return;
+        }
+        Map<String, ExpiringCard> bucket = byMonth.get(existing.getExpiration());
+        if (bucket != null) {
+            bucket.remove(paymentMethodId);
+            if (bucket.isEmpty()) {
+                byMonth.remove(existing.getExpiration());
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.tubebreakup.stripe.ops;
+
+import java.util.concurrent.TimeUnit;
+
+// Count-based circuit breaker for one Stripe operation. Closed, it tracks the
+// outcome of the last windowSize calls and opens once at least minimumCalls
+// were made and the failure rate reaches failureRatePercent. Open, it rejects
+// calls for openMillis, then lets halfOpenCalls trial calls through: if they
+// all succeed it closes, the first failure opens it again.
+class CircuitBreaker {
+
+    enum State { CLOSED, HALF_OPEN, OPEN }
+
+    interface Listener {
+        void onTransition(String name, State from, State to);
+    }
+
+    private final String name;
+
+    private final int minimumCalls;
+
+    private final int failureRatePercent;
+
+    private final long openNanos;
+
+    private final int halfOpenCalls;
+
+    private final Listener listener;
+
+    // ring buffer of recent outcomes, true for a failure
+    private final boolean[] window;
+
+    private int next;
+
+    private int recorded;
+
+    private int failures;
+
+    private State state = State.CLOSED;
+
+    private long openedAt;
+
+    private int trialsInFlight;
+
+    private int trialsSucceeded;
+
+    CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRatePercent, long openMillis,
+                   int halfOpenCalls, Listener listener) {
+        this.name = name;
+        this.window = new boolean[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+        this.failureRatePercent = failureRatePercent;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+        this.listener = listener;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    // false if the call must not be made; every true must be followed by
+    // onSuccess or onFailure
+    synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.nanoTime() - openedAt < openNanos) {
+                return false;
+            }
+            transition(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsInFlight + trialsSucceeded >= halfOpenCalls) {
+                return false;
+            }
+            trialsInFlight++;
+        }
+        return true;
+    }
+
+    synchronized void onSuccess() {
+        if (state == State.HALF_OPEN) {
+            // calls that started before the breaker opened also end up here
+            trialsInFlight = Math.max(0, trialsInFlight - 1);
+            if (++trialsSucceeded >= halfOpenCalls) {
+                transition(State.CLOSED);
+            }
+            return;
+        }
+        record(false);
+    }
+
+    synchronized void onFailure() {
+        if (state == State.HALF_OPEN) {
+            transition(State.OPEN);
+            return;
+        }
+        record(true);
+        if (recorded >= minimumCalls && failures * 100 >= failureRatePercent * recorded) {
+            transition(State.OPEN);
+        }
+    }
+
+    private void record(boolean failure) {
+        if (state != State.CLOSED) {
+            return;
+        }
+        if (recorded == window.length) {
+            if (window[next]) {
+                failures--;
+            }
+        } else {
+            recorded++;
+        }
+        window[next] = failure;
+        if (failure) {
+            failures++;
+        }
+        next = (next + 1) % window.length;
+    }
+
+    private void transition(State to) {
+        State from = state;
+        state = to;
+        next = 0;
+        recorded = 0;
+        failures = 0;
+        trialsInFlight = 0;
+        trialsSucceeded = 0;
+        if (to == State.OPEN) {
+            openedAt = System.nanoTime();
+        }
+        listener.onTransition(name, from, to);
+    }
+}
@@ -0,0 +1,232 @@
+package com.tubebreakup.stripe.ops;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Splits organizations across the application's nodes so batch jobs over
+// organizations run once in the cluster, spread over every node. Each
+// organization belongs to one of a fixed number of partitions by a hash of its
+// uuid. Every heartbeat, each node works out which live node should own each
+// partition by rendezvous hashing, so a node joining or leaving only moves the
+// partitions it gains or loses, then takes the leases on its own partitions
+// from the PartitionLeaseStore and hands over the ones it should give up.
+// A node treats a partition as its own only while its lease is held and not
+// about to expire. It stops working on a partition it hands over at once, but
+// keeps renewing the lease for stripe.cluster.handoverGraceMillis before
+// releasing it, so work that checked ownership just before the handover
+// finishes before another node can start. Set it to at least the longest
+// per-organization operation, Stripe retries and backoff included. Within
+// that bound, and while each node keeps reaching the lease store, no
+// organization is worked on by two nodes at once; a node cut off from the
+// store loses its leases after leaseSeconds whatever it is still doing.
+//
+// Batch jobs record each partition they finish under a run id
+// (markCompleted), so a partition that moved mid-run is picked up by its new
+// owner, see ShardedOrganizationJob.
+//
+// Disabled (stripe.cluster.enabled=false, the default) or without a
+// PartitionLeaseStore, this node owns every partition.
+@Component
+public class ClusterPartitions implements InitializingBean, DisposableBean {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired(required = false)
+    private PartitionLeaseStore leaseStore;
+
+    @Value("${stripe.cluster.enabled:false}")
+    private boolean enabled;
+
+    @Value("${stripe.cluster.nodeId:}")
+    private String nodeId;
+
+    @Value("${stripe.cluster.partitions:64}")
+    private int partitionCount;
+
+    @Value("${stripe.cluster.leaseSeconds:30}")
+    private long leaseSeconds;
+
+    @Value("${stripe.cluster.handoverGraceMillis:60000}")
+    private long handoverGraceMillis;
+
+    private volatile Set<Integer> owned = Collections.emptySet();
+
+    // owned is only trusted until then (epoch millis)
+    private volatile long ownedUntil;
+
+    // handed-over partition -> when its lease may be released (epoch millis);
+    // only touched by the rebalancing thread
+    private final Map<Integer, Long> pendingReleases = new HashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!isClustered()) {
+            return;
+        }
+        if (!StringUtils.hasLength(nodeId)) {
+            nodeId = InetAddress.getLocalHost().getHostName() + "-" + UUID.randomUUID().toString().substring(0, 8);
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("stripe-cluster-");
+        threadFactory.setDaemon(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        long heartbeatMillis = Math.max(1, TimeUnit.SECONDS.toMillis(leaseSeconds) / 3);
+        scheduler.scheduleWithFixedDelay(this::rebalance, 0, heartbeatMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        owned = Collections.emptySet();
+        try {
+            leaseStore.leave(nodeId);
+        } catch (RuntimeException e) {
+            logger.warn("Stripe: failed leaving cluster ({})", nodeId, e);
+        }
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    public int getPartitionCount() {
+        return partitionCount;
+    }
+
+    public int partitionOf(String organizationUuid) {
+        return (int) Math.floorMod(mix(organizationUuid.hashCode()), (long) partitionCount);
+    }
+
+    public boolean owns(LocalOrganization organization) {
+        return owns(partitionOf(organization.getUuid()));
+    }
+
+    public boolean owns(int partition) {
+        if (!isClustered()) {
+            return true;
+        }
+        return System.currentTimeMillis() < ownedUntil && owned.contains(partition);
+    }
+
+    public Set<Integer> getOwnedPartitions() {
+        if (!isClustered()) {
+            Set<Integer> all = new TreeSet<>();
+            for (int partition = 0; partition < partitionCount; partition++) {
+                all.add(partition);
+            }
+            return all;
+        }
+        return System.currentTimeMillis() < ownedUntil ? owned : Collections.emptySet();
+    }
+
+    // partitions a node has recorded as finished for the run; none when not clustered
+    public Set<Integer> getCompletedPartitions(String runId) {
+        if (!isClustered()) {
+            return Collections.emptySet();
+        }
+        return leaseStore.completedPartitions(runId);
+    }
+
+    public void markCompleted(String runId, int partition) {
+        if (isClustered()) {
+            leaseStore.complete(runId, partition, nodeId, System.currentTimeMillis());
+        }
+    }
+
+    private boolean isClustered() {
+        return enabled && leaseStore != null;
+    }
+
+    void rebalance() {
+        try {
+            long now = System.currentTimeMillis();
+            long leaseMillis = TimeUnit.SECONDS.toMillis(leaseSeconds);
+            leaseStore.heartbeat(nodeId, now);
+            Set<String> live = new HashSet<>(leaseStore.liveNodes(now - leaseMillis));
+            live.add(nodeId);
+
+            Set<Integer> keep = new TreeSet<>();
+            Set<Integer> handOver = new TreeSet<>();
+            for (int partition = 0; partition < partitionCount; partition++) {
+                if (nodeId.equals(ownerOf(partition, live))) {
+                    if (leaseStore.acquire(partition, nodeId, now, now + leaseMillis)) {
+                        keep.add(partition);
+                        pendingReleases.remove(partition);
+                    }
+                } else if (owned.contains(partition)) {
+                    handOver.add(partition);
+                }
+            }
+            // stop working on partitions before letting another node take them
+            Set<Integer> previous = owned;
+            owned = Collections.unmodifiableSet(keep);
+            // a third of the lease is left for work started just before expiry
+            ownedUntil = now + leaseMillis - leaseMillis / 3;
+            for (Integer partition : handOver) {
+                pendingReleases.putIfAbsent(partition, now + handoverGraceMillis);
+            }
+            // handed-over leases are renewed until their grace is over, however long it is
+            Iterator<Map.Entry<Integer, Long>> releases = pendingReleases.entrySet().iterator();
+            while (releases.hasNext()) {
+                Map.Entry<Integer, Long> release = releases.next();
+                if (release.getValue() <= now) {
+                    leaseStore.release(release.getKey(), nodeId);
+                    releases.remove();
+                } else if (!leaseStore.acquire(release.getKey(), nodeId, now, now + leaseMillis)) {
+                    releases.remove();
+                }
+            }
+            if (!keep.equals(previous)) {
+                logger.info("Stripe: node {} owns {} of {} partitions ({} live nodes)", nodeId, keep.size(), partitionCount, live.size());
+            }
+        } catch (RuntimeException e) {
+            // owned expires on its own if the store stays unreachable
+            logger.warn("Stripe: failed renewing partition leases ({})", nodeId, e);
+        }
+    }
+
+    // rendezvous hashing: the live node with the highest weight for the partition
+    private static String ownerOf(int partition, Set<String> live) {
+        String owner = null;
+        long best = Long.MIN_VALUE;
+        for (String node : live) {
+            long weight = mix(node.hashCode() * 31L + partition);
+            if (owner == null || weight > best || (weight == best && node.compareTo(owner) < 0)) {
+                owner = node;
+                best = weight;
+            }
+        }
+        return owner;
+    }
+
+    // splitmix64 finalizer, so nearby inputs spread evenly
+    private static long mix(long x) {
+        x = (x ^ (x >>> 30)) * 0xbf58476d1ce4e5b9L;
+        x = (x ^ (x >>> 27)) * 0x94d049bb133111ebL;
+        return x ^ (x >>> 31);
+    }
+}
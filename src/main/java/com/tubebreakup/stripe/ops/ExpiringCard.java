@@ -0,0 +1,17 @@
+package com.tubebreakup.stripe.ops;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.time.YearMonth;
+
+@Getter
+@AllArgsConstructor
+public class ExpiringCard {
+    private String paymentMethodId;
+    private String customerId;
+    private String brand;
+    private String last4;
+    // the card is valid through the last day of this month
+    private YearMonth expiration;
+}
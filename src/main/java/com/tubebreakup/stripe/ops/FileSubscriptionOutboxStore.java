@@ -0,0 +1,187 @@
+package com.tubebreakup.stripe.ops;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Append-only JSON lines file: one line per appended mutation and one per
+// completed id, forced to disk before append/complete return. Opening replays
+// the file and rewrites it with only the pending mutations; a line torn by a
+// crash mid-write is skipped. The file is compacted again once
+// compactAfter mutations have completed since the last rewrite.
+class FileSubscriptionOutboxStore implements SubscriptionOutboxStore {
+
+    private static final String ADD = "add";
+    private static final String DONE = "done";
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Path path;
+
+    private final ObjectMapper mapper;
+
+    private final int compactAfter;
+
+    private final Map<String, SubscriptionMutation> pending = new LinkedHashMap<>();
+
+    private FileChannel channel;
+
+    private int completedSinceCompaction;
+
+    FileSubscriptionOutboxStore(Path path, ObjectMapper mapper, int compactAfter) {
+        this.path = path;
+        this.mapper = mapper;
+        this.compactAfter = compactAfter;
+    }
+
+    @Override
+    public synchronized List<SubscriptionMutation> open() {
+        try {
+            if (Files.exists(path)) {
+                replay();
+            }
+            compact();
+            return new ArrayList<>(pending.values());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Stripe: failed opening outbox " + path, e);
+        }
+    }
+
+    @Override
+    public synchronized void append(SubscriptionMutation mutation) {
+        write(new Record(ADD, mutation.getId(), mutation));
+        pending.put(mutation.getId(), mutation);
+    }
+
+    @Override
+    public synchronized void complete(Collection<String> mutationIds) {
+        if (mutationIds.isEmpty()) {
+            return;
+        }
+        StringBuilder lines = new StringBuilder();
+        for (String id : mutationIds) {
+            lines.append(line(new Record(DONE, id, null)));
+            pending.remove(id);
+        }
+        write(lines.toString());
+        completedSinceCompaction += mutationIds.size();
+        if (completedSinceCompaction >= compactAfter) {
+            try {
+                compact();
+            } catch (IOException e) {
+                logger.warn("Stripe: failed compacting outbox {}", path, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.warn("Stripe: failed closing outbox {}", path, e);
+        }
+        channel = null;
+    }
+
+    private void replay() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Record record;
+                try {
+                    record = mapper.readValue(line, Record.class);
+                } catch (IOException e) {
+                    logger.warn("Stripe: skipping unreadable outbox line in {}", path);
+                    continue;
+                }
+                if (ADD.equals(record.getOp()) && record.getMutation() != null) {
+                    pending.put(record.getId(), record.getMutation());
+                } else if (DONE.equals(record.getOp())) {
+                    pending.remove(record.getId());
+                }
+            }
+        }
+    }
+
+    // rewrites the file with just the pending mutations and reopens it for appending
+    private void compact() throws IOException {
+        close();
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            StringBuilder lines = new StringBuilder();
+            for (SubscriptionMutation mutation : pending.values()) {
+                lines.append(line(new Record(ADD, mutation.getId(), mutation)));
+            }
+            writeFully(out, lines.toString());
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        completedSinceCompaction = 0;
+    }
+
+    private void write(Record record) {
+        write(line(record));
+    }
+
+    private void write(String lines) {
+        try {
+            writeFully(channel, lines);
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Stripe: failed writing outbox " + path, e);
+        }
+    }
+
+    private String line(Record record) {
+        try {
+            return mapper.writeValueAsString(record) + '\n';
+        } catch (IOException e) {
+            throw new UncheckedIOException("Stripe: failed serializing outbox record", e);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, String text) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    @lombok.Getter
+    @lombok.Setter
+    @lombok.NoArgsConstructor
+    @lombok.AllArgsConstructor
+    static class Record {
+        private String op;
+        private String id;
+        private SubscriptionMutation mutation;
+    }
+}
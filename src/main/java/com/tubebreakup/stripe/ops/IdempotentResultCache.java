@@ -0,0 +1,111 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+// Results of subscription writes, keyed by the idempotency key the client's
+// token was turned into. The first call for a key runs; a repeat while it is
+// in flight waits for it, and a repeat within ttlSeconds gets its result
+// without running again. A failed call isn't kept, so a retry runs (and
+// Stripe, seeing the same idempotency key, decides whether to apply it).
+// Holds at most maxEntries results; when full, expired ones are purged and
+// new calls run uncached until there is room. The Outcome says whether the
+// caller ran the work itself, so side effects of the work (the host's
+// updateFrom) are re-applied only for callers that got a shared result.
+@Component
+public class IdempotentResultCache {
+
+    @Value("${stripe.idempotency.ttlSeconds:3600}")
+    private long ttlSeconds;
+
+    @Value("${stripe.idempotency.maxEntries:10000}")
+    private int maxEntries;
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public int size() {
+        return entries.size();
+    }
+
+    Outcome execute(String key, Supplier<SubscriptionUpdateResult> work) {
+        long now = System.nanoTime();
+        CompletableFuture<SubscriptionUpdateResult> flight = new CompletableFuture<>();
+        Entry entry = new Entry(flight, now + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        while (true) {
+            Entry existing = entries.get(key);
+            if (existing != null && (existing.expiresAt > now || !existing.result.isDone())) {
+                return new Outcome(SingleFlight.join(existing.result), false);
+            }
+            if (existing != null) {
+                if (entries.replace(key, existing, entry)) {
+                    break;
+                }
+            } else if (!hasRoom()) {
+                return new Outcome(work.get(), true);
+            } else if (entries.putIfAbsent(key, entry) == null) {
+                break;
+            }
+        }
+        try {
+            SubscriptionUpdateResult result = work.get();
+            flight.complete(result);
+            return new Outcome(result, true);
+        } catch (RuntimeException | Error e) {
+            entries.remove(key, entry);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    private boolean hasRoom() {
+        if (entries.size() < maxEntries) {
+            return true;
+        }
+        long now = System.nanoTime();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.expiresAt <= now && entry.result.isDone()) {
+                iterator.remove();
+            }
+        }
+        return entries.size() < maxEntries;
+    }
+
+    static class Outcome {
+        private final SubscriptionUpdateResult result;
+        // false when the result came from another caller's run of the work
+        private final boolean ran;
+
+        private Outcome(SubscriptionUpdateResult result, boolean ran) {
+            this.result = result;
+            this.ran = ran;
+        }
+
+        SubscriptionUpdateResult getResult() {
+            return result;
+        }
+
+        boolean isRan() {
+            return ran;
+        }
+    }
+
+    private static class Entry {
+        private final CompletableFuture<SubscriptionUpdateResult> result;
+        private final long expiresAt;
+
+        private Entry(CompletableFuture<SubscriptionUpdateResult> result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
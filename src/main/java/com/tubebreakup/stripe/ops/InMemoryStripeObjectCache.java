@@ -0,0 +1,169 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.Customer;
+import com.stripe.model.HasId;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.Subscription;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Size bounded LRU cache with a time-to-live per object type. A time-to-live of
+// zero disables caching for that type. Expired entries are kept for a further
+// stripe.cache.staleRetentionSeconds so getStale can serve them while Stripe
+// is unavailable.
+@Component
+public class InMemoryStripeObjectCache implements StripeObjectCache, InitializingBean {
+
+    @Value("${stripe.cache.maxEntries:10000}")
+    private int maxEntries;
+
+    @Value("${stripe.cache.defaultTtlSeconds:60}")
+    private long defaultTtlSeconds;
+
+    @Value("${stripe.cache.subscriptionTtlSeconds:60}")
+    private long subscriptionTtlSeconds;
+
+    @Value("${stripe.cache.customerTtlSeconds:300}")
+    private long customerTtlSeconds;
+
+    @Value("${stripe.cache.paymentMethodTtlSeconds:300}")
+    private long paymentMethodTtlSeconds;
+
+    @Value("${stripe.cache.staleRetentionSeconds:3600}")
+    private long staleRetentionSeconds;
+
+    private final Map<Class<?>, Long> ttlNanos = new HashMap<>();
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        ttlNanos.put(Subscription.class, TimeUnit.SECONDS.toNanos(subscriptionTtlSeconds));
+        ttlNanos.put(Customer.class, TimeUnit.SECONDS.toNanos(customerTtlSeconds));
+        ttlNanos.put(PaymentMethod.class, TimeUnit.SECONDS.toNanos(paymentMethodTtlSeconds));
+    }
+
+    @Override
+    public <T extends HasId> T get(Class<T> type, String id) {
+        Entry entry = entry(type, id);
+        if (entry == null || entry.isExpired(System.nanoTime())) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return type.cast(entry.value);
+    }
+
+    @Override
+    public <T extends HasId> T getStale(Class<T> type, String id) {
+        Entry entry = entry(type, id);
+        return entry != null ? type.cast(entry.value) : null;
+    }
+
+    // the entry unless it is past its stale retention, which removes it
+    private Entry entry(Class<?> type, String id) {
+        if (id == null) {
+            return null;
+        }
+        String key = key(type, id);
+        synchronized (entries) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.isStale(System.nanoTime())) {
+                entries.remove(key);
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    @Override
+    public <T extends HasId> void put(Class<T> type, T object) {
+        if (object == null || object.getId() == null) {
+            return;
+        }
+        long ttl = ttlNanos(type);
+        if (ttl <= 0) {
+            return;
+        }
+        long expiresAt = System.nanoTime() + ttl;
+        Entry entry = new Entry(object, expiresAt, expiresAt + TimeUnit.SECONDS.toNanos(staleRetentionSeconds));
+        synchronized (entries) {
+            entries.put(key(type, object.getId()), entry);
+        }
+    }
+
+    @Override
+    public void invalidate(Class<? extends HasId> type, String id) {
+        if (id == null) {
+            return;
+        }
+        synchronized (entries) {
+            entries.remove(key(type, id));
+        }
+    }
+
+    @Override
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    @Override
+    public StripeCacheStats stats() {
+        int size;
+        synchronized (entries) {
+            size = entries.size();
+        }
+        return new StripeCacheStats(hits.get(), misses.get(), evictions.get(), size);
+    }
+
+    private long ttlNanos(Class<?> type) {
+        Long ttl = ttlNanos.get(type);
+        return ttl != null ? ttl : TimeUnit.SECONDS.toNanos(defaultTtlSeconds);
+    }
+
+    private static String key(Class<?> type, String id) {
+        return type.getName() + ':' + id;
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long expiresAt;
+        private final long staleAt;
+
+        Entry(Object value, long expiresAt, long staleAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.staleAt = staleAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+
+        boolean isStale(long now) {
+            return now - staleAt >= 0;
+        }
+    }
+}
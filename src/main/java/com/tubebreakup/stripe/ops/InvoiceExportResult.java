@@ -0,0 +1,15 @@
+package com.tubebreakup.stripe.ops;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class InvoiceExportResult {
+    private long exported;
+    private long elapsedMillis;
+    // last invoice written; pass it back as startingAfter to resume
+    private String lastInvoiceId;
+    // false if Stripe failed part way; everything up to lastInvoiceId was written
+    private boolean complete;
+}
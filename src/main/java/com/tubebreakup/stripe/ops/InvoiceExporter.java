@@ -0,0 +1,192 @@
+package com.tubebreakup.stripe.ops;
+
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.stripe.exception.StripeException;
+import com.stripe.model.ExpandableField;
+import com.stripe.model.ExpandableFieldSerializer;
+import com.stripe.model.Invoice;
+import com.stripe.model.InvoiceCollection;
+import com.stripe.model.PaymentIntent;
+import com.stripe.param.InvoiceListParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Streams invoices, newest first and with their payment intents expanded, to a
+// Writer as newline-delimited JSON (Stripe's own field names) or CSV. Only the
+// page being written and the next one, fetched in the background meanwhile,
+// are held in memory, so an account's whole history exports in constant heap.
+// The writer is flushed after each page; the result's lastInvoiceId (also
+// passed to the optional cursor listener after each page) resumes an export
+// that Stripe interrupted. Closing the writer is left to the caller.
+@Service
+public class InvoiceExporter implements InitializingBean, DisposableBean {
+
+    public enum Format { NDJSON, CSV }
+
+    public interface CursorListener {
+        void pageWritten(String lastInvoiceId, long exported);
+    }
+
+    static final String CSV_HEADER = "invoice_id,number,customer,subscription,status,currency,total,amount_due,"
+            + "amount_paid,created,period_start,period_end,payment_intent_id,payment_intent_status\n";
+
+    private static final String DATA_PAYMENT_INTENT = "data.payment_intent";
+
+    private static final Gson GSON = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .registerTypeAdapter(ExpandableField.class, new ExpandableFieldSerializer())
+            .create();
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StripeRequestExecutor executor;
+
+    @Autowired
+    private StripeAccounts accounts;
+
+    @Autowired
+    private StripeFailureLogger failureLogger;
+
+    @Value("${stripe.export.pageSize:100}")
+    private long pageSize;
+
+    private ExecutorService prefetcher;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("stripe-export-");
+        threadFactory.setDaemon(true);
+        prefetcher = Executors.newCachedThreadPool(threadFactory);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        prefetcher.shutdownNow();
+    }
+
+    // the organization's invoices; nothing is written if it has no customer yet
+    public InvoiceExportResult exportOrganization(LocalOrganization organization, Format format, Writer out,
+                                                  String startingAfter, CursorListener listener) {
+        String customerId = organization.getLocalCustomer().getExternalId();
+        if (customerId == null) {
+            return new InvoiceExportResult(0, 0, startingAfter, true);
+        }
+        return export(accounts.forOrganization(organization), customerId, format, out, startingAfter, listener);
+    }
+
+    // every invoice of the account
+    public InvoiceExportResult exportAccount(StripeAccount account, Format format, Writer out,
+                                             String startingAfter, CursorListener listener) {
+        return export(account, null, format, out, startingAfter, listener);
+    }
+
+    private InvoiceExportResult export(StripeAccount account, String customerId, Format format, Writer out,
+                                       String startingAfter, CursorListener listener) {
+        long start = System.currentTimeMillis();
+        long exported = 0;
+        String cursor = startingAfter;
+        try {
+            if (format == Format.CSV && startingAfter == null) {
+                out.write(CSV_HEADER);
+            }
+            CompletableFuture<InvoiceCollection> next = fetch(account, customerId, startingAfter);
+            while (next != null) {
+                InvoiceCollection page = next.join();
+                List<Invoice> invoices = page.getData();
+                if (invoices == null || invoices.isEmpty()) {
+                    break;
+                }
+                String last = invoices.get(invoices.size() - 1).getId();
+                next = Boolean.TRUE.equals(page.getHasMore()) ? fetch(account, customerId, last) : null;
+                for (Invoice invoice : invoices) {
+                    if (format == Format.CSV) {
+                        writeCsv(out, invoice);
+                    } else {
+                        out.write(GSON.toJson(invoice));
+                        out.write('\n');
+                    }
+                }
+                out.flush();
+                exported += invoices.size();
+                cursor = last;
+                if (listener != null) {
+                    listener.pageWritten(cursor, exported);
+                }
+            }
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof StripeException)) {
+                throw e;
+            }
+            failureLogger.log(logger, "Stripe: invoice export stopped",
+                    (customerId != null ? customerId : account.getName()) + " after " + cursor, (StripeException) e.getCause());
+            return new InvoiceExportResult(exported, System.currentTimeMillis() - start, cursor, false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Stripe: failed writing invoice export", e);
+        }
+        logger.info("Stripe: exported {} invoices ({}) in {} ms", exported, customerId != null ? customerId : account.getName(),
+                System.currentTimeMillis() - start);
+        return new InvoiceExportResult(exported, System.currentTimeMillis() - start, cursor, true);
+    }
+
+    private CompletableFuture<InvoiceCollection> fetch(StripeAccount account, String customerId, String startingAfter) {
+        InvoiceListParams.Builder builder = InvoiceListParams.builder()
+                .setLimit(pageSize)
+                .addExpand(DATA_PAYMENT_INTENT);
+        if (customerId != null) {
+            builder.setCustomer(customerId);
+        }
+        if (startingAfter != null) {
+            builder.setStartingAfter(startingAfter);
+        }
+        InvoiceListParams params = builder.build();
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return executor.read(account, "invoice.list", options -> Invoice.list(params, options));
+            } catch (StripeException e) {
+                throw new CompletionException(e);
+            }
+        }, prefetcher);
+    }
+
+    private static void writeCsv(Writer out, Invoice invoice) throws IOException {
+        PaymentIntent intent = invoice.getPaymentIntentObject();
+        Object[] columns = {invoice.getId(), invoice.getNumber(), invoice.getCustomer(), invoice.getSubscription(),
+                invoice.getStatus(), invoice.getCurrency(), invoice.getTotal(), invoice.getAmountDue(),
+                invoice.getAmountPaid(), invoice.getCreated(), invoice.getPeriodStart(), invoice.getPeriodEnd(),
+                invoice.getPaymentIntent(), intent != null ? intent.getStatus() : null};
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            if (columns[i] != null) {
+                out.write(csv(columns[i].toString()));
+            }
+        }
+        out.write('\n');
+    }
+
+    private static String csv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0 && value.indexOf('\r') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,101 @@
+package com.tubebreakup.stripe.ops;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.util.HashSet;
+import java.util.Set;
+
+// PartitionLeaseStore on two tables of the application's database:
+//   stripe_cluster_node(node_id varchar(128) primary key, heartbeat_at bigint)
+//   stripe_partition_lease(partition_id int primary key, owner varchar(128), expires_at bigint)
+// and a third for the partitions each batch job run has finished:
+//   stripe_partition_run(run_id varchar(128), partition_id int, node_id varchar(128), completed_at bigint)
+// createTables() creates them if missing. Each acquire is one conditional
+// update (an insert the first time a partition is claimed), so two nodes can
+// never both succeed for the same partition. Finished runs are kept until
+// deleteRunsBefore() removes them.
+public class JdbcPartitionLeaseStore implements PartitionLeaseStore {
+
+    private final JdbcTemplate jdbc;
+
+    public JdbcPartitionLeaseStore(DataSource dataSource) {
+        this.jdbc = new JdbcTemplate(dataSource);
+    }
+
+    public void createTables() {
+        jdbc.execute("create table if not exists stripe_cluster_node ("
+                + "node_id varchar(128) primary key, heartbeat_at bigint not null)");
+        jdbc.execute("create table if not exists stripe_partition_lease ("
+                + "partition_id int primary key, owner varchar(128), expires_at bigint not null)");
+        jdbc.execute("create table if not exists stripe_partition_run ("
+                + "run_id varchar(128) not null, partition_id int not null, node_id varchar(128), "
+                + "completed_at bigint not null, primary key (run_id, partition_id))");
+    }
+
+    @Override
+    public void heartbeat(String nodeId, long now) {
+        if (jdbc.update("update stripe_cluster_node set heartbeat_at = ? where node_id = ?", now, nodeId) == 0) {
+            try {
+                jdbc.update("insert into stripe_cluster_node (node_id, heartbeat_at) values (?, ?)", nodeId, now);
+            } catch (DuplicateKeyException e) {
+                jdbc.update("update stripe_cluster_node set heartbeat_at = ? where node_id = ?", now, nodeId);
+            }
+        }
+    }
+
+    @Override
+    public Set<String> liveNodes(long since) {
+        return new HashSet<>(jdbc.queryForList("select node_id from stripe_cluster_node where heartbeat_at >= ?",
+                String.class, since));
+    }
+
+    @Override
+    public boolean acquire(int partition, String nodeId, long now, long expiresAt) {
+        int updated = jdbc.update("update stripe_partition_lease set owner = ?, expires_at = ? "
+                        + "where partition_id = ? and (owner = ? or owner is null or expires_at < ?)",
+                nodeId, expiresAt, partition, nodeId, now);
+        if (updated > 0) {
+            return true;
+        }
+        try {
+            return jdbc.update("insert into stripe_partition_lease (partition_id, owner, expires_at) values (?, ?, ?)",
+                    partition, nodeId, expiresAt) > 0;
+        } catch (DuplicateKeyException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void release(int partition, String nodeId) {
+        jdbc.update("update stripe_partition_lease set owner = null, expires_at = 0 where partition_id = ? and owner = ?",
+                partition, nodeId);
+    }
+
+    @Override
+    public void complete(String runId, int partition, String nodeId, long now) {
+        try {
+            jdbc.update("insert into stripe_partition_run (run_id, partition_id, node_id, completed_at) values (?, ?, ?, ?)",
+                    runId, partition, nodeId, now);
+        } catch (DuplicateKeyException e) {
+            // already finished by another node
+        }
+    }
+
+    @Override
+    public Set<Integer> completedPartitions(String runId) {
+        return new HashSet<>(jdbc.queryForList("select partition_id from stripe_partition_run where run_id = ?",
+                Integer.class, runId));
+    }
+
+    public int deleteRunsBefore(long completedBefore) {
+        return jdbc.update("delete from stripe_partition_run where completed_at < ?", completedBefore);
+    }
+
+    @Override
+    public void leave(String nodeId) {
+        jdbc.update("update stripe_partition_lease set owner = null, expires_at = 0 where owner = ?", nodeId);
+        jdbc.update("delete from stripe_cluster_node where node_id = ?", nodeId);
+    }
+}
@@ -10,4 +10,16 @@ public interface LocalOrganization {
     ExternalEntity getLocalCustomer();
     ExternalEntity getLocalSubscription();
     void updateFrom(SubscriptionUpdateResult result);
+
+    // the result last applied through updateFrom, if the organization keeps it;
+    // lets bulk reconciliation skip organizations that are already up to date
+    default SubscriptionUpdateResult getLastSubscriptionUpdate() {
+        return null;
+    }
+
+    // name of the StripeAccounts entry this organization bills through;
+    // null for the default account
+    default String getStripeAccount() {
+        return null;
+    }
 }
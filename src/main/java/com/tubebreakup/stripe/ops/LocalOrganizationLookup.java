@@ -0,0 +1,15 @@
+package com.tubebreakup.stripe.ops;
+
+import java.util.Collection;
+import java.util.Map;
+
+// Finds the local organizations that own Stripe objects. Implemented by the
+// application; bulk operations look up a whole page of ids in one call.
+public interface LocalOrganizationLookup {
+
+    // subscription external id -> organization, omitting ids with no owner
+    Map<String, LocalOrganization> findBySubscriptionExternalIds(Collection<String> subscriptionIds);
+
+    // the organization with this uuid, or null
+    LocalOrganization findByUuid(String uuid);
+}
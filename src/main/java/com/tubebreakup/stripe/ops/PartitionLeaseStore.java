@@ -0,0 +1,32 @@
+package com.tubebreakup.stripe.ops;
+
+import java.util.Set;
+
+// Shared record of which cluster nodes are alive and which node holds each
+// organization partition, for ClusterPartitions. JdbcPartitionLeaseStore keeps
+// it in the application's database. Times are epoch millis from the calling
+// node's clock, so node clocks must agree to well within a lease.
+public interface PartitionLeaseStore {
+
+    void heartbeat(String nodeId, long now);
+
+    // nodes whose last heartbeat is at or after since
+    Set<String> liveNodes(long since);
+
+    // takes or extends the partition's lease if it is free, expired or already
+    // held by nodeId; false if another node holds it
+    boolean acquire(int partition, String nodeId, long now, long expiresAt);
+
+    // gives the lease up if nodeId holds it
+    void release(int partition, String nodeId);
+
+    // records that a batch job run finished the partition; runs are told apart
+    // by an id every node uses for the same run
+    void complete(String runId, int partition, String nodeId, long now);
+
+    // the partitions recorded as finished for the run
+    Set<Integer> completedPartitions(String runId);
+
+    // drops the node's heartbeat and leases on shutdown
+    void leave(String nodeId);
+}
@@ -0,0 +1,135 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.HttpClient;
+import com.stripe.net.HttpContent;
+import com.stripe.net.HttpHeaders;
+import com.stripe.net.RequestOptions;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+import io.micrometer.core.instrument.Counter;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.conn.HttpConnectionFactory;
+import org.apache.http.conn.ManagedHttpClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.ManagedHttpClientConnectionFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// Sends one account's Stripe requests over its own pool of keep-alive
+// connections, so bursts reuse warm TLS connections instead of handshaking
+// each time, and a slow account can't exhaust another account's connections.
+class PooledStripeHttpClient extends HttpClient implements Closeable {
+
+    private final StripeAccount account;
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+
+    private final CloseableHttpClient client;
+
+    private final Counter exchanges;
+
+    PooledStripeHttpClient(StripeAccount account, StripeMetrics metrics) {
+        this.account = account;
+        this.exchanges = metrics.httpExchanges(account.getName());
+
+        Counter connectionsOpened = metrics.connectionsOpened(account.getName());
+        HttpConnectionFactory<HttpRoute, ManagedHttpClientConnection> connectionFactory = (route, config) -> {
+            connectionsOpened.increment();
+            return ManagedHttpClientConnectionFactory.INSTANCE.create(route, config);
+        };
+        connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", SSLConnectionSocketFactory.getSocketFactory())
+                        .build(),
+                connectionFactory, null, null, account.getKeepAliveSeconds(), TimeUnit.SECONDS);
+        connectionManager.setMaxTotal(account.getMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(account.getMaxConnections());
+        connectionManager.setValidateAfterInactivity(2000);
+        metrics.registerConnectionPool(account.getName(), connectionManager);
+
+        long keepAliveMillis = TimeUnit.SECONDS.toMillis(account.getKeepAliveSeconds());
+        client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy((response, context) -> keepAliveMillis)
+                .evictExpiredConnections()
+                .evictIdleConnections(account.getKeepAliveSeconds(), TimeUnit.SECONDS)
+                .disableAutomaticRetries()
+                .disableCookieManagement()
+                .disableRedirectHandling()
+                .build();
+    }
+
+    @Override
+    public StripeResponse request(StripeRequest request) throws StripeException {
+        RequestOptions options = request.options();
+        RequestConfig config = RequestConfig.custom()
+                .setConnectTimeout(options.getConnectTimeout())
+                .setConnectionRequestTimeout(options.getConnectTimeout())
+                .setSocketTimeout(options.getReadTimeout())
+                .build();
+        RequestBuilder builder = RequestBuilder.create(request.method().name())
+                .setConfig(config)
+                .addHeader("User-Agent", buildUserAgentString())
+                .addHeader("X-Stripe-Client-User-Agent", buildXStripeClientUserAgentString());
+        for (Map.Entry<String, List<String>> header : request.headers().map().entrySet()) {
+            for (String value : header.getValue()) {
+                builder.addHeader(header.getKey(), value);
+            }
+        }
+        HttpContent content = request.content();
+        if (content != null) {
+            builder.setEntity(new ByteArrayEntity(content.byteArrayContent(), ContentType.parse(content.contentType())));
+        }
+        try {
+            builder.setUri(request.url().toURI());
+            exchanges.increment();
+            try (CloseableHttpResponse response = client.execute(builder.build())) {
+                HttpEntity entity = response.getEntity();
+                String body = entity != null ? EntityUtils.toString(entity, StandardCharsets.UTF_8) : "";
+                return new StripeResponse(response.getStatusLine().getStatusCode(), headers(response.getAllHeaders()), body);
+            }
+        } catch (IOException | URISyntaxException e) {
+            throw new ApiConnectionException(String.format(
+                    "IOException during API request to Stripe (%s) for account %s: %s",
+                    request.url(), account.getName(), e.getMessage()), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.close();
+    }
+
+    private static HttpHeaders headers(Header[] headers) {
+        Map<String, List<String>> map = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Header header : headers) {
+            map.computeIfAbsent(header.getName(), name -> new ArrayList<>()).add(header.getValue());
+        }
+        return HttpHeaders.of(map);
+    }
+}
@@ -0,0 +1,27 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// A subscription as SubscriptionProjection last saw it. Immutable; every change
+// produces a new copy.
+@Getter
+@AllArgsConstructor
+public class ProjectedSubscription {
+    private String subscriptionId;
+    private String customerId;
+    private String status;
+    private String latestInvoiceId;
+    private String invoiceStatus;
+    private String paymentIntentId;
+    private String paymentIntentStatus;
+    // creation time (epoch seconds) of the newest event or fetch applied
+    private long version;
+    // when it was last read from Stripe (epoch millis)
+    private long fetchedAt;
+
+    public SubscriptionUpdateResult toUpdateResult() {
+        return new SubscriptionUpdateResult(subscriptionId, status, paymentIntentId, paymentIntentStatus);
+    }
+}
@@ -0,0 +1,21 @@
+package com.tubebreakup.stripe.ops;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// What the next invoice would look like if the subscription moved to priceId
+// and quantity at prorationDate. Amounts are in the currency's smallest unit.
+@Getter
+@AllArgsConstructor
+public class ProrationPreview {
+    private String subscriptionId;
+    private String priceId;
+    private Long quantity;
+    // epoch seconds
+    private Long prorationDate;
+    private String currency;
+    // net of the proration lines: credit for unused time plus the new plan's remaining time
+    private Long prorationAmount;
+    private Long total;
+    private Long amountDue;
+}
@@ -0,0 +1,164 @@
+package com.tubebreakup.stripe.ops;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// Short-lived cache of ProrationPreviews, grouped by subscription so a change
+// to the subscription drops all of its previews at once. Concurrent requests
+// for the same preview share one upcoming invoice call. A preview computed
+// while its subscription was invalidated is returned but not cached, so it
+// can't outlive the change; invalidations are only counted for subscriptions
+// with a preview in flight, so nothing is kept per subscription beyond its
+// cached previews. Holds at most maxEntries previews; when full,
+// expired ones are purged and new ones go uncached until there is room.
+@Component
+public class ProrationPreviewCache {
+
+    @Value("${stripe.preview.ttlSeconds:30}")
+    private long ttlSeconds;
+
+    @Value("${stripe.preview.maxEntries:10000}")
+    private int maxEntries;
+
+    // subscription id -> its previews
+    private final Map<String, Map<Key, Entry>> previews = new ConcurrentHashMap<>();
+
+    // subscription id -> invalidations while previews were in flight; dropped with the last flight
+    private final Map<String, Generation> generations = new ConcurrentHashMap<>();
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final SingleFlight<Key, ProrationPreview> flights = new SingleFlight<>();
+
+    public void invalidate(String subscriptionId) {
+        if (subscriptionId == null) {
+            return;
+        }
+        generations.computeIfPresent(subscriptionId, (id, generation) -> {
+            generation.invalidations++;
+            return generation;
+        });
+        Map<Key, Entry> removed = previews.remove(subscriptionId);
+        if (removed != null) {
+            size.addAndGet(-removed.size());
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    ProrationPreview get(String subscriptionId, String priceId, Long quantity, long prorationDate,
+                         Supplier<ProrationPreview> loader) {
+        Key key = new Key(subscriptionId, priceId, quantity, prorationDate);
+        Map<Key, Entry> forSubscription = previews.get(subscriptionId);
+        Entry entry = forSubscription != null ? forSubscription.get(key) : null;
+        if (entry != null && entry.expiresAt > System.nanoTime()) {
+            return entry.preview;
+        }
+        return flights.execute(key, () -> {
+            int[] started = new int[1];
+            generations.compute(subscriptionId, (id, generation) -> {
+                generation = generation != null ? generation : new Generation();
+                generation.pending++;
+                started[0] = generation.invalidations;
+                return generation;
+            });
+            ProrationPreview preview = null;
+            try {
+                preview = loader.get();
+                return preview;
+            } finally {
+                ProrationPreview loaded = preview;
+                // checked and cached under the subscription's entry, so an invalidation can't fall in between
+                generations.computeIfPresent(subscriptionId, (id, generation) -> {
+                    if (loaded != null && generation.invalidations == started[0]) {
+                        put(key, loaded);
+                    }
+                    return --generation.pending > 0 ? generation : null;
+                });
+            }
+        });
+    }
+
+    private void put(Key key, ProrationPreview preview) {
+        if (size.get() >= maxEntries) {
+            purgeExpired();
+            if (size.get() >= maxEntries) {
+                return;
+            }
+        }
+        Entry entry = new Entry(preview, System.nanoTime() + TimeUnit.SECONDS.toNanos(ttlSeconds));
+        if (previews.computeIfAbsent(key.subscriptionId, id -> new ConcurrentHashMap<>()).put(key, entry) == null) {
+            size.incrementAndGet();
+        }
+    }
+
+    private void purgeExpired() {
+        long now = System.nanoTime();
+        for (Map<Key, Entry> forSubscription : previews.values()) {
+            Iterator<Entry> entries = forSubscription.values().iterator();
+            while (entries.hasNext()) {
+                if (entries.next().expiresAt <= now) {
+                    entries.remove();
+                    size.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static class Generation {
+        private int invalidations;
+        private int pending;
+    }
+
+    private static class Entry {
+        private final ProrationPreview preview;
+        private final long expiresAt;
+
+        private Entry(ProrationPreview preview, long expiresAt) {
+            this.preview = preview;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class Key {
+        private final String subscriptionId;
+        private final String priceId;
+        private final Long quantity;
+        private final long prorationDate;
+
+        private Key(String subscriptionId, String priceId, Long quantity, long prorationDate) {
+            this.subscriptionId = subscriptionId;
+            this.priceId = priceId;
+            this.quantity = quantity;
+            this.prorationDate = prorationDate;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return prorationDate == other.prorationDate && subscriptionId.equals(other.subscriptionId)
+                    && Objects.equals(priceId, other.priceId) && Objects.equals(quantity, other.quantity);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(subscriptionId, priceId, quantity, prorationDate);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.tubebreakup.stripe.ops;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class ShardedJobReport {
+    // organizations this node owned and worked on
+    private long processed;
+    // organizations left to the nodes that own them
+    private long skipped;
+    private long failed;
+    // organizations in partitions no node finished before the job timed out
+    private long unfinished;
+    private long elapsedMillis;
+}
@@ -0,0 +1,167 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.model.NameProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+// Runs batch work over organizations on every node at once, each node doing
+// only the organizations in the partitions it owns (see ClusterPartitions). Every
+// node is given the full list, which is read locally; only the Stripe calls
+// are split, so a sweep takes about 1/N of the time on N nodes.
+//
+// The work goes partition by partition. A partition finished while owned is
+// recorded under the run id (the same on every node for one run), and each
+// node keeps picking up unfinished partitions it owns until every partition is
+// recorded or stripe.cluster.jobTimeoutSeconds passes. So a partition that
+// moves mid-run, to a node that joined or away from one that died, is done by
+// its new owner, and a node cut off from the lease store waits for it to come
+// back instead of skipping its organizations. Ownership is checked right
+// before each organization; a partition lost part way through is redone from
+// its start by the new owner, so the work must be safe to repeat.
+@Service
+public class ShardedOrganizationJob {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private ClusterPartitions partitions;
+
+    @Autowired
+    private StripeService stripeService;
+
+    @Value("${stripe.cluster.jobPollMillis:1000}")
+    private long pollMillis;
+
+    @Value("${stripe.cluster.jobTimeoutSeconds:1800}")
+    private long timeoutSeconds;
+
+    public ShardedJobReport run(String name, String runId, Iterable<? extends LocalOrganization> organizations,
+                                Consumer<LocalOrganization> work) {
+        long start = System.currentTimeMillis();
+        long deadline = start + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+        Map<Integer, List<LocalOrganization>> byPartition = new TreeMap<>();
+        for (LocalOrganization organization : organizations) {
+            byPartition.computeIfAbsent(partitions.partitionOf(organization.getUuid()), partition -> new ArrayList<>())
+                    .add(organization);
+        }
+
+        Set<Integer> finishedHere = new HashSet<>();
+        // finished here, but not yet recorded for the other nodes to see
+        Set<Integer> unrecorded = new HashSet<>();
+        Set<Integer> remaining = new HashSet<>(byPartition.keySet());
+        long processed = 0;
+        long failed = 0;
+        while (!remaining.isEmpty() || !unrecorded.isEmpty()) {
+            unrecorded.removeIf(partition -> markCompleted(runId, partition));
+            remaining.removeAll(completedElsewhere(runId));
+            boolean progressed = false;
+            for (Integer partition : new ArrayList<>(remaining)) {
+                if (!partitions.owns(partition)) {
+                    continue;
+                }
+                PartitionRun partitionRun = runPartition(partition, byPartition.get(partition), work);
+                processed += partitionRun.processed;
+                failed += partitionRun.failed;
+                if (partitionRun.finished) {
+                    finishedHere.add(partition);
+                    remaining.remove(partition);
+                    if (!markCompleted(runId, partition)) {
+                        unrecorded.add(partition);
+                    }
+                    progressed = true;
+                }
+            }
+            if ((remaining.isEmpty() && unrecorded.isEmpty()) || progressed) {
+                continue;
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                logger.warn("Stripe: {} ({}) on node {}: gave up after {}s with {} partitions unfinished, {} unrecorded",
+                        name, runId, partitions.getNodeId(), timeoutSeconds, remaining.size(), unrecorded.size());
+                break;
+            }
+            try {
+                // for partitions to move here, or be finished elsewhere, or the lease store to come back
+                Thread.sleep(pollMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        long unfinished = 0;
+        long skipped = 0;
+        for (Map.Entry<Integer, List<LocalOrganization>> entry : byPartition.entrySet()) {
+            if (remaining.contains(entry.getKey())) {
+                unfinished += entry.getValue().size();
+            } else if (!finishedHere.contains(entry.getKey())) {
+                skipped += entry.getValue().size();
+            }
+        }
+        ShardedJobReport report = new ShardedJobReport(processed, skipped, failed, unfinished,
+                System.currentTimeMillis() - start);
+        logger.info("Stripe: {} ({}) on node {}: {} processed, {} other nodes', {} failed, {} unfinished in {} ms", name,
+                runId, partitions.getNodeId(), processed, skipped, failed, unfinished, report.getElapsedMillis());
+        return report;
+    }
+
+    public ShardedJobReport refreshSubscriptionStatuses(NameProvider user, String runId,
+                                                        Iterable<? extends LocalOrganization> organizations) {
+        return run("subscription status refresh", runId, organizations,
+                organization -> stripeService.refreshSubscriptionStatus(user, organization));
+    }
+
+    private PartitionRun runPartition(int partition, List<LocalOrganization> organizations, Consumer<LocalOrganization> work) {
+        PartitionRun run = new PartitionRun();
+        for (LocalOrganization organization : organizations) {
+            if (!partitions.owns(partition)) {
+                return run;
+            }
+            try {
+                work.accept(organization);
+                run.processed++;
+            } catch (RuntimeException e) {
+                // StripeService has logged it
+                run.failed++;
+            }
+        }
+        run.finished = true;
+        return run;
+    }
+
+    private Set<Integer> completedElsewhere(String runId) {
+        try {
+            return partitions.getCompletedPartitions(runId);
+        } catch (RuntimeException e) {
+            logger.warn("Stripe: failed reading finished partitions of {}", runId, e);
+            return new HashSet<>();
+        }
+    }
+
+    private boolean markCompleted(String runId, int partition) {
+        try {
+            partitions.markCompleted(runId, partition);
+            return true;
+        } catch (RuntimeException e) {
+            logger.warn("Stripe: failed recording partition {} of {} as finished", partition, runId, e);
+            return false;
+        }
+    }
+
+    private static class PartitionRun {
+        private long processed;
+        private long failed;
+        private boolean finished;
+    }
+}
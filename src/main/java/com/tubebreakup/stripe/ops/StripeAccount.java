@@ -0,0 +1,29 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.net.RequestOptions;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+// A Stripe account this node talks to, with the HTTP settings of its own
+// connection pool. Every request carries the account's key explicitly, so
+// nothing depends on the global Stripe.apiKey.
+@Getter
+@AllArgsConstructor
+public class StripeAccount {
+    private String name;
+    private String secretApiKey;
+    private int connectTimeoutMillis;
+    private int readTimeoutMillis;
+    private int maxConnections;
+    private int keepAliveSeconds;
+
+    // idempotencyKey may be null
+    public RequestOptions requestOptions(String idempotencyKey) {
+        return RequestOptions.builder()
+                .setApiKey(secretApiKey)
+                .setConnectTimeout(connectTimeoutMillis)
+                .setReadTimeout(readTimeoutMillis)
+                .setIdempotencyKey(idempotencyKey)
+                .build();
+    }
+}
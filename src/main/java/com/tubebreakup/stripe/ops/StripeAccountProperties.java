@@ -0,0 +1,15 @@
+package com.tubebreakup.stripe.ops;
+
+import lombok.Getter;
+import lombok.Setter;
+
+// stripe.accounts.<name>.* settings; unset HTTP settings fall back to stripe.http.*
+@Getter
+@Setter
+public class StripeAccountProperties {
+    private String secretApiKey;
+    private Integer connectTimeoutMillis;
+    private Integer readTimeoutMillis;
+    private Integer maxConnections;
+    private Integer keepAliveSeconds;
+}
@@ -0,0 +1,116 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.exception.CommonErrors;
+import com.tubebreakup.exception.ErrorCodedHttpException;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.properties.bind.Bindable;
+import org.springframework.boot.context.properties.bind.Binder;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StringUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The Stripe accounts this node serves. stripe.secretApiKey is the "default"
+// account; further brands are configured as stripe.accounts.<name>.secretApiKey
+// and selected per organization through LocalOrganization.getStripeAccount().
+@Component
+public class StripeAccounts implements InitializingBean {
+
+    public static final String DEFAULT = "default";
+
+    @Autowired
+    private Environment environment;
+
+    @Value("${stripe.secretApiKey}")
+    private String secretApiKey;
+
+    @Value("${stripe.http.connectTimeoutMillis:30000}")
+    private int connectTimeoutMillis;
+
+    @Value("${stripe.http.readTimeoutMillis:80000}")
+    private int readTimeoutMillis;
+
+    @Value("${stripe.http.maxConnections:50}")
+    private int maxConnections;
+
+    @Value("${stripe.http.keepAliveSeconds:60}")
+    private int keepAliveSeconds;
+
+    private Map<String, StripeAccount> accountsByName;
+
+    private Map<String, StripeAccount> accountsByApiKey;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        Map<String, StripeAccount> byName = new LinkedHashMap<>();
+        byName.put(DEFAULT, new StripeAccount(DEFAULT, secretApiKey, connectTimeoutMillis, readTimeoutMillis,
+                maxConnections, keepAliveSeconds));
+
+        Map<String, StripeAccountProperties> configured = Binder.get(environment)
+                .bind("stripe.accounts", Bindable.mapOf(String.class, StripeAccountProperties.class))
+                .orElse(Collections.emptyMap());
+        for (Map.Entry<String, StripeAccountProperties> entry : configured.entrySet()) {
+            StripeAccountProperties properties = entry.getValue();
+            if (!StringUtils.hasLength(properties.getSecretApiKey())) {
+                throw new IllegalStateException("Stripe: no secretApiKey for account " + entry.getKey());
+            }
+            byName.put(entry.getKey(), new StripeAccount(entry.getKey(),
+                    properties.getSecretApiKey(),
+                    valueOr(properties.getConnectTimeoutMillis(), connectTimeoutMillis),
+                    valueOr(properties.getReadTimeoutMillis(), readTimeoutMillis),
+                    valueOr(properties.getMaxConnections(), maxConnections),
+                    valueOr(properties.getKeepAliveSeconds(), keepAliveSeconds)));
+        }
+
+        Map<String, StripeAccount> byApiKey = new HashMap<>();
+        for (StripeAccount account : byName.values()) {
+            if (byApiKey.put(account.getSecretApiKey(), account) != null) {
+                throw new IllegalStateException("Stripe: account " + account.getName() + " shares its key with another account");
+            }
+        }
+        accountsByName = Collections.unmodifiableMap(byName);
+        accountsByApiKey = byApiKey;
+    }
+
+    public StripeAccount getDefault() {
+        return accountsByName.get(DEFAULT);
+    }
+
+    // null or empty selects the default account
+    public StripeAccount get(String name) {
+        if (!StringUtils.hasLength(name)) {
+            return getDefault();
+        }
+        StripeAccount account = accountsByName.get(name);
+        if (account == null) {
+            throw new ErrorCodedHttpException(HttpStatus.INTERNAL_SERVER_ERROR, CommonErrors.SERVER_ERROR,
+                    "Stripe: unknown account " + name);
+        }
+        return account;
+    }
+
+    public StripeAccount forOrganization(LocalOrganization organization) {
+        return get(organization.getStripeAccount());
+    }
+
+    // the account a request was made for, or null if the key isn't configured here
+    StripeAccount forApiKey(String apiKey) {
+        return apiKey != null ? accountsByApiKey.get(apiKey) : null;
+    }
+
+    public Collection<StripeAccount> getAll() {
+        return accountsByName.values();
+    }
+
+    private static int valueOr(Integer value, int fallback) {
+        return value != null ? value : fallback;
+    }
+}
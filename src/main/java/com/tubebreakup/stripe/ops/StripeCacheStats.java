@@ -0,0 +1,18 @@
+package com.tubebreakup.stripe.ops;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class StripeCacheStats {
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long size;
+
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+}
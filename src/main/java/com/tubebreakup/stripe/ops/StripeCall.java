@@ -0,0 +1,11 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.StripeException;
+import com.stripe.net.RequestOptions;
+
+// One Stripe API request. Implementations must pass the given options through
+// to the com.stripe.model call so retries reuse the same idempotency key.
+@FunctionalInterface
+public interface StripeCall<T> {
+    T call(RequestOptions options) throws StripeException;
+}
@@ -0,0 +1,22 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.StripeException;
+
+// Thrown without contacting Stripe when the operation's circuit breaker is open
+// or too many calls of its kind are already in flight. Never retried.
+public class StripeCallRejectedException extends StripeException {
+
+    private static final long serialVersionUID = 1L;
+
+    StripeCallRejectedException(String message, StripeErrors error) {
+        super(message, null, error.message(), null);
+    }
+
+    static StripeCallRejectedException circuitOpen(String operation) {
+        return new StripeCallRejectedException("Stripe: circuit open for " + operation, StripeErrors.STRIPE_CIRCUIT_OPEN);
+    }
+
+    static StripeCallRejectedException bulkheadFull(String operation) {
+        return new StripeCallRejectedException("Stripe: too many calls in flight for " + operation, StripeErrors.STRIPE_BULKHEAD_FULL);
+    }
+}
@@ -0,0 +1,214 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.StripeException;
+import com.stripe.model.Price;
+import com.stripe.model.PriceCollection;
+import com.stripe.model.Product;
+import com.stripe.model.ProductCollection;
+import com.stripe.param.PriceListParams;
+import com.stripe.param.ProductListParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Every account's prices and products, loaded in the background at startup
+// and reloaded every refreshSeconds, with catalog webhooks applied in between.
+// Lookups read an immutable StripeCatalogSnapshot and never call Stripe.
+//
+// check() rejects a price that is unknown or inactive (or whose product is
+// inactive) and a quantity Stripe would refuse before a subscription write
+// is sent. A price missing from a loaded snapshot is retrieved once before
+// being rejected, so prices created since the last reload are accepted. Until
+// an account's first load completes, or if it fails, checks pass and Stripe
+// decides.
+@Component
+public class StripeCatalog implements InitializingBean, DisposableBean {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StripeRequestExecutor executor;
+
+    @Autowired
+    private StripeAccounts accounts;
+
+    @Value("${stripe.catalog.enabled:true}")
+    private boolean enabled;
+
+    @Value("${stripe.catalog.refreshSeconds:600}")
+    private long refreshSeconds;
+
+    @Value("${stripe.catalog.pageSize:100}")
+    private long pageSize;
+
+    // account name -> snapshot
+    private final Map<String, StripeCatalogSnapshot> snapshots = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("stripe-catalog-");
+        threadFactory.setDaemon(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        scheduler.scheduleWithFixedDelay(this::refreshAll, 0, refreshSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    public StripeCatalogSnapshot getSnapshot() {
+        return getSnapshot(accounts.getDefault());
+    }
+
+    public StripeCatalogSnapshot getSnapshot(StripeAccount account) {
+        return snapshots.getOrDefault(account.getName(), StripeCatalogSnapshot.EMPTY);
+    }
+
+    public Price getPrice(String priceId) {
+        return getSnapshot().getPrice(priceId);
+    }
+
+    public Price getPrice(StripeAccount account, String priceId) {
+        return getSnapshot(account).getPrice(priceId);
+    }
+
+    // reloads every account's catalog now
+    public void refreshAll() {
+        for (StripeAccount account : accounts.getAll()) {
+            try {
+                refresh(account);
+            } catch (StripeException | RuntimeException e) {
+                logger.warn("Stripe: failed loading catalog for account {}", account.getName(), e);
+            }
+        }
+    }
+
+    public StripeCatalogSnapshot refresh(StripeAccount account) throws StripeException {
+        Map<String, Price> prices = new HashMap<>();
+        Map<String, Product> products = new HashMap<>();
+        String startingAfter = null;
+        boolean hasMore = true;
+        while (hasMore) {
+            PriceListParams.Builder builder = PriceListParams.builder().setLimit(pageSize);
+            if (startingAfter != null) {
+                builder.setStartingAfter(startingAfter);
+            }
+            PriceListParams params = builder.build();
+            PriceCollection page = executor.read(account, "price.list", options -> Price.list(params, options));
+            List<Price> data = page.getData();
+            if (data == null || data.isEmpty()) {
+                break;
+            }
+            for (Price price : data) {
+                prices.put(price.getId(), price);
+            }
+            startingAfter = data.get(data.size() - 1).getId();
+            hasMore = Boolean.TRUE.equals(page.getHasMore());
+        }
+        startingAfter = null;
+        hasMore = true;
+        while (hasMore) {
+            ProductListParams.Builder builder = ProductListParams.builder().setLimit(pageSize);
+            if (startingAfter != null) {
+                builder.setStartingAfter(startingAfter);
+            }
+            ProductListParams params = builder.build();
+            ProductCollection page = executor.read(account, "product.list", options -> Product.list(params, options));
+            List<Product> data = page.getData();
+            if (data == null || data.isEmpty()) {
+                break;
+            }
+            for (Product product : data) {
+                products.put(product.getId(), product);
+            }
+            startingAfter = data.get(data.size() - 1).getId();
+            hasMore = Boolean.TRUE.equals(page.getHasMore());
+        }
+        StripeCatalogSnapshot snapshot = new StripeCatalogSnapshot(prices, products, System.currentTimeMillis());
+        snapshots.put(account.getName(), snapshot);
+        logger.info("Stripe: loaded catalog for account {}: {} prices, {} products", account.getName(), prices.size(), products.size());
+        return snapshot;
+    }
+
+    // applies a price or product from a webhook to the snapshots that hold it;
+    // new ones are picked up by check() or the next reload
+    public void update(Price price) {
+        snapshots.replaceAll((account, snapshot) -> snapshot.getPrice(price.getId()) != null ? snapshot.withPrice(price) : snapshot);
+    }
+
+    public void update(Product product) {
+        snapshots.replaceAll((account, snapshot) -> snapshot.getProduct(product.getId()) != null ? snapshot.withProduct(product) : snapshot);
+    }
+
+    public void remove(String id) {
+        snapshots.replaceAll((account, snapshot) ->
+                snapshot.getPrice(id) != null || snapshot.getProduct(id) != null ? snapshot.without(id) : snapshot);
+    }
+
+    // throws the error Stripe would answer the subscription write with
+    void check(StripeAccount account, String priceId, Long quantity) throws StripeException {
+        StripeCatalogSnapshot snapshot = snapshots.get(account.getName());
+        if (snapshot == null) {
+            return;
+        }
+        Price price = snapshot.getPrice(priceId);
+        if (price == null && priceId != null) {
+            try {
+                price = retrieve(account, priceId);
+            } catch (StripeException e) {
+                // can't tell; leave it to the write
+                return;
+            }
+        }
+        if (price == null) {
+            throw invalid("No such price: " + priceId, "price", StripeErrors.STRIPE_RESOURCE_MISSING);
+        }
+        Product product = snapshot.getProduct(price.getProduct());
+        if (!Boolean.TRUE.equals(price.getActive()) || (product != null && !Boolean.TRUE.equals(product.getActive()))) {
+            throw invalid("Price " + priceId + " is not active", "price", StripeErrors.STRIPE_PRODUCT_INACTIVE);
+        }
+        boolean metered = price.getRecurring() != null && "metered".equals(price.getRecurring().getUsageType());
+        if (metered ? quantity != null : quantity != null && quantity < 0) {
+            throw invalid("Invalid quantity " + quantity + " for price " + priceId, "quantity", StripeErrors.STRIPE_QUANTITY_INVALID);
+        }
+    }
+
+    private Price retrieve(StripeAccount account, String priceId) throws StripeException {
+        try {
+            Price price = executor.read(account, "price.retrieve", options -> Price.retrieve(priceId, options));
+            snapshots.computeIfPresent(account.getName(), (name, snapshot) -> snapshot.withPrice(price));
+            return price;
+        } catch (InvalidRequestException e) {
+            if (StripeErrors.from(e) == StripeErrors.STRIPE_RESOURCE_MISSING) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private static InvalidRequestException invalid(String message, String param, StripeErrors error) {
+        return new InvalidRequestException(message, param, null, error.message(), 400, null);
+    }
+}
@@ -0,0 +1,73 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.Price;
+import com.stripe.model.Product;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+// An account's prices and products as of loadedAt (epoch millis). Never
+// modified once built; StripeCatalog replaces the whole snapshot to change it.
+// Treat the Price and Product objects as read-only too.
+public class StripeCatalogSnapshot {
+
+    static final StripeCatalogSnapshot EMPTY = new StripeCatalogSnapshot(Collections.emptyMap(), Collections.emptyMap(), 0);
+
+    private final Map<String, Price> prices;
+
+    private final Map<String, Product> products;
+
+    private final long loadedAt;
+
+    StripeCatalogSnapshot(Map<String, Price> prices, Map<String, Product> products, long loadedAt) {
+        this.prices = Collections.unmodifiableMap(prices);
+        this.products = Collections.unmodifiableMap(products);
+        this.loadedAt = loadedAt;
+    }
+
+    public Price getPrice(String priceId) {
+        return prices.get(priceId);
+    }
+
+    public Product getProduct(String productId) {
+        return products.get(productId);
+    }
+
+    public Collection<Price> getPrices() {
+        return prices.values();
+    }
+
+    public Collection<Product> getProducts() {
+        return products.values();
+    }
+
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+
+    public boolean isLoaded() {
+        return loadedAt > 0;
+    }
+
+    StripeCatalogSnapshot withPrice(Price price) {
+        Map<String, Price> updated = new HashMap<>(prices);
+        updated.put(price.getId(), price);
+        return new StripeCatalogSnapshot(updated, products, loadedAt);
+    }
+
+    StripeCatalogSnapshot withProduct(Product product) {
+        Map<String, Product> updated = new HashMap<>(products);
+        updated.put(product.getId(), product);
+        return new StripeCatalogSnapshot(prices, updated, loadedAt);
+    }
+
+    StripeCatalogSnapshot without(String id) {
+        Map<String, Price> updatedPrices = new HashMap<>(prices);
+        Map<String, Product> updatedProducts = new HashMap<>(products);
+        updatedPrices.remove(id);
+        updatedProducts.remove(id);
+        return new StripeCatalogSnapshot(updatedPrices, updatedProducts, loadedAt);
+    }
+}
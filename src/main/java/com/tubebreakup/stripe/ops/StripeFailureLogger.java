@@ -0,0 +1,133 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.StripeException;
+import org.slf4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Logs failed Stripe calls according to what went wrong:
+// - unexpected errors (not found, conflict, internal, unknown codes) at error
+//   with the stack trace, every time;
+// - expected ones, card declines and invalid input at info and transient
+//   failures and rejected calls at warn, as one line without a stack trace.
+//   Of those, the first detailsPerWindow per (message, code) in each window are
+//   logged, then a sampleRate fraction of the rest; at the end of the window
+//   a summary line counts everything that wasn't logged.
+// So a renewal run with thousands of declines writes a handful of lines a minute.
+@Component
+public class StripeFailureLogger implements InitializingBean, DisposableBean {
+
+    @Value("${stripe.logging.windowSeconds:60}")
+    private long windowSeconds;
+
+    @Value("${stripe.logging.detailsPerWindow:5}")
+    private int detailsPerWindow;
+
+    @Value("${stripe.logging.sampleRate:0.01}")
+    private double sampleRate;
+
+    // message + code -> counts for the current window
+    private final Map<String, Aggregate> aggregates = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("stripe-failure-log-");
+        threadFactory.setDaemon(true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        scheduler.scheduleAtFixedRate(this::flush, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        flush();
+    }
+
+    // message describes the failed call ("Stripe: failed creating subscription"),
+    // subject who it was for (an email or id; may be null)
+    public void log(Logger logger, String message, String subject, StripeException e) {
+        StripeErrors error = StripeErrors.from(e);
+        boolean business = error.userFacing();
+        if (!business && !error.retryable()) {
+            logger.error("{} ({})", message, subject, e);
+            return;
+        }
+        Aggregate aggregate = aggregates.computeIfAbsent(message + '|' + error.name(),
+                key -> new Aggregate(logger, message, error));
+        if (!aggregate.record(detailsPerWindow, sampleRate)) {
+            return;
+        }
+        String line = "{} ({}) code={} kind={} status={} requestId={}: {}";
+        Object[] args = {message, subject, error.message(), error.kind(), e.getStatusCode(), e.getRequestId(), e.getMessage()};
+        if (business) {
+            logger.info(line, args);
+        } else {
+            logger.warn(line, args);
+        }
+    }
+
+    void flush() {
+        for (Aggregate aggregate : aggregates.values()) {
+            aggregate.flush(windowSeconds);
+        }
+    }
+
+    private static class Aggregate {
+
+        private final Logger logger;
+
+        private final String message;
+
+        private final StripeErrors error;
+
+        private final AtomicLong count = new AtomicLong();
+
+        private final AtomicInteger logged = new AtomicInteger();
+
+        private Aggregate(Logger logger, String message, StripeErrors error) {
+            this.logger = logger;
+            this.message = message;
+            this.error = error;
+        }
+
+        // true if this occurrence should be logged in full
+        boolean record(int detailsPerWindow, double sampleRate) {
+            count.incrementAndGet();
+            if (logged.get() < detailsPerWindow || ThreadLocalRandom.current().nextDouble() < sampleRate) {
+                logged.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+
+        void flush(long windowSeconds) {
+            long total = count.getAndSet(0);
+            int details = logged.getAndSet(0);
+            if (total > details) {
+                String line = "{}: {} x{} in the last {}s ({} logged)";
+                Object[] args = {message, error.message(), total, windowSeconds, details};
+                if (error.userFacing()) {
+                    logger.info(line, args);
+                } else {
+                    logger.warn(line, args);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Invoice;
+import com.stripe.model.Subscription;
+import com.stripe.param.SubscriptionRetrieveParams;
+import org.springframework.util.StringUtils;
+
+// Loads each Stripe object at most once for the duration of one composite
+// StripeService operation. The subscription is retrieved with its latest
+// invoice and payment intent expanded, so the invoice checks that follow
+// need no further round-trips. Reads go through the StripeObjectCache; callers
+// about to act on what they read should use verifiedSubscription() so
+// decisions are never made on cached state. A context allowing stale reads
+// falls back to the last cached subscription while calls to Stripe are being
+// rejected; verifiedSubscription() still fails in that case. Not thread safe;
+// create one per operation.
+class StripeFetchContext {
+
+    static final String LATEST_INVOICE_PAYMENT_INTENT = "latest_invoice.payment_intent";
+
+    private final LocalOrganization organization;
+
+    private final StripeAccount account;
+
+    private final StripeObjectCache cache;
+
+    private final StripeRequestExecutor executor;
+
+    private Subscription subscription;
+
+    private boolean fromCache;
+
+    private boolean allowStale;
+
+    StripeFetchContext(LocalOrganization organization, StripeAccount account, StripeObjectCache cache, StripeRequestExecutor executor) {
+        this.organization = organization;
+        this.account = account;
+        this.cache = cache;
+        this.executor = executor;
+    }
+
+    LocalOrganization getOrganization() {
+        return organization;
+    }
+
+    StripeAccount getAccount() {
+        return account;
+    }
+
+    StripeFetchContext allowingStale() {
+        this.allowStale = true;
+        return this;
+    }
+
+    // the organization's current subscription, or null if it has none
+    Subscription subscription() throws StripeException {
+        String id = organization.getLocalSubscription().getExternalId();
+        if (!StringUtils.hasLength(id)) {
+            return null;
+        }
+        if (subscription == null || !id.equals(subscription.getId())) {
+            subscription = cache.get(Subscription.class, id);
+            fromCache = subscription != null;
+            if (subscription == null) {
+                loadOrStale(id);
+            }
+        }
+        return subscription;
+    }
+
+    // the organization's current subscription as Stripe has it right now
+    Subscription verifiedSubscription() throws StripeException {
+        Subscription sub = subscription();
+        if (sub != null && fromCache) {
+            load(sub.getId());
+        }
+        return subscription;
+    }
+
+    private void loadOrStale(String id) throws StripeException {
+        try {
+            load(id);
+        } catch (StripeCallRejectedException e) {
+            Subscription stale = allowStale ? cache.getStale(Subscription.class, id) : null;
+            if (stale == null) {
+                throw e;
+            }
+            subscription = stale;
+            fromCache = true;
+        }
+    }
+
+    private void load(String id) throws StripeException {
+        SubscriptionRetrieveParams params = SubscriptionRetrieveParams.builder()
+                .addExpand(LATEST_INVOICE_PAYMENT_INTENT)
+                .build();
+        subscription = executor.read(account, "subscription.retrieve", options -> Subscription.retrieve(id, params, options));
+        fromCache = false;
+        cache.put(Subscription.class, subscription);
+    }
+
+    // the subscription's latest invoice with its payment intent expanded, or null
+    Invoice latestInvoice() throws StripeException {
+        Subscription sub = subscription();
+        return sub != null ? sub.getLatestInvoiceObject() : null;
+    }
+
+    void invalidateSubscription(String id) {
+        this.subscription = null;
+        cache.invalidate(Subscription.class, id);
+    }
+}
@@ -0,0 +1,90 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.StripeException;
+import com.stripe.net.ApiResource;
+import com.stripe.net.HttpClient;
+import com.stripe.net.HttpURLConnectionClient;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+// Installs an HTTP client for stripe-java that sends each request over the
+// connection pool of the account whose key it carries. Requests made with a
+// key that isn't configured here fall back to the default account's pool.
+// stripe.http.pooled=false keeps stripe-java's own (unpooled) client.
+@Component
+public class StripeHttpTransport implements InitializingBean, DisposableBean {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StripeAccounts accounts;
+
+    @Autowired
+    private StripeMetrics metrics;
+
+    @Value("${stripe.http.pooled:true}")
+    private boolean pooled;
+
+    // account name -> client
+    private final Map<String, PooledStripeHttpClient> clients = new HashMap<>();
+
+    private final HttpClient routingClient = new AccountRoutingHttpClient();
+
+    private final HttpClient unpooledClient = new HttpURLConnectionClient();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!pooled) {
+            return;
+        }
+        for (StripeAccount account : accounts.getAll()) {
+            clients.put(account.getName(), new PooledStripeHttpClient(account, metrics));
+        }
+        install();
+    }
+
+    // makes the pooled clients stripe-java's transport again, e.g. after a
+    // test replaced it
+    public void install() {
+        ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter(getHttpClient()));
+    }
+
+    // the client in use, for wrapping (StripeTrafficRecorder): the pooled,
+    // account-routing one, or stripe-java's own when not pooled
+    public HttpClient getHttpClient() {
+        return pooled ? routingClient : unpooledClient;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        for (PooledStripeHttpClient client : clients.values()) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                logger.warn("Stripe: failed closing http client", e);
+            }
+        }
+    }
+
+    private class AccountRoutingHttpClient extends HttpClient {
+
+        @Override
+        public StripeResponse request(StripeRequest request) throws StripeException {
+            StripeAccount account = accounts.forApiKey(request.options().getApiKey());
+            PooledStripeHttpClient client = clients.get(account != null ? account.getName() : StripeAccounts.DEFAULT);
+            return client.request(request);
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package com.tubebreakup.stripe.ops;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Meters for outbound Stripe requests, published to the application's
+// MeterRegistry (and so through Actuator when it's present):
+// - stripe.requests: timer per request attempt, tagged with operation
+//   (subscription.create), resource (subscription) and outcome
+// - stripe.retries: counter of retried attempts per operation
+// - stripe.errors: counter of failed operations per resolved StripeErrors code
+// - stripe.requests.in_flight: gauge of requests currently waiting on Stripe
+// - stripe.http.exchanges / stripe.http.connections.opened: HTTP exchanges and
+//   new connections per account; the difference is connections reused
+// - stripe.http.pool.*: leased, available, pending and max connections per account
+// - stripe.circuit.state: per operation, 0 closed, 1 half open, 2 open
+// - stripe.circuit.transitions: counter of breaker state changes per operation
+// - stripe.bulkhead.available: free read and write permits
+@Component
+public class StripeMetrics implements InitializingBean {
+
+    @Autowired(required = false)
+    private MeterRegistry registry;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (registry == null) {
+            registry = Metrics.globalRegistry;
+        }
+        registry.gauge("stripe.requests.in_flight", inFlight);
+    }
+
+    // returns the start time to pass to recordRequest
+    long requestStarted() {
+        inFlight.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    void recordRequest(String operation, long startNanos, boolean success) {
+        inFlight.decrementAndGet();
+        Timer.builder("stripe.requests")
+                .tag("operation", operation)
+                .tag("resource", resource(operation))
+                .tag("outcome", success ? "success" : "error")
+                .publishPercentileHistogram()
+                .register(registry)
+                .record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void recordRetry(String operation) {
+        Counter.builder("stripe.retries")
+                .tag("operation", operation)
+                .tag("resource", resource(operation))
+                .register(registry)
+                .increment();
+    }
+
+    void recordError(String operation, StripeErrors error) {
+        Counter.builder("stripe.errors")
+                .tag("operation", operation)
+                .tag("resource", resource(operation))
+                .tag("code", error.name())
+                .register(registry)
+                .increment();
+    }
+
+    Counter httpExchanges(String account) {
+        return Counter.builder("stripe.http.exchanges")
+                .tag("account", account)
+                .register(registry);
+    }
+
+    Counter connectionsOpened(String account) {
+        return Counter.builder("stripe.http.connections.opened")
+                .tag("account", account)
+                .register(registry);
+    }
+
+    void registerConnectionPool(String account, PoolingHttpClientConnectionManager pool) {
+        Gauge.builder("stripe.http.pool.leased", pool, p -> p.getTotalStats().getLeased())
+                .tag("account", account)
+                .register(registry);
+        Gauge.builder("stripe.http.pool.available", pool, p -> p.getTotalStats().getAvailable())
+                .tag("account", account)
+                .register(registry);
+        Gauge.builder("stripe.http.pool.pending", pool, p -> p.getTotalStats().getPending())
+                .tag("account", account)
+                .register(registry);
+        Gauge.builder("stripe.http.pool.max", pool, p -> p.getTotalStats().getMax())
+                .tag("account", account)
+                .register(registry);
+    }
+
+    void registerCircuitBreaker(String operation, CircuitBreaker breaker) {
+        Gauge.builder("stripe.circuit.state", breaker, b -> b.getState().ordinal())
+                .tag("operation", operation)
+                .tag("resource", resource(operation))
+                .register(registry);
+    }
+
+    void recordCircuitTransition(String operation, CircuitBreaker.State from, CircuitBreaker.State to) {
+        Counter.builder("stripe.circuit.transitions")
+                .tag("operation", operation)
+                .tag("resource", resource(operation))
+                .tag("from", from.name().toLowerCase())
+                .tag("to", to.name().toLowerCase())
+                .register(registry)
+                .increment();
+    }
+
+    void registerBulkhead(String kind, Semaphore permits) {
+        Gauge.builder("stripe.bulkhead.available", permits, Semaphore::availablePermits)
+                .tag("kind", kind)
+                .register(registry);
+    }
+
+    private static String resource(String operation) {
+        int dot = operation.indexOf('.');
+        return dot > 0 ? operation.substring(0, dot) : operation;
+    }
+}
@@ -0,0 +1,27 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.HasId;
+
+// Cache in front of the com.stripe.model retrieves made by StripeService.
+// StripeService writes through on every mutation it makes, so readers never see
+// state older than our own last write. Provide a @Primary bean to replace the
+// default in-process implementation.
+public interface StripeObjectCache {
+
+    // the cached object, or null on a miss or once its time-to-live has passed
+    <T extends HasId> T get(Class<T> type, String id);
+
+    // the cached object even if its time-to-live has passed, for serving the last
+    // known state while Stripe is unavailable; null if never cached or invalidated
+    default <T extends HasId> T getStale(Class<T> type, String id) {
+        return get(type, id);
+    }
+
+    <T extends HasId> void put(Class<T> type, T object);
+
+    void invalidate(Class<? extends HasId> type, String id);
+
+    void invalidateAll();
+
+    StripeCacheStats stats();
+}
@@ -0,0 +1,273 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.RateLimitException;
+import com.stripe.exception.StripeException;
+import com.stripe.net.RequestOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Every Stripe request made by this library goes through here. Requests are
+// sent with the RequestOptions of the account they are made for and paced by a
+// token bucket per account, as Stripe rate-limits each account separately
+// (stripe.rateLimit.*). Rate-limit, lock-timeout and connection failures are
+// retried with jittered exponential backoff (stripe.retry.*). Writes carry an
+// idempotency key that stays the same across retries, so a retried create can
+// never be applied twice. Every attempt is timed and failures are counted
+// through StripeMetrics.
+//
+// So that a slow or failing Stripe can't tie up every caller, each operation
+// has a circuit breaker (stripe.circuit.*) that starts rejecting calls once
+// too many attempts fail with transient errors, and reads and writes each have
+// a bulkhead capping how many calls are in flight at once (stripe.bulkhead.*).
+// Rejected calls fail immediately with a StripeCallRejectedException.
+@Component
+public class StripeRequestExecutor implements InitializingBean {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StripeMetrics metrics;
+
+    @Autowired
+    private StripeAccounts accounts;
+
+    @Value("${stripe.rateLimit.requestsPerSecond:80}")
+    private double requestsPerSecond;
+
+    @Value("${stripe.rateLimit.burst:20}")
+    private int burst;
+
+    @Value("${stripe.retry.maxAttempts:4}")
+    private int maxAttempts;
+
+    @Value("${stripe.retry.initialBackoffMillis:250}")
+    private long initialBackoffMillis;
+
+    @Value("${stripe.retry.maxBackoffMillis:5000}")
+    private long maxBackoffMillis;
+
+    @Value("${stripe.circuit.enabled:true}")
+    private boolean circuitEnabled;
+
+    @Value("${stripe.circuit.windowSize:50}")
+    private int circuitWindowSize;
+
+    @Value("${stripe.circuit.minimumCalls:20}")
+    private int circuitMinimumCalls;
+
+    @Value("${stripe.circuit.failureRatePercent:50}")
+    private int circuitFailureRatePercent;
+
+    @Value("${stripe.circuit.openMillis:30000}")
+    private long circuitOpenMillis;
+
+    @Value("${stripe.circuit.halfOpenCalls:3}")
+    private int circuitHalfOpenCalls;
+
+    @Value("${stripe.bulkhead.maxConcurrentReads:32}")
+    private int maxConcurrentReads;
+
+    @Value("${stripe.bulkhead.maxConcurrentWrites:16}")
+    private int maxConcurrentWrites;
+
+    @Value("${stripe.bulkhead.maxWaitMillis:50}")
+    private long bulkheadMaxWaitMillis;
+
+    // account name -> bucket; empty when rate limiting is disabled
+    private final ConcurrentMap<String, TokenBucket> tokenBuckets = new ConcurrentHashMap<>();
+
+    // operation -> breaker
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+
+    private boolean rateLimited;
+
+    private Semaphore readPermits;
+
+    private Semaphore writePermits;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        rateLimited = requestsPerSecond > 0;
+        readPermits = new Semaphore(Math.max(1, maxConcurrentReads));
+        writePermits = new Semaphore(Math.max(1, maxConcurrentWrites));
+        metrics.registerBulkhead("read", readPermits);
+        metrics.registerBulkhead("write", writePermits);
+    }
+
+    // GET requests on the default account
+    public <T> T read(String operation, StripeCall<T> call) throws StripeException {
+        return read(accounts.getDefault(), operation, call);
+    }
+
+    // POST requests on the default account
+    public <T> T write(String operation, StripeCall<T> call) throws StripeException {
+        return write(accounts.getDefault(), operation, call);
+    }
+
+    // DELETE requests on the default account
+    public <T> T delete(String operation, StripeCall<T> call) throws StripeException {
+        return delete(accounts.getDefault(), operation, call);
+    }
+
+    // GET requests
+    public <T> T read(StripeAccount account, String operation, StripeCall<T> call) throws StripeException {
+        return execute(account, operation, readPermits, account.requestOptions(null), call);
+    }
+
+    // POST requests; sent with an idempotency key
+    public <T> T write(StripeAccount account, String operation, StripeCall<T> call) throws StripeException {
+        return write(account, operation, null, call);
+    }
+
+    // POST requests with the caller's idempotency key, for writes that must be
+    // applied once even if they are sent again later; null for a random key
+    public <T> T write(StripeAccount account, String operation, String idempotencyKey, StripeCall<T> call) throws StripeException {
+        String key = idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString();
+        return execute(account, operation, writePermits, account.requestOptions(key), call);
+    }
+
+    // DELETE requests; idempotent by definition, so sent without a key
+    public <T> T delete(StripeAccount account, String operation, StripeCall<T> call) throws StripeException {
+        return execute(account, operation, writePermits, account.requestOptions(null), call);
+    }
+
+    private <T> T execute(StripeAccount account, String operation, Semaphore bulkhead, RequestOptions options,
+                          StripeCall<T> call) throws StripeException {
+        CircuitBreaker breaker = circuitEnabled ? breaker(operation) : null;
+        for (int attempt = 1; ; attempt++) {
+            acquire(account, operation);
+            enter(operation, bulkhead);
+            if (breaker != null && !breaker.tryAcquire()) {
+                bulkhead.release();
+                metrics.recordError(operation, StripeErrors.STRIPE_CIRCUIT_OPEN);
+                throw StripeCallRejectedException.circuitOpen(operation);
+            }
+            long started = metrics.requestStarted();
+            StripeException failure;
+            try {
+                T result = call.call(options);
+                metrics.recordRequest(operation, started, true);
+                if (breaker != null) {
+                    breaker.onSuccess();
+                }
+                return result;
+            } catch (StripeException e) {
+                metrics.recordRequest(operation, started, false);
+                StripeErrors error = StripeErrors.from(e);
+                boolean retryable = isRetryable(e, error);
+                // declines and invalid requests mean Stripe is up and answering
+                if (breaker != null) {
+                    if (retryable) {
+                        breaker.onFailure();
+                    } else {
+                        breaker.onSuccess();
+                    }
+                }
+                if (attempt >= maxAttempts || !retryable) {
+                    metrics.recordError(operation, error);
+                    throw e;
+                }
+                failure = e;
+            } catch (RuntimeException e) {
+                metrics.recordRequest(operation, started, false);
+                if (breaker != null) {
+                    breaker.onFailure();
+                }
+                throw e;
+            } finally {
+                bulkhead.release();
+            }
+            // back off without holding a bulkhead permit
+            metrics.recordRetry(operation);
+            long backoff = backoffMillis(attempt);
+            logger.warn("Stripe: {} failed ({}), retrying in {} ms ({}/{})", operation, failure.getCode(), backoff, attempt, maxAttempts);
+            sleep(operation, backoff, failure);
+        }
+    }
+
+    private CircuitBreaker breaker(String operation) {
+        return breakers.computeIfAbsent(operation, name -> {
+            CircuitBreaker breaker = new CircuitBreaker(name, circuitWindowSize, circuitMinimumCalls,
+                    circuitFailureRatePercent, circuitOpenMillis, circuitHalfOpenCalls, this::onCircuitTransition);
+            metrics.registerCircuitBreaker(name, breaker);
+            return breaker;
+        });
+    }
+
+    private void onCircuitTransition(String operation, CircuitBreaker.State from, CircuitBreaker.State to) {
+        if (to == CircuitBreaker.State.OPEN) {
+            logger.warn("Stripe: circuit for {} opened (was {}), rejecting calls for {} ms", operation, from, circuitOpenMillis);
+        } else {
+            logger.info("Stripe: circuit for {} is {} (was {})", operation, to, from);
+        }
+        metrics.recordCircuitTransition(operation, from, to);
+    }
+
+    private void enter(String operation, Semaphore bulkhead) throws StripeException {
+        try {
+            if (!bulkhead.tryAcquire(bulkheadMaxWaitMillis, TimeUnit.MILLISECONDS)) {
+                metrics.recordError(operation, StripeErrors.STRIPE_BULKHEAD_FULL);
+                throw StripeCallRejectedException.bulkheadFull(operation);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApiConnectionException("Interrupted waiting to call Stripe: " + operation, e);
+        }
+    }
+
+    private void acquire(StripeAccount account, String operation) throws StripeException {
+        if (!rateLimited) {
+            return;
+        }
+        try {
+            tokenBuckets.computeIfAbsent(account.getName(), name -> new TokenBucket(requestsPerSecond, burst)).acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ApiConnectionException("Interrupted waiting to call Stripe: " + operation, e);
+        }
+    }
+
+    private void sleep(String operation, long millis, StripeException failure) throws StripeException {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw failure;
+        }
+    }
+
+    // half the exponential delay plus up to the same again at random
+    private long backoffMillis(int attempt) {
+        long delay = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(attempt - 1, 20));
+        long half = delay / 2;
+        return half + ThreadLocalRandom.current().nextLong(delay - half + 1);
+    }
+
+    // the error table decides for known codes; status and exception type cover
+    // failures Stripe sent without a code
+    private static boolean isRetryable(StripeException e, StripeErrors error) {
+        if (e instanceof StripeCallRejectedException) {
+            return false;
+        }
+        if (error.retryable() || e instanceof RateLimitException || e instanceof ApiConnectionException) {
+            return true;
+        }
+        if (error != StripeErrors.STRIPE_UNKNOWN_ERROR) {
+            return false;
+        }
+        Integer status = e.getStatusCode();
+        return status != null && (status == 429 || status >= 500);
+    }
+}
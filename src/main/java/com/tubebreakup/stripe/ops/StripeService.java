@@ -1,11 +1,9 @@
 package com.tubebreakup.stripe.ops;
 
-import com.stripe.Stripe;
 import com.stripe.exception.StripeException;
 import com.stripe.model.*;
 import com.stripe.param.*;
 import com.tubebreakup.exception.CommonErrors;
-import com.tubebreakup.exception.ErrorCode;
 import com.tubebreakup.exception.ErrorCodedHttpException;
 import com.tubebreakup.model.ExternalEntity;
 import com.tubebreakup.model.NameProvider;
@@ -15,19 +13,20 @@ import com.tubebreakup.stripe.SubscriptionMetaProvider;
 import com.tubebreakup.stripe.SubscriptionUpdateResult;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.List;
+import java.util.function.Supplier;
 
 @Service
-public class StripeService implements InitializingBean {
+public class StripeService {
 
     private Logger logger = LoggerFactory.getLogger(getClass());
 
@@ -36,37 +35,46 @@ public class StripeService implements InitializingBean {
     @Autowired
     private AppConfigManager appConfigManager;
 
-    @Value("${stripe.secretApiKey}")
-    private String secretApiKey;
+    @Autowired
+    private StripeObjectCache cache;
 
-    @Override
-    public void afterPropertiesSet() throws Exception {
-        Stripe.apiKey = secretApiKey;
-    }
+    @Autowired
+    private StripeRequestExecutor executor;
+
+    @Autowired
+    private WebhookEndpointReconciler webhookEndpointReconciler;
+
+    @Autowired
+    private StripeAccounts accounts;
+
+    @Autowired
+    private CardExpirationIndex cardExpirationIndex;
+
+    @Autowired
+    private ProrationPreviewCache prorationPreviews;
+
+    @Autowired
+    private StripeCatalog catalog;
+
+    @Autowired
+    private SubscriptionProjection projection;
+
+    @Autowired
+    private StripeFailureLogger failureLogger;
+
+    @Autowired
+    private IdempotentResultCache idempotentResults;
+
+    // previews requested within the same window share a proration date, and so a cache entry
+    @Value("${stripe.preview.prorationWindowSeconds:60}")
+    private long prorationWindowSeconds;
+
+    // organization uuid -> in-flight customer fetch/create
+    private final SingleFlight<String, com.stripe.model.Customer> customerFlights = new SingleFlight<>();
 
     public String createWebhookEndpointIfNecessary() {
-        String url = "https://api.talentdrop.com:8080/webhooks";
-        WebhookEndpoint webhookEndpoint = fetchWebhookEndpoint(url);
-        if (webhookEndpoint != null) {
-            return webhookEndpoint.getId();
-        }
         try {
-            WebhookEndpointCreateParams.EnabledEvent[] events = {
-                    WebhookEndpointCreateParams.EnabledEvent.PAYMENT_INTENT__SUCCEEDED,
-                    WebhookEndpointCreateParams.EnabledEvent.PAYMENT_METHOD__ATTACHED,
-                    WebhookEndpointCreateParams.EnabledEvent.INVOICE__PAYMENT_ACTION_REQUIRED,
-                    WebhookEndpointCreateParams.EnabledEvent.INVOICE__PAYMENT_FAILED,
-                    WebhookEndpointCreateParams.EnabledEvent.INVOICE__UPCOMING,
-                    WebhookEndpointCreateParams.EnabledEvent.INVOICE__PAYMENT_SUCCEEDED,
-                    WebhookEndpointCreateParams.EnabledEvent.CUSTOMER__SUBSCRIPTION__UPDATED, };
-
-            WebhookEndpointCreateParams params = WebhookEndpointCreateParams.builder()
-                    .setUrl(url)
-                    .addAllEnabledEvent(Arrays.asList(events))
-                    .build();
-
-            webhookEndpoint = WebhookEndpoint.create(params);
-            return webhookEndpoint.getId();
+            return webhookEndpointReconciler.reconcile();
         } catch (StripeException e) {
             logger.error("Failed communicating with payment service", e);
             throw new ErrorCodedHttpException(HttpStatus.INTERNAL_SERVER_ERROR, CommonErrors.SERVER_ERROR,
@@ -75,22 +83,8 @@ public class StripeService implements InitializingBean {
     }
 
     public WebhookEndpoint fetchWebhookEndpoint(String url) {
-        if (url == null) {
-            return null;
-        }
         try {
-            WebhookEndpointListParams params = WebhookEndpointListParams.builder()
-                    .build();
-            WebhookEndpointCollection collection = WebhookEndpoint.list(params);
-            List<WebhookEndpoint> endpoints = collection.getData();
-            if (endpoints != null) {
-                for (WebhookEndpoint endpoint: endpoints) {
-                    if (url.equals(endpoint.getUrl())) {
-                        return endpoint;
-                    }
-                }
-            }
-            return null;
+            return webhookEndpointReconciler.find(url);
         } catch (StripeException e) {
             logger.error("Failed communicating with payment service", e);
             throw new ErrorCodedHttpException(HttpStatus.INTERNAL_SERVER_ERROR, CommonErrors.SERVER_ERROR,
@@ -103,12 +97,40 @@ public class StripeService implements InitializingBean {
     // updates the organization's customer object
     // updates the organization's payment method object
     public void createSubscription(NameProvider user, LocalOrganization organization, SubscriptionMetaProvider metaProvider, Long trialDays) {
+        provisionSubscription(user, organization, metaProvider, trialDays);
+    }
+
+    // createSubscription with a client-supplied idempotency token (one per user
+    // intent): a repeat of the token, from a double submit or a client retry, gets
+    // the first call's result, waiting for it if it is still in flight, instead of
+    // creating again. The token is also part of the Stripe idempotency key, so a
+    // repeat this node no longer remembers isn't applied twice either.
+    // null when skipped
+    public SubscriptionUpdateResult createSubscription(NameProvider user, LocalOrganization organization, SubscriptionMetaProvider metaProvider,
+                                                       Long trialDays, String idempotencyToken) {
+        if (idempotencyToken == null) {
+            return provisionSubscription(user, organization, metaProvider, trialDays);
+        }
+        String idempotencyKey = idempotencyKey("subscription.create", organization, idempotencyToken);
+        IdempotentResultCache.Outcome outcome = idempotentResults.execute(idempotencyKey,
+                () -> provisionSubscription(user, organization, metaProvider, trialDays, idempotencyKey));
+        return applyShared(organization, outcome);
+    }
+
+    // same as createSubscription, but returns the applied result (null when skipped)
+    SubscriptionUpdateResult provisionSubscription(NameProvider user, LocalOrganization organization, SubscriptionMetaProvider metaProvider, Long trialDays) {
+        return provisionSubscription(user, organization, metaProvider, trialDays, null);
+    }
+
+    // a null idempotencyKey gets a random one
+    SubscriptionUpdateResult provisionSubscription(NameProvider user, LocalOrganization organization, SubscriptionMetaProvider metaProvider,
+                                                   Long trialDays, String idempotencyKey) {
         if (organization.getLocalPaymentMethod() == null || organization.getLocalPaymentMethod().getExternalId() == null) {
             logger.info("Stripe: skipped creating subscription: no payment method ({}) ({})", organization.getUuid(), user.getEmail());
-            return;
+            return null;
         }
         if (organization.getLocalCustomer() == null || organization.getLocalCustomer().getExternalId() == null) {
-            createCustomerIfNecessary(user, organization);
+            createCustomerIfNecessary(user.getEmail(), organization);
         }
 
         Long quantity = metaProvider.getQuantity();
@@ -123,33 +145,67 @@ public class StripeService implements InitializingBean {
                 .setDefaultPaymentMethod(organization.getLocalPaymentMethod().getExternalId())
                 .addItem(item)
                 .setCancelAtPeriodEnd(false)
-                .addExpand("latest_invoice.payment_intent")
+                .addExpand(StripeFetchContext.LATEST_INVOICE_PAYMENT_INTENT)
 
                 .setCollectionMethod(SubscriptionCreateParams.CollectionMethod.CHARGE_AUTOMATICALLY)
                 .setCustomer(organization.getLocalCustomer().getExternalId())
                 .setTrialPeriodDays(trialDays != null ? trialDays : 0l)
                 .build();
+        StripeAccount account = accounts.forOrganization(organization);
         try {
-            com.stripe.model.Subscription subscription = com.stripe.model.Subscription.create(params);
-            organization.updateFrom(buildSubscriptionUpdateResult(subscription));
+            catalog.check(account, priceId, quantity);
+            com.stripe.model.Subscription subscription = executor.write(account, "subscription.create", idempotencyKey,
+                    options -> com.stripe.model.Subscription.create(params, options));
+            cache.put(com.stripe.model.Subscription.class, subscription);
+            projection.apply(subscription);
+            SubscriptionUpdateResult result = buildSubscriptionUpdateResult(subscription);
+            organization.updateFrom(result);
+            return result;
         } catch (StripeException e) {
-            logger.error("Stripe: failed creating subscription ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed creating subscription", user.getEmail(), e);
             throw buildException(e, "Stripe: failed creating subscription");
         }
     }
 
-    private SubscriptionUpdateResult buildSubscriptionUpdateResult(Subscription subscription) {
+    // trialing and free subscriptions have no payment intent on their latest invoice
+    static SubscriptionUpdateResult buildSubscriptionUpdateResult(Subscription subscription) {
+        Invoice invoice = subscription.getLatestInvoiceObject();
+        PaymentIntent intent = invoice != null ? invoice.getPaymentIntentObject() : null;
         return new SubscriptionUpdateResult(subscription.getId(),
                 subscription.getStatus(),
-                subscription.getLatestInvoiceObject().getPaymentIntentObject().getId(),
-                subscription.getLatestInvoiceObject().getPaymentIntentObject().getStatus());
+                intent != null ? intent.getId() : null,
+                intent != null ? intent.getStatus() : null);
     }
 
+    // served from the cache when possible; the latest invoice and its payment intent are expanded
+    // while Stripe calls are being rejected the last known state is returned, if there is one
     public com.stripe.model.Subscription getSubscription(String id) {
+        return getSubscription(accounts.getDefault(), id);
+    }
+
+    public com.stripe.model.Subscription getSubscription(StripeAccount account, String id) {
+        com.stripe.model.Subscription subscription = cache.get(com.stripe.model.Subscription.class, id);
+        if (subscription != null) {
+            return subscription;
+        }
         try {
-            return com.stripe.model.Subscription.retrieve(id);
+            SubscriptionRetrieveParams params = SubscriptionRetrieveParams.builder()
+                    .addExpand(StripeFetchContext.LATEST_INVOICE_PAYMENT_INTENT)
+                    .build();
+            subscription = executor.read(account, "subscription.retrieve",
+                    options -> com.stripe.model.Subscription.retrieve(id, params, options));
+            cache.put(com.stripe.model.Subscription.class, subscription);
+            return subscription;
+        } catch (StripeCallRejectedException e) {
+            com.stripe.model.Subscription stale = cache.getStale(com.stripe.model.Subscription.class, id);
+            if (stale != null) {
+                logger.info("Stripe: serving last known subscription ({}): {}", id, e.getMessage());
+                return stale;
+            }
+            failureLogger.log(logger, "Stripe: failed getting subscription", id, e);
+            throw buildException(e, "Stripe: failed getting subscription");
         } catch (StripeException e) {
-            logger.error("Stripe: failed getting subscription", e);
+            failureLogger.log(logger, "Stripe: failed getting subscription", id, e);
             throw buildException(e, "Stripe: failed getting subscription");
         }
     }
@@ -158,18 +214,133 @@ public class StripeService implements InitializingBean {
     // updates the organization's customer object
     // updates the organization's payment method object
     public void updateSubscriptionPlan(NameProvider user, LocalOrganization organization, SubscriptionMetaProvider metaProvider) {
+        try {
+            applySubscriptionPlan(user.getEmail(), organization, metaProvider, System.currentTimeMillis() / 1000L, null);
+        } catch (StripeException e) {
+            failureLogger.log(logger, "Stripe: failed updating subscription", user.getEmail(), e);
+            throw buildException(e, "Stripe: failed updating subscription");
+        }
+    }
+
+    // updateSubscriptionPlan with a client-supplied idempotency token; repeats are
+    // answered as for createSubscription. Stripe replays a key only for identical
+    // parameters, so the change is prorated as of when Stripe applies it rather
+    // than as of each attempt. null when skipped
+    public SubscriptionUpdateResult updateSubscriptionPlan(NameProvider user, LocalOrganization organization, SubscriptionMetaProvider metaProvider,
+                                                           String idempotencyToken) {
+        return updateSubscriptionPlan(user, organization, metaProvider, null, idempotencyToken);
+    }
+
+    // updateSubscriptionPlan prorated as of prorationDate (epoch seconds), e.g. the
+    // ProrationPreview's the customer accepted, so they're invoiced what they were shown.
+    // The same date on every attempt, so it's kept with an idempotency token too
+    public SubscriptionUpdateResult updateSubscriptionPlan(NameProvider user, LocalOrganization organization, SubscriptionMetaProvider metaProvider,
+                                                           Long prorationDate, String idempotencyToken) {
+        String idempotencyKey = idempotencyToken != null
+                ? idempotencyKey("subscription.update", organization, idempotencyToken) : null;
+        Supplier<SubscriptionUpdateResult> update = () -> {
+            try {
+                Long proratedAt = prorationDate != null ? prorationDate
+                        : idempotencyKey != null ? null : System.currentTimeMillis() / 1000L;
+                return applySubscriptionPlan(user.getEmail(), organization, metaProvider, proratedAt, idempotencyKey);
+            } catch (StripeException e) {
+                failureLogger.log(logger, "Stripe: failed updating subscription", user.getEmail(), e);
+                throw buildException(e, "Stripe: failed updating subscription");
+            }
+        };
+        if (idempotencyKey == null) {
+            return update.get();
+        }
+        return applyShared(organization, idempotentResults.execute(idempotencyKey, update));
+    }
+
+    // scoped by operation and organization, so a token reused elsewhere can't replay another write
+    private static String idempotencyKey(String operation, LocalOrganization organization, String idempotencyToken) {
+        return operation + ":" + organization.getUuid() + ":" + idempotencyToken;
+    }
+
+    // a repeat may come with its own copy of the organization; the caller that ran
+    // the write already had updateFrom called on its copy, so it isn't called twice
+    private static SubscriptionUpdateResult applyShared(LocalOrganization organization, IdempotentResultCache.Outcome outcome) {
+        SubscriptionUpdateResult result = outcome.getResult();
+        if (result != null && !outcome.isRan()) {
+            organization.updateFrom(result);
+        }
+        return result;
+    }
+
+    // one key per write of a multi-write operation; null (a fresh key per call) without one
+    private static String stepKey(String idempotencyKey, String step) {
+        return idempotencyKey != null ? idempotencyKey + ":" + step : null;
+    }
+
+    // what updateSubscriptionPlan would invoice for this plan and quantity, as of the
+    // start of the current proration window; null when the organization has no subscription
+    public ProrationPreview previewSubscriptionPlan(NameProvider user, LocalOrganization organization, SubscriptionMetaProvider metaProvider) {
+        String subscriptionId = organization.getLocalSubscription().getExternalId();
+        if (subscriptionId == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis() / 1000L;
+        long prorationDate = now - now % Math.max(1, prorationWindowSeconds);
+        String priceId = metaProvider.getPriceId();
+        Long quantity = metaProvider.getQuantity();
+        StripeAccount account = accounts.forOrganization(organization);
+        return prorationPreviews.get(subscriptionId, priceId, quantity, prorationDate, () -> {
+            try {
+                return fetchProrationPreview(account, subscriptionId, priceId, quantity, prorationDate);
+            } catch (StripeException e) {
+                failureLogger.log(logger, "Stripe: failed previewing subscription change", user.getEmail(), e);
+                throw buildException(e, "Stripe: failed previewing subscription change");
+            }
+        });
+    }
+
+    private ProrationPreview fetchProrationPreview(StripeAccount account, String subscriptionId, String priceId,
+                                                   Long quantity, long prorationDate) throws StripeException {
+        com.stripe.model.Subscription subscription = getSubscription(account, subscriptionId);
+        InvoiceUpcomingParams.SubscriptionItem.Builder item = InvoiceUpcomingParams.SubscriptionItem.builder()
+                .setPrice(priceId)
+                .setQuantity(quantity);
+        if (subscription.getItems() != null && !subscription.getItems().getData().isEmpty()) {
+            item.setId(subscription.getItems().getData().get(0).getId());
+        }
+        InvoiceUpcomingParams params = InvoiceUpcomingParams.builder()
+                .setCustomer(subscription.getCustomer())
+                .setSubscription(subscriptionId)
+                .addSubscriptionItem(item.build())
+                .setSubscriptionProrationDate(prorationDate)
+                .setSubscriptionProrationBehavior(InvoiceUpcomingParams.SubscriptionProrationBehavior.CREATE_PRORATIONS)
+                .build();
+        Invoice invoice = executor.read(account, "invoice.upcoming", options -> Invoice.upcoming(params, options));
+
+        long prorationAmount = 0;
+        if (invoice.getLines() != null) {
+            for (InvoiceLineItem line : invoice.getLines().getData()) {
+                if (Boolean.TRUE.equals(line.getProration()) && line.getAmount() != null) {
+                    prorationAmount += line.getAmount();
+                }
+            }
+        }
+        return new ProrationPreview(subscriptionId, priceId, quantity, prorationDate, invoice.getCurrency(),
+                prorationAmount, invoice.getTotal(), invoice.getAmountDue());
+    }
+
+    // prorates as of prorationDate (epoch seconds; null for when Stripe applies it);
+    // a null idempotencyKey gets a random one. Returns the applied result, null when skipped
+    SubscriptionUpdateResult applySubscriptionPlan(String email, LocalOrganization organization, SubscriptionMetaProvider metaProvider,
+                                                   Long prorationDate, String idempotencyKey) throws StripeException {
         if (organization.getLocalSubscription().getExternalId() == null) {
-            return;
+            return null;
         }
         if (organization.getLocalPaymentMethod().getExternalId() == null) {
-            logger.info("Stripe: skipped creating subscription: no payment method ({}) ({})", organization.getUuid(), user.getEmail());
-            return;
+            logger.info("Stripe: skipped creating subscription: no payment method ({}) ({})", organization.getUuid(), email);
+            return null;
         }
         if (organization.getLocalCustomer().getExternalId() == null) {
-            createCustomerIfNecessary(user, organization);
+            createCustomerIfNecessary(email, organization);
         }
 
-        Long prorationDate = System.currentTimeMillis() / 1000L;
         Long quantity = metaProvider.getQuantity();
         String priceId = metaProvider.getPriceId();
 
@@ -183,51 +354,87 @@ public class StripeService implements InitializingBean {
                 .setProrationDate(prorationDate)
                 .addItem(item)
                 .setCancelAtPeriodEnd(false)
-                .addExpand("latest_invoice.payment_intent")
+                .addExpand(StripeFetchContext.LATEST_INVOICE_PAYMENT_INTENT)
                 .build();
 
+        StripeAccount account = accounts.forOrganization(organization);
+        catalog.check(account, priceId, quantity);
+        com.stripe.model.Subscription subscription = executor.write(account, "subscription.update", idempotencyKey,
+                options -> subscriptionRef(organization.getLocalSubscription().getExternalId()).update(params, options));
+        cache.put(com.stripe.model.Subscription.class, subscription);
+        prorationPreviews.invalidate(subscription.getId());
+        projection.apply(subscription);
+        SubscriptionUpdateResult result = buildSubscriptionUpdateResult(subscription);
+        organization.updateFrom(result);
+        return result;
+    }
+
+    // cancel the subscription
+    public void cancelSubscription(NameProvider user, LocalOrganization organization) {
         try {
-            com.stripe.model.Subscription subscription = com.stripe.model.Subscription.retrieve(organization.getLocalSubscription().getExternalId());
-            subscription = subscription.update(params);
-            organization.updateFrom(buildSubscriptionUpdateResult(subscription));
+            applyCancellation(organization);
         } catch (StripeException e) {
-            logger.error("Stripe: failed updating subscription ({})", user.getEmail(), e);
-            throw buildException(e, "Stripe: failed updating subscription");
+            failureLogger.log(logger, "Stripe: failed cancelling subscription", user.getEmail(), e);
+            throw buildException(e, "Stripe: failed cancelling subscription");
         }
     }
 
-    // cancel the subscription
-    public void cancelSubscription(NameProvider user, LocalOrganization organization) {
+    void applyCancellation(LocalOrganization organization) throws StripeException {
         if (!StringUtils.hasLength(organization.getLocalSubscription().getExternalId())) {
             return;
         }
+        String subscriptionId = organization.getLocalSubscription().getExternalId();
+        StripeAccount account = accounts.forOrganization(organization);
+        com.stripe.model.Subscription cancelled = executor.delete(account, "subscription.cancel",
+                options -> subscriptionRef(subscriptionId).cancel(SubscriptionCancelParams.builder().build(), options));
+        cache.invalidate(com.stripe.model.Subscription.class, subscriptionId);
+        prorationPreviews.invalidate(subscriptionId);
+        projection.remove(subscriptionId);
+        // reported like any other status change, so it reaches the host even when
+        // the organization is a copy (the outbox's, from LocalOrganizationLookup)
+        organization.updateFrom(buildSubscriptionUpdateResult(cancelled));
+        organization.getLocalSubscription().setExternalId(null);
+    }
+
+    // fails the way updateSubscriptionPlan would for a price or quantity the
+    // catalog rejects, without writing anything
+    void checkSubscriptionPlan(String email, LocalOrganization organization, SubscriptionMetaProvider metaProvider) {
         try {
-            com.stripe.model.Subscription sub = com.stripe.model.Subscription.retrieve(organization.getLocalSubscription().getExternalId());
-            sub.cancel();
-            organization.getLocalSubscription().setExternalId(null);
+            catalog.check(accounts.forOrganization(organization), metaProvider.getPriceId(), metaProvider.getQuantity());
         } catch (StripeException e) {
-            logger.error("Stripe: failed cancelling subscription ({})", user.getEmail(), e);
-            throw buildException(e, "Stripe: failed cancelling subscription");
+            failureLogger.log(logger, "Stripe: rejected subscription plan", email, e);
+            throw buildException(e, "Stripe: rejected subscription plan");
         }
     }
 
     // create the customer
-    private com.stripe.model.Customer createCustomerIfNecessary(NameProvider user, LocalOrganization organization) {
-        com.stripe.model.Customer cust = fetchCustomer(user, organization);
+    // concurrent calls for the same organization share one fetch/create; callers
+    // holding their own copy of the organization get the shared customer's id
+    private com.stripe.model.Customer createCustomerIfNecessary(String email, LocalOrganization organization) {
+        com.stripe.model.Customer cust = customerFlights.execute(organization.getUuid(),
+                () -> fetchOrCreateCustomer(email, organization));
+        if (organization.getLocalCustomer().getExternalId() == null) {
+            organization.getLocalCustomer().setExternalId(cust.getId());
+        }
+        return cust;
+    }
+
+    private com.stripe.model.Customer fetchOrCreateCustomer(String email, LocalOrganization organization) {
+        com.stripe.model.Customer cust = fetchCustomer(email, organization);
         if (cust != null) {
-            cust = updateCustomer(cust, user, organization);
+            cust = updateCustomer(cust, email, organization);
         } else {
-            cust = createCustomer(user, organization);
+            cust = createCustomer(email, organization);
         }
         if (organization.getLocalCustomer().getExternalId() == null) {
-            logger.info("Stripe: skipped creating subscription: Failed to create backend payment provider customer object ({}) ({})", organization.getUuid(), user.getEmail());
+            logger.info("Stripe: skipped creating subscription: Failed to create backend payment provider customer object ({}) ({})", organization.getUuid(), email);
             throw new ErrorCodedHttpException(HttpStatus.INTERNAL_SERVER_ERROR, CommonErrors.SERVER_ERROR,
                     "Stripe: Failed to create backend payment provider customer object");
         }
         return cust;
     }
 
-    private com.stripe.model.Customer fetchCustomer(NameProvider user, LocalOrganization organization) {
+    private com.stripe.model.Customer fetchCustomer(String email, LocalOrganization organization) {
         if (organization == null || organization.getLocalCustomer() == null) {
             return null;
         }
@@ -235,15 +442,22 @@ public class StripeService implements InitializingBean {
         if (!StringUtils.hasLength(customer.getExternalId())) {
             return null;
         }
+        com.stripe.model.Customer cached = cache.get(com.stripe.model.Customer.class, customer.getExternalId());
+        if (cached != null) {
+            return cached;
+        }
         try {
-            return com.stripe.model.Customer.retrieve(customer.getExternalId());
+            com.stripe.model.Customer cust = executor.read(accounts.forOrganization(organization), "customer.retrieve",
+                    options -> com.stripe.model.Customer.retrieve(customer.getExternalId(), options));
+            cache.put(com.stripe.model.Customer.class, cust);
+            return cust;
         } catch (StripeException e) {
-            logger.error("Stripe: failed fetching customer ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed fetching customer", email, e);
             throw buildException(e, "Stripe: failed fetching customer");
         }
     }
 
-    private com.stripe.model.Customer createCustomer(NameProvider user, LocalOrganization organization) {
+    private com.stripe.model.Customer createCustomer(String email, LocalOrganization organization) {
 
         String paymentMethodId = organization.getLocalPaymentMethod().getExternalId();
 
@@ -252,25 +466,31 @@ public class StripeService implements InitializingBean {
                 .build();
 
         CustomerCreateParams params = CustomerCreateParams.builder()
-                .setEmail(user.getEmail())
+                .setEmail(email)
                 .putMetadata(organizationKey, organization.getUuid())
                 .setDescription(organization.getName())
                 .setPaymentMethod(paymentMethodId)
                 .setInvoiceSettings(invoiceSettings)
                 .build();
 
+        // one customer per organization, even when a create that reached Stripe is
+        // retried here or on another node; the payment method is part of the key
+        // since Stripe refuses a key replayed with different parameters
+        String idempotencyKey = "customer.create:" + organization.getUuid() + ":" + paymentMethodId;
         try {
-            com.stripe.model.Customer customer = com.stripe.model.Customer.create(params);
+            com.stripe.model.Customer customer = executor.write(accounts.forOrganization(organization), "customer.create",
+                    idempotencyKey, options -> com.stripe.model.Customer.create(params, options));
+            cache.put(com.stripe.model.Customer.class, customer);
             organization.getLocalCustomer().setExternalId(customer.getId());
             return customer;
         } catch (StripeException e) {
-            logger.error("Stripe: failed creating customer ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed creating customer", email, e);
             throw buildException(e, "Stripe: failed creating customer");
         }
     }
 
 
-    private com.stripe.model.Customer updateCustomer(com.stripe.model.Customer customer, NameProvider user, LocalOrganization organization) {
+    private com.stripe.model.Customer updateCustomer(com.stripe.model.Customer customer, String email, LocalOrganization organization) {
 
         String paymentMethodId = organization.getLocalPaymentMethod().getExternalId();
 
@@ -280,15 +500,17 @@ public class StripeService implements InitializingBean {
 
         CustomerUpdateParams params = CustomerUpdateParams.builder()
                 .setInvoiceSettings(invoiceSettings)
-                .setEmail(user.getEmail())
+                .setEmail(email)
                 .setDescription(organization.getName())
                 .build();
 
         try {
-            customer = customer.update(params);
-            return customer;
+            com.stripe.model.Customer updated = executor.write(accounts.forOrganization(organization), "customer.update",
+                    options -> customer.update(params, options));
+            cache.put(com.stripe.model.Customer.class, updated);
+            return updated;
         } catch (StripeException e) {
-            logger.error("Stripe: failed updating customer ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed updating customer", email, e);
             throw buildException(e, "Stripe: failed updating customer");
         }
     }
@@ -314,29 +536,37 @@ public class StripeService implements InitializingBean {
                     .setCard(cardDetails)
                     .build();
 
-            return com.stripe.model.PaymentMethod.create(params).getId();
+            return executor.write("payment_method.create",
+                    options -> com.stripe.model.PaymentMethod.create(params, options)).getId();
 
         } catch (StripeException e) {
-            logger.error("Stripe: failed creating payment method ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed creating payment method", user.getEmail(), e);
             throw buildException(e, "Stripe: failed creating payment method");
         }
     }
 
     private void attachPaymentMethod(NameProvider user, com.stripe.model.Customer customer, String paymentMethodId) {
         try {
-            com.stripe.model.PaymentMethod pm = com.stripe.model.PaymentMethod.retrieve(paymentMethodId);
-            pm.attach(PaymentMethodAttachParams.builder().setCustomer(customer.getId()).build());
+            PaymentMethodAttachParams params = PaymentMethodAttachParams.builder().setCustomer(customer.getId()).build();
+            com.stripe.model.PaymentMethod pm = executor.write("payment_method.attach",
+                    options -> paymentMethodRef(paymentMethodId).attach(params, options));
+            cache.put(com.stripe.model.PaymentMethod.class, pm);
         } catch (StripeException e) {
-            logger.error("Stripe: failed attaching payment method ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed attaching payment method", user.getEmail(), e);
             throw buildException(e, "Stripe: failed attaching customer");
         }
     }
 
     public com.stripe.model.PaymentMethod createPaymentMethod(NameProvider user, PaymentMethodCreateParams params) {
+        return createPaymentMethod(user, accounts.getDefault(), params);
+    }
+
+    public com.stripe.model.PaymentMethod createPaymentMethod(NameProvider user, StripeAccount account, PaymentMethodCreateParams params) {
         try {
-            return com.stripe.model.PaymentMethod.create(params);
+            return executor.write(account, "payment_method.create",
+                    options -> com.stripe.model.PaymentMethod.create(params, options));
         } catch (StripeException e) {
-            logger.error("Stripe: failed creating payment method ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed creating payment method", user.getEmail(), e);
             throw buildException(e, "Stripe: failed creating payment method");
         }
     }
@@ -346,25 +576,106 @@ public class StripeService implements InitializingBean {
             LocalPaymentMethod localPaymentMethod,
             String paymentMethodId
     ) {
+        return refreshPaymentMethod(user, accounts.getDefault(), localPaymentMethod, paymentMethodId);
+    }
+
+    public com.stripe.model.PaymentMethod refreshPaymentMethod(
+            NameProvider user,
+            StripeAccount account,
+            LocalPaymentMethod localPaymentMethod,
+            String paymentMethodId
+    ) {
 
         if (!StringUtils.hasLength(paymentMethodId)) {
             return null;
         }
 
         try {
-            com.stripe.model.PaymentMethod pm = com.stripe.model.PaymentMethod.retrieve(paymentMethodId);
-            localPaymentMethod.setExternalId(pm.getId());
-            localPaymentMethod.setType(pm.getType());
-            localPaymentMethod.setLast4(pm.getCard().getLast4());
-            localPaymentMethod.setExpirationMonth(pm.getCard().getExpMonth());
-            localPaymentMethod.setExpirationYear(pm.getCard().getExpYear());
+            com.stripe.model.PaymentMethod pm = cache.get(com.stripe.model.PaymentMethod.class, paymentMethodId);
+            if (pm == null) {
+                pm = retrievePaymentMethodOrStale(account, paymentMethodId);
+            }
+            cardExpirationIndex.index(pm);
+            copyPaymentMethod(pm, localPaymentMethod);
             return pm;
         } catch (StripeException e) {
-            logger.error("Stripe: failed refreshing payment method ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed refreshing payment method", user.getEmail(), e);
             throw buildException(e, "Stripe: failed refreshing payment method");
         }
     }
 
+    // Lists all of the organization's cards in as few calls as possible (one per
+    // hundred cards) instead of retrieving them one by one. Each card is cached
+    // and indexed, and the organization's own payment method, if it is a
+    // LocalPaymentMethod, is updated from its entry.
+    public List<com.stripe.model.PaymentMethod> refreshPaymentMethods(NameProvider user, LocalOrganization organization) {
+        String customerId = organization.getLocalCustomer() != null ? organization.getLocalCustomer().getExternalId() : null;
+        if (!StringUtils.hasLength(customerId)) {
+            return Collections.emptyList();
+        }
+        StripeAccount account = accounts.forOrganization(organization);
+        List<com.stripe.model.PaymentMethod> paymentMethods = new ArrayList<>();
+        try {
+            String startingAfter = null;
+            boolean hasMore = true;
+            while (hasMore) {
+                PaymentMethodListParams.Builder builder = PaymentMethodListParams.builder()
+                        .setCustomer(customerId)
+                        .setType(PaymentMethodListParams.Type.CARD)
+                        .setLimit(100L);
+                if (startingAfter != null) {
+                    builder.setStartingAfter(startingAfter);
+                }
+                PaymentMethodListParams params = builder.build();
+                PaymentMethodCollection page = executor.read(account, "payment_method.list",
+                        options -> com.stripe.model.PaymentMethod.list(params, options));
+                List<com.stripe.model.PaymentMethod> data = page.getData();
+                if (data == null || data.isEmpty()) {
+                    break;
+                }
+                paymentMethods.addAll(data);
+                startingAfter = data.get(data.size() - 1).getId();
+                hasMore = Boolean.TRUE.equals(page.getHasMore());
+            }
+        } catch (StripeException e) {
+            failureLogger.log(logger, "Stripe: failed refreshing payment methods", user.getEmail(), e);
+            throw buildException(e, "Stripe: failed refreshing payment methods");
+        }
+        ExternalEntity local = organization.getLocalPaymentMethod();
+        for (com.stripe.model.PaymentMethod pm : paymentMethods) {
+            cache.put(com.stripe.model.PaymentMethod.class, pm);
+            cardExpirationIndex.index(pm);
+            if (local instanceof LocalPaymentMethod && pm.getId().equals(local.getExternalId())) {
+                copyPaymentMethod(pm, (LocalPaymentMethod) local);
+            }
+        }
+        return paymentMethods;
+    }
+
+    private static void copyPaymentMethod(com.stripe.model.PaymentMethod pm, LocalPaymentMethod localPaymentMethod) {
+        localPaymentMethod.setExternalId(pm.getId());
+        localPaymentMethod.setType(pm.getType());
+        localPaymentMethod.setLast4(pm.getCard().getLast4());
+        localPaymentMethod.setExpirationMonth(pm.getCard().getExpMonth());
+        localPaymentMethod.setExpirationYear(pm.getCard().getExpYear());
+    }
+
+    private com.stripe.model.PaymentMethod retrievePaymentMethodOrStale(StripeAccount account, String paymentMethodId) throws StripeException {
+        try {
+            com.stripe.model.PaymentMethod pm = executor.read(account, "payment_method.retrieve",
+                    options -> com.stripe.model.PaymentMethod.retrieve(paymentMethodId, options));
+            cache.put(com.stripe.model.PaymentMethod.class, pm);
+            return pm;
+        } catch (StripeCallRejectedException e) {
+            com.stripe.model.PaymentMethod stale = cache.getStale(com.stripe.model.PaymentMethod.class, paymentMethodId);
+            if (stale == null) {
+                throw e;
+            }
+            logger.info("Stripe: serving last known payment method ({}): {}", paymentMethodId, e.getMessage());
+            return stale;
+        }
+    }
+
     public void updateSubscription(
             NameProvider user,
             LocalOrganization organization,
@@ -373,16 +684,52 @@ public class StripeService implements InitializingBean {
         if (pm == null) {
             return;
         }
-        voidInvoiceIfNecessary(user, organization);
+        StripeFetchContext context = newFetchContext(organization);
+        voidInvoiceIfNecessary(user, context);
         updateCustomerPaymentMethod(user, organization, pm);
-        updateInvoiceStatus(user, organization);
+        updateInvoiceStatus(user, context);
     }
 
+    // updateSubscription with a client-supplied idempotency token; repeats are
+    // answered as for createSubscription. Each write gets its own key derived
+    // from the token (<key>:invoice.void, <key>:invoice.pay, ...), so a repeat
+    // this node no longer remembers doesn't void, attach or pay a second time.
+    // The payment's result, or null when there was nothing to pay
+    public SubscriptionUpdateResult updateSubscription(NameProvider user, LocalOrganization organization,
+                                                       com.stripe.model.PaymentMethod pm, String idempotencyToken) {
+        if (pm == null) {
+            return null;
+        }
+        String idempotencyKey = idempotencyToken != null
+                ? idempotencyKey("subscription.update_payment_method", organization, idempotencyToken) : null;
+        Supplier<SubscriptionUpdateResult> update = () -> {
+            StripeFetchContext context = newFetchContext(organization);
+            voidInvoiceIfNecessary(user, context, idempotencyKey);
+            updateCustomerPaymentMethod(user, organization, pm, idempotencyKey);
+            return updateInvoiceStatus(user, context, idempotencyKey);
+        };
+        if (idempotencyKey == null) {
+            return update.get();
+        }
+        return applyShared(organization, idempotentResults.execute(idempotencyKey, update));
+    }
+
+    // reads fall back to the last known subscription while Stripe calls are being
+    // rejected, so a refresh then only fails if the subscription needs paying
     public void refreshSubscriptionStatus(NameProvider user, LocalOrganization organization) {
-        updateInvoiceStatus(user, organization);
+        updateInvoiceStatus(user, newFetchContext(organization).allowingStale());
     }
 
-    private void updateCustomerPaymentMethod(NameProvider user, LocalOrganization organization, com.stripe.model.PaymentMethod pm) {
+    StripeFetchContext newFetchContext(LocalOrganization organization) {
+        return new StripeFetchContext(organization, accounts.forOrganization(organization), cache, executor);
+    }
+
+    void updateCustomerPaymentMethod(NameProvider user, LocalOrganization organization, com.stripe.model.PaymentMethod pm) {
+        updateCustomerPaymentMethod(user, organization, pm, null);
+    }
+
+    private void updateCustomerPaymentMethod(NameProvider user, LocalOrganization organization,
+                                             com.stripe.model.PaymentMethod pm, String idempotencyKey) {
 
         if (pm == null) {
             return;
@@ -391,117 +738,151 @@ public class StripeService implements InitializingBean {
         com.stripe.model.Customer cust = null;
 
         if (organization.getLocalCustomer().getExternalId() == null) {
-            cust = createCustomerIfNecessary(user, organization);
+            cust = createCustomerIfNecessary(user.getEmail(), organization);
         }
 
         final String customerId = organization.getLocalCustomer().getExternalId();
+        StripeAccount account = accounts.forOrganization(organization);
 
         try {
-            if (cust == null) {
-                cust = com.stripe.model.Customer.retrieve(customerId);
-            }
+            final com.stripe.model.Customer target = cust != null ? cust : customerRef(customerId);
+            final com.stripe.model.PaymentMethod source = pm;
             PaymentMethodAttachParams attachParams = PaymentMethodAttachParams.builder()
                     .setCustomer(customerId)
                     .build();
 
-            pm = pm.attach(attachParams);
+            com.stripe.model.PaymentMethod attached = executor.write(account, "payment_method.attach",
+                    stepKey(idempotencyKey, "payment_method.attach"), options -> source.attach(attachParams, options));
+            cache.put(com.stripe.model.PaymentMethod.class, attached);
+            cardExpirationIndex.index(attached);
 
             CustomerUpdateParams.InvoiceSettings invoiceSettings = CustomerUpdateParams.InvoiceSettings.builder()
-                    .setDefaultPaymentMethod(pm.getId())
+                    .setDefaultPaymentMethod(attached.getId())
                     .build();
 
             CustomerUpdateParams customerParams = CustomerUpdateParams.builder()
                     .setInvoiceSettings(invoiceSettings)
                     .build();
-            cust.update(customerParams);
+            cust = executor.write(account, "customer.update", stepKey(idempotencyKey, "customer.update"),
+                    options -> target.update(customerParams, options));
+            cache.put(com.stripe.model.Customer.class, cust);
 
         } catch (StripeException e) {
-            logger.error("Stripe: failed updating customer payment method ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed updating customer payment method", user.getEmail(), e);
             throw buildException(e, "Stripe: failed updating customer payment method");
         }
     }
 
-    private void voidInvoiceIfNecessary(NameProvider user, LocalOrganization organization) {
+    void voidInvoiceIfNecessary(NameProvider user, StripeFetchContext context) {
+        voidInvoiceIfNecessary(user, context, null);
+    }
+
+    private void voidInvoiceIfNecessary(NameProvider user, StripeFetchContext context, String idempotencyKey) {
         try {
-            ExternalEntity subscription = organization.getLocalSubscription();
-            if (!StringUtils.hasLength(subscription.getExternalId())) {
+            com.stripe.model.Subscription sub = context.subscription();
+            if (sub == null) {
                 return;
             }
-            com.stripe.model.Subscription sub = com.stripe.model.Subscription.retrieve(subscription.getExternalId());
-
-            if (sub.getLatestInvoice() != null) {
-                InvoicePayParams params = InvoicePayParams.builder()
-                        .addExpand("payment_intent")
-                        .build();
-
-                InvoiceRetrieveParams invoiceParams = InvoiceRetrieveParams.builder()
-                        .addExpand("payment_intent")
-                        .build();
-                Invoice invoice = Invoice.retrieve(sub.getLatestInvoice(), invoiceParams, null);
-                PaymentIntent intent = invoice.getPaymentIntentObject();
-
-                if ("incomplete".equals(sub.getStatus()) &&
-                        invoice.getAttempted() && "open".equals(invoice.getStatus()) &&
-                        ("requires_payment_method".equals(intent.getStatus()) || "requires_action".equals(intent.getStatus()))) {
-                    invoice.voidInvoice();
-                    subscription.setExternalId(null);
-                }
+            if (!isAwaitingPayment(sub, context.latestInvoice())) {
+                return;
+            }
+            sub = context.verifiedSubscription();
+            Invoice invoice = context.latestInvoice();
+
+            if (isAwaitingPayment(sub, invoice)) {
+                executor.write(context.getAccount(), "invoice.void", stepKey(idempotencyKey, "invoice.void"),
+                        options -> invoice.voidInvoice(InvoiceVoidInvoiceParams.builder().build(), options));
+                context.getOrganization().getLocalSubscription().setExternalId(null);
+                context.invalidateSubscription(sub.getId());
             }
         } catch (StripeException e) {
-            logger.error("Stripe: failed updating invoice ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed updating invoice", user.getEmail(), e);
             throw buildException(e, "Stripe: failed updating invoice");
         }
     }
 
-    private void updateInvoiceStatus(NameProvider user, LocalOrganization organization) {
+    void updateInvoiceStatus(NameProvider user, StripeFetchContext context) {
+        updateInvoiceStatus(user, context, null);
+    }
+
+    // the payment's result, or null when there was nothing to pay
+    private SubscriptionUpdateResult updateInvoiceStatus(NameProvider user, StripeFetchContext context, String idempotencyKey) {
         try {
-            ExternalEntity subscription = organization.getLocalSubscription();
-            if (!StringUtils.hasLength(subscription.getExternalId())) {
-                return;
+            com.stripe.model.Subscription sub = context.subscription();
+            if (sub == null) {
+                return null;
+            }
+            if (!isAwaitingPayment(sub, context.latestInvoice())) {
+                return null;
             }
-            com.stripe.model.Subscription sub = com.stripe.model.Subscription.retrieve(subscription.getExternalId());
+            sub = context.verifiedSubscription();
+            Invoice latestInvoice = context.latestInvoice();
 
-            if (sub.getLatestInvoice() != null) {
+            if (isAwaitingPayment(sub, latestInvoice)) {
+                // expanding the subscription returns its post-payment status
+                // without another retrieve
                 InvoicePayParams params = InvoicePayParams.builder()
                         .addExpand("payment_intent")
+                        .addExpand("subscription")
                         .build();
 
-                InvoiceRetrieveParams invoiceParams = InvoiceRetrieveParams.builder()
-                        .addExpand("payment_intent")
-                        .build();
-                Invoice invoice = Invoice.retrieve(sub.getLatestInvoice(), invoiceParams, null);
-                PaymentIntent intent = invoice.getPaymentIntentObject();
-
-                if ("incomplete".equals(sub.getStatus()) &&
-                        invoice.getAttempted() && "open".equals(invoice.getStatus()) &&
-                        ("requires_payment_method".equals(intent.getStatus()) || "requires_action".equals(intent.getStatus()))) {
-
-                    intent.cancel();
-                    invoice = invoice.pay(params);
-                    sub = com.stripe.model.Subscription.retrieve(subscription.getExternalId());
-
-                    SubscriptionUpdateResult result = new SubscriptionUpdateResult(
-                            sub.getId(),
-                            sub.getStatus(),
-                            invoice.getPaymentIntentObject().getId(),
-                            invoice.getPaymentIntentObject().getStatus());
-                    organization.updateFrom(result);
-                }
+                PaymentIntent intent = latestInvoice.getPaymentIntentObject();
+                executor.write(context.getAccount(), "payment_intent.cancel", stepKey(idempotencyKey, "payment_intent.cancel"),
+                        options -> intent.cancel(PaymentIntentCancelParams.builder().build(), options));
+                Invoice invoice = executor.write(context.getAccount(), "invoice.pay", stepKey(idempotencyKey, "invoice.pay"),
+                        options -> latestInvoice.pay(params, options));
+                sub = invoice.getSubscriptionObject();
+                context.invalidateSubscription(sub.getId());
+
+                SubscriptionUpdateResult result = new SubscriptionUpdateResult(
+                        sub.getId(),
+                        sub.getStatus(),
+                        invoice.getPaymentIntentObject().getId(),
+                        invoice.getPaymentIntentObject().getStatus());
+                context.getOrganization().updateFrom(result);
+                return result;
             }
+            return null;
         } catch (StripeException e) {
-            logger.error("Stripe: failed updating invoice ({})", user.getEmail(), e);
+            failureLogger.log(logger, "Stripe: failed updating invoice", user.getEmail(), e);
             throw buildException(e, "Stripe: failed updating invoice");
         }
     }
 
-    private ErrorCode parseStripeDeclineCode(StripeException exception) {
-        String code = exception.getCode() != null ? exception.getCode() : "";
-        String name = new StringBuilder("STRIPE_").append(code.toUpperCase()).toString();
-        return StripeErrors.from(name);
+    // an incomplete subscription whose first payment attempt needs a new payment method or customer action
+    private boolean isAwaitingPayment(com.stripe.model.Subscription sub, Invoice invoice) {
+        if (invoice == null || invoice.getPaymentIntentObject() == null) {
+            return false;
+        }
+        PaymentIntent intent = invoice.getPaymentIntentObject();
+        return "incomplete".equals(sub.getStatus()) &&
+                Boolean.TRUE.equals(invoice.getAttempted()) && "open".equals(invoice.getStatus()) &&
+                ("requires_payment_method".equals(intent.getStatus()) || "requires_action".equals(intent.getStatus()));
+    }
+
+    // Stripe resources are updated by id, so writes that don't need the current
+    // state use an id-only reference instead of retrieving the object first
+
+    private static com.stripe.model.Subscription subscriptionRef(String id) {
+        com.stripe.model.Subscription subscription = new com.stripe.model.Subscription();
+        subscription.setId(id);
+        return subscription;
+    }
+
+    private static com.stripe.model.Customer customerRef(String id) {
+        com.stripe.model.Customer customer = new com.stripe.model.Customer();
+        customer.setId(id);
+        return customer;
+    }
+
+    private static com.stripe.model.PaymentMethod paymentMethodRef(String id) {
+        com.stripe.model.PaymentMethod paymentMethod = new com.stripe.model.PaymentMethod();
+        paymentMethod.setId(id);
+        return paymentMethod;
     }
 
     private ErrorCodedHttpException buildException(StripeException exception, String message) {
-        ErrorCode errorCode = parseStripeDeclineCode(exception);
-        return new ErrorCodedHttpException(HttpStatus.UNAUTHORIZED, errorCode, exception);
+        StripeErrors error = StripeErrors.from(exception);
+        return new ErrorCodedHttpException(error.httpStatus(), error, exception);
     }
 }
\ No newline at end of file
@@ -0,0 +1,27 @@
+package com.tubebreakup.stripe.ops;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.NoArgsConstructor;
+import lombok.Setter;
+
+// A subscription change recorded in the outbox, to be applied to Stripe later.
+// The id doubles as the Stripe idempotency key, so a mutation replayed after a
+// crash is applied only once.
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+public class SubscriptionMutation {
+
+    public enum Type { UPDATE_PLAN, CANCEL }
+
+    private String id;
+    private Type type;
+    private String organizationUuid;
+    private String email;
+    private String priceId;
+    private Long quantity;
+    // epoch seconds; plan changes are prorated as of this time
+    private Long requestedAt;
+}
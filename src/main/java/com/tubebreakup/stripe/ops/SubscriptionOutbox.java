@@ -0,0 +1,389 @@
+package com.tubebreakup.stripe.ops;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.stripe.exception.StripeException;
+import com.tubebreakup.model.NameProvider;
+import com.tubebreakup.stripe.SubscriptionMetaProvider;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Write-behind mode for subscription changes. With stripe.outbox.enabled the
+// enqueue calls persist the mutation to the SubscriptionOutboxStore and return;
+// a background drainer applies it to Stripe and calls updateFrom on the
+// organization once it lands. Without it they apply synchronously, exactly like
+// StripeService.updateSubscriptionPlan/cancelSubscription.
+//
+// Each drain cycle takes the pending mutations of every organization that is
+// not backing off and applies them in parallel across organizations, in order
+// within one. Consecutive plan changes for an organization collapse into the
+// last one. Each mutation's id is its Stripe idempotency key and its request
+// time the proration date, so a mutation re-applied after a crash (applied but
+// not yet marked done) neither charges twice nor prorates differently.
+// Completed ids are marked done in one store write per cycle.
+//
+// Plan changes are checked against the catalog when enqueued, so a bad price or
+// quantity fails the caller instead of the drain. Retryable Stripe errors and
+// rejected calls back off exponentially up to maxAttempts. Errors Stripe gives a
+// final answer for (a decline, invalid input) drop the mutation. Anything else,
+// an unexpected exception or a mutation out of attempts, parks the
+// organization: its mutations stay in the store, untouched until the next
+// start recovers them (stripe.outbox.parked counts parked organizations).
+// A cancellation that lands is reported through updateFrom like a plan change.
+@Service
+public class SubscriptionOutbox implements InitializingBean, DisposableBean {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StripeService stripeService;
+
+    @Autowired(required = false)
+    private LocalOrganizationLookup organizationLookup;
+
+    @Autowired(required = false)
+    private SubscriptionOutboxStore store;
+
+    @Autowired(required = false)
+    private MeterRegistry registry;
+
+    @Value("${stripe.outbox.enabled:false}")
+    private boolean enabled;
+
+    @Value("${stripe.outbox.file:stripe-outbox.jsonl}")
+    private String file;
+
+    @Value("${stripe.outbox.compactAfter:1000}")
+    private int compactAfter;
+
+    @Value("${stripe.outbox.pollMillis:200}")
+    private long pollMillis;
+
+    @Value("${stripe.outbox.parallelism:4}")
+    private int parallelism;
+
+    @Value("${stripe.outbox.maxAttempts:10}")
+    private int maxAttempts;
+
+    @Value("${stripe.outbox.initialBackoffMillis:1000}")
+    private long initialBackoffMillis;
+
+    @Value("${stripe.outbox.maxBackoffMillis:60000}")
+    private long maxBackoffMillis;
+
+    // how long shutdown waits for a drain cycle in progress
+    @Value("${stripe.outbox.shutdownTimeoutSeconds:30}")
+    private long shutdownTimeoutSeconds;
+
+    // organization uuid -> its pending mutations, oldest first
+    private final Map<String, Deque<Pending>> queues = new LinkedHashMap<>();
+
+    private ScheduledExecutorService drainer;
+
+    private ExecutorService workers;
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if (!enabled) {
+            return;
+        }
+        if (organizationLookup == null) {
+            throw new IllegalStateException("Stripe: subscription outbox needs a LocalOrganizationLookup");
+        }
+        if (store == null) {
+            store = new FileSubscriptionOutboxStore(Paths.get(file), new ObjectMapper(), compactAfter);
+        }
+        if (registry == null) {
+            registry = Metrics.globalRegistry;
+        }
+        List<SubscriptionMutation> recovered = store.open();
+        for (SubscriptionMutation mutation : recovered) {
+            queue(mutation);
+        }
+        if (!recovered.isEmpty()) {
+            logger.info("Stripe: recovered {} pending subscription mutations", recovered.size());
+        }
+        Gauge.builder("stripe.outbox.pending", this, SubscriptionOutbox::pendingCount).register(registry);
+        Gauge.builder("stripe.outbox.parked", this, SubscriptionOutbox::parkedCount).register(registry);
+
+        CustomizableThreadFactory workerFactory = new CustomizableThreadFactory("stripe-outbox-");
+        workerFactory.setDaemon(true);
+        workers = Executors.newFixedThreadPool(Math.max(1, parallelism), workerFactory);
+
+        CustomizableThreadFactory drainerFactory = new CustomizableThreadFactory("stripe-outbox-drain-");
+        drainerFactory.setDaemon(true);
+        drainer = Executors.newSingleThreadScheduledExecutor(drainerFactory);
+        drainer.scheduleWithFixedDelay(this::drain, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // the store is only closed once no drain can still write to it; otherwise
+    // the mutations applied but not marked done are re-applied on the next start
+    @Override
+    public void destroy() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(shutdownTimeoutSeconds);
+        boolean stopped = true;
+        if (drainer != null) {
+            drainer.shutdown();
+            stopped = drainer.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        if (workers != null) {
+            workers.shutdown();
+            stopped &= workers.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        }
+        if (!stopped) {
+            logger.warn("Stripe: subscription outbox still draining after {}s, leaving the store open", shutdownTimeoutSeconds);
+            return;
+        }
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void enqueueUpdatePlan(NameProvider user, LocalOrganization organization, SubscriptionMetaProvider metaProvider) {
+        if (!enabled) {
+            stripeService.updateSubscriptionPlan(user, organization, metaProvider);
+            return;
+        }
+        stripeService.checkSubscriptionPlan(user.getEmail(), organization, metaProvider);
+        enqueue(new SubscriptionMutation(UUID.randomUUID().toString(), SubscriptionMutation.Type.UPDATE_PLAN,
+                organization.getUuid(), user.getEmail(), metaProvider.getPriceId(), metaProvider.getQuantity(),
+                System.currentTimeMillis() / 1000L));
+    }
+
+    public void enqueueCancel(NameProvider user, LocalOrganization organization) {
+        if (!enabled) {
+            stripeService.cancelSubscription(user, organization);
+            return;
+        }
+        enqueue(new SubscriptionMutation(UUID.randomUUID().toString(), SubscriptionMutation.Type.CANCEL,
+                organization.getUuid(), user.getEmail(), null, null, System.currentTimeMillis() / 1000L));
+    }
+
+    public synchronized int pendingCount() {
+        int count = 0;
+        for (Deque<Pending> queue : queues.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    public synchronized int parkedCount() {
+        int count = 0;
+        for (Deque<Pending> queue : queues.values()) {
+            if (!queue.isEmpty() && queue.peekFirst().notBefore == PARKED) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void enqueue(SubscriptionMutation mutation) {
+        store.append(mutation);
+        queue(mutation);
+    }
+
+    private synchronized void queue(SubscriptionMutation mutation) {
+        queues.computeIfAbsent(mutation.getOrganizationUuid(), uuid -> new ArrayDeque<>()).add(new Pending(mutation));
+    }
+
+    private void drain() {
+        try {
+            List<Callable<List<String>>> tasks = new ArrayList<>();
+            for (String organizationUuid : readyOrganizations()) {
+                tasks.add(() -> drain(organizationUuid));
+            }
+            if (tasks.isEmpty()) {
+                return;
+            }
+            List<String> completed = new ArrayList<>();
+            for (Future<List<String>> result : workers.invokeAll(tasks)) {
+                completed.addAll(result.get());
+            }
+            store.complete(completed);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // completed ids not marked done are re-applied under the same idempotency key
+            logger.error("Stripe: subscription outbox drain failed", e);
+        }
+    }
+
+    private synchronized List<String> readyOrganizations() {
+        long now = System.currentTimeMillis();
+        List<String> ready = new ArrayList<>();
+        Iterator<Map.Entry<String, Deque<Pending>>> entries = queues.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Deque<Pending>> entry = entries.next();
+            if (entry.getValue().isEmpty()) {
+                entries.remove();
+            } else if (entry.getValue().peekFirst().notBefore <= now) {
+                ready.add(entry.getKey());
+            }
+        }
+        return ready;
+    }
+
+    // applies the organization's pending mutations in order, stopping at the
+    // first one that has to wait; returns the ids to mark done
+    private List<String> drain(String organizationUuid) {
+        List<String> completed = new ArrayList<>();
+        List<Pending> run;
+        while (!(run = nextRun(organizationUuid)).isEmpty()) {
+            // the last plan change of the run is what gets applied; its failures are
+            // charged to the head, which gates the queue and stays put as more plan
+            // changes are enqueued behind it, so maxAttempts is reached however the run grows
+            if (!apply(run.get(run.size() - 1).mutation, run.get(0))) {
+                break;
+            }
+            removeRun(organizationUuid, run);
+            for (Pending pending : run) {
+                completed.add(pending.mutation.getId());
+            }
+        }
+        return completed;
+    }
+
+    // the head mutation, or the run of consecutive plan changes at the head
+    private synchronized List<Pending> nextRun(String organizationUuid) {
+        Deque<Pending> queue = queues.get(organizationUuid);
+        if (queue == null || queue.isEmpty() || queue.peekFirst().notBefore > System.currentTimeMillis()) {
+            return Collections.emptyList();
+        }
+        List<Pending> run = new ArrayList<>();
+        for (Pending pending : queue) {
+            boolean plan = pending.mutation.getType() == SubscriptionMutation.Type.UPDATE_PLAN;
+            if (!run.isEmpty() && !(plan && run.get(0).mutation.getType() == SubscriptionMutation.Type.UPDATE_PLAN)) {
+                break;
+            }
+            run.add(pending);
+        }
+        return run;
+    }
+
+    private synchronized void removeRun(String organizationUuid, List<Pending> run) {
+        Deque<Pending> queue = queues.get(organizationUuid);
+        if (queue != null) {
+            queue.removeAll(run);
+        }
+    }
+
+    // true once the mutation is done with, applied or dropped; false when it has
+    // to wait, until the head's notBefore, or for good if that is PARKED. The head
+    // gates the whole run, and everything enqueued behind it, so nothing is
+    // applied out of order while a mutation backs off or is parked
+    private boolean apply(SubscriptionMutation mutation, Pending head) {
+        LocalOrganization organization = organizationLookup.findByUuid(mutation.getOrganizationUuid());
+        if (organization == null) {
+            logger.warn("Stripe: dropped subscription mutation {}: no organization {}", mutation.getId(), mutation.getOrganizationUuid());
+            record(mutation, "dropped");
+            return true;
+        }
+        try {
+            if (mutation.getType() == SubscriptionMutation.Type.CANCEL) {
+                stripeService.applyCancellation(organization);
+            } else {
+                stripeService.applySubscriptionPlan(mutation.getEmail(), organization, metaProvider(mutation),
+                        mutation.getRequestedAt(), mutation.getId());
+            }
+            record(mutation, "applied");
+            return true;
+        } catch (StripeException e) {
+            if (e instanceof StripeCallRejectedException || StripeErrors.from(e).retryable()) {
+                return retry(head, mutation, e);
+            }
+            logger.error("Stripe: dropped subscription mutation {} {}: rejected by Stripe ({})", mutation.getId(),
+                    mutation.getType(), mutation.getEmail(), e);
+            record(mutation, "dropped");
+            return true;
+        } catch (RuntimeException e) {
+            return parked(head, mutation, e);
+        }
+    }
+
+    private boolean retry(Pending head, SubscriptionMutation mutation, Exception e) {
+        if (head.attempts + 1 >= maxAttempts) {
+            return parked(head, mutation, e);
+        }
+        head.attempts++;
+        long backoff = Math.min(maxBackoffMillis, initialBackoffMillis << Math.min(head.attempts - 1, 20));
+        head.notBefore = System.currentTimeMillis() + backoff;
+        logger.warn("Stripe: subscription mutation {} {} failed, retrying in {}ms ({})", mutation.getId(),
+                mutation.getType(), backoff, mutation.getEmail());
+        record(mutation, "retried");
+        return false;
+    }
+
+    private boolean parked(Pending head, SubscriptionMutation mutation, Exception e) {
+        head.attempts++;
+        head.notBefore = PARKED;
+        logger.error("Stripe: parked subscription mutations of organization {} at {} {} after {} attempts ({})",
+                mutation.getOrganizationUuid(), mutation.getId(), mutation.getType(), head.attempts,
+                mutation.getEmail(), e);
+        record(mutation, "parked");
+        return false;
+    }
+
+    private void record(SubscriptionMutation mutation, String outcome) {
+        Counter.builder("stripe.outbox.mutations")
+                .tag("type", mutation.getType().name().toLowerCase())
+                .tag("outcome", outcome)
+                .register(registry)
+                .increment();
+    }
+
+    private static SubscriptionMetaProvider metaProvider(SubscriptionMutation mutation) {
+        return new SubscriptionMetaProvider() {
+            @Override
+            public Long getQuantity() {
+                return mutation.getQuantity();
+            }
+
+            @Override
+            public String getPriceId() {
+                return mutation.getPriceId();
+            }
+        };
+    }
+
+    private static final long PARKED = Long.MAX_VALUE;
+
+    private static class Pending {
+        private final SubscriptionMutation mutation;
+        private int attempts;
+        private volatile long notBefore;
+
+        private Pending(SubscriptionMutation mutation) {
+            this.mutation = mutation;
+        }
+    }
+}
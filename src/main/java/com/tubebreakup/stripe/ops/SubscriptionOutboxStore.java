@@ -0,0 +1,19 @@
+package com.tubebreakup.stripe.ops;
+
+import java.util.Collection;
+import java.util.List;
+
+// Durable storage behind SubscriptionOutbox. append must not return before the
+// mutation is persisted. Provide a bean to replace the default append-only
+// file (stripe.outbox.file).
+public interface SubscriptionOutboxStore {
+
+    // the mutations appended and not yet completed, in append order
+    List<SubscriptionMutation> open();
+
+    void append(SubscriptionMutation mutation);
+
+    void complete(Collection<String> mutationIds);
+
+    void close();
+}
@@ -0,0 +1,221 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Invoice;
+import com.stripe.model.PaymentIntent;
+import com.stripe.model.Subscription;
+import com.stripe.param.SubscriptionRetrieveParams;
+import com.tubebreakup.exception.ErrorCodedHttpException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+// Local view of every subscription's status, latest invoice and payment
+// intent, kept current by subscription, invoice and payment intent webhooks and
+// by StripeService's own writes, so status reads don't go to Stripe.
+//
+// Stripe events carry no sequence number, so each entry keeps the creation
+// time of the newest event applied and ignores older ones that arrive late.
+// An event the entry can't be brought up to date from (an invoice other than
+// the latest one we know of, or a subscription whose latest invoice changed)
+// marks it for a refetch. get() goes to Stripe only for an entry that is
+// missing, marked, or older than maxAgeSeconds; that bound also covers events
+// lost by webhook delivery. If the refetch fails the last known entry is
+// served.
+@Component
+public class SubscriptionProjection {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StripeRequestExecutor executor;
+
+    @Autowired
+    private StripeObjectCache cache;
+
+    @Autowired
+    private StripeAccounts accounts;
+
+    @Autowired
+    private StripeFailureLogger failureLogger;
+
+    @Value("${stripe.projection.maxAgeSeconds:900}")
+    private long maxAgeSeconds;
+
+    // subscription id -> entry
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    // payment intent id -> subscription id, for payment intent events; only each
+    // entry's current payment intent, so it stays as large as entries
+    private final Map<String, String> subscriptionsByPaymentIntent = new ConcurrentHashMap<>();
+
+    private final SingleFlight<String, ProjectedSubscription> fetches = new SingleFlight<>();
+
+    // the organization's subscription, or null if it has none
+    public ProjectedSubscription get(LocalOrganization organization) {
+        String subscriptionId = organization.getLocalSubscription().getExternalId();
+        if (subscriptionId == null) {
+            return null;
+        }
+        Entry entry = entries.get(subscriptionId);
+        if (entry != null && !entry.refetch && System.currentTimeMillis() - entry.projected.getFetchedAt() < TimeUnit.SECONDS.toMillis(maxAgeSeconds)) {
+            return entry.projected;
+        }
+        StripeAccount account = accounts.forOrganization(organization);
+        return fetches.execute(subscriptionId, () -> fetch(account, subscriptionId, entry));
+    }
+
+    // the local entry only, however old; null if there is none
+    public ProjectedSubscription getIfPresent(String subscriptionId) {
+        Entry entry = entries.get(subscriptionId);
+        return entry != null ? entry.projected : null;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    // a subscription read from Stripe, with latest_invoice.payment_intent expanded
+    void apply(Subscription subscription) {
+        apply(subscription, System.currentTimeMillis() / 1000L);
+    }
+
+    // version: when the read was sent, in epoch seconds; events created since are
+    // still applied on top, as the response may predate them
+    private void apply(Subscription subscription, long version) {
+        ProjectedSubscription projected = project(subscription, version);
+        Entry previous = entries.put(subscription.getId(), new Entry(projected, false));
+        indexPaymentIntent(subscription.getId(), previous != null ? previous.projected.getPaymentIntentId() : null,
+                projected.getPaymentIntentId());
+    }
+
+    void remove(String subscriptionId) {
+        Entry removed = entries.remove(subscriptionId);
+        if (removed != null) {
+            indexPaymentIntent(subscriptionId, removed.projected.getPaymentIntentId(), null);
+        }
+    }
+
+    // moves the subscription's index entry from its previous payment intent to its current one
+    private void indexPaymentIntent(String subscriptionId, String previous, String current) {
+        if (previous != null && !previous.equals(current)) {
+            subscriptionsByPaymentIntent.remove(previous, subscriptionId);
+        }
+        if (current != null) {
+            subscriptionsByPaymentIntent.put(current, subscriptionId);
+        }
+    }
+
+    public void onSubscriptionEvent(long created, Subscription subscription) {
+        entries.computeIfPresent(subscription.getId(), (id, entry) -> {
+            ProjectedSubscription current = entry.projected;
+            if (created < current.getVersion()) {
+                return entry;
+            }
+            boolean sameInvoice = subscription.getLatestInvoice() == null
+                    || subscription.getLatestInvoice().equals(current.getLatestInvoiceId());
+            ProjectedSubscription updated = new ProjectedSubscription(id, subscription.getCustomer(), subscription.getStatus(),
+                    subscription.getLatestInvoice(),
+                    sameInvoice ? current.getInvoiceStatus() : null,
+                    sameInvoice ? current.getPaymentIntentId() : null,
+                    sameInvoice ? current.getPaymentIntentStatus() : null,
+                    created, current.getFetchedAt());
+            indexPaymentIntent(id, current.getPaymentIntentId(), updated.getPaymentIntentId());
+            return new Entry(updated, entry.refetch || !sameInvoice);
+        });
+    }
+
+    public void onInvoiceEvent(long created, Invoice invoice) {
+        if (invoice.getSubscription() == null) {
+            return;
+        }
+        entries.computeIfPresent(invoice.getSubscription(), (id, entry) -> {
+            ProjectedSubscription current = entry.projected;
+            if (created < current.getVersion()) {
+                return entry;
+            }
+            if (!invoice.getId().equals(current.getLatestInvoiceId())) {
+                return new Entry(current, true);
+            }
+            String paymentIntentId = invoice.getPaymentIntent();
+            boolean sameIntent = paymentIntentId == null || paymentIntentId.equals(current.getPaymentIntentId());
+            ProjectedSubscription updated = new ProjectedSubscription(id, current.getCustomerId(), current.getStatus(),
+                    current.getLatestInvoiceId(), invoice.getStatus(),
+                    paymentIntentId != null ? paymentIntentId : current.getPaymentIntentId(),
+                    sameIntent ? current.getPaymentIntentStatus() : null,
+                    created, current.getFetchedAt());
+            indexPaymentIntent(id, current.getPaymentIntentId(), updated.getPaymentIntentId());
+            // a new payment intent's status isn't in the invoice event
+            return new Entry(updated, entry.refetch || !sameIntent);
+        });
+    }
+
+    public void onPaymentIntentEvent(long created, PaymentIntent paymentIntent) {
+        String subscriptionId = subscriptionsByPaymentIntent.get(paymentIntent.getId());
+        if (subscriptionId == null) {
+            return;
+        }
+        entries.computeIfPresent(subscriptionId, (id, entry) -> {
+            ProjectedSubscription current = entry.projected;
+            if (created < current.getVersion() || !paymentIntent.getId().equals(current.getPaymentIntentId())) {
+                return entry;
+            }
+            ProjectedSubscription updated = new ProjectedSubscription(id, current.getCustomerId(), current.getStatus(),
+                    current.getLatestInvoiceId(), current.getInvoiceStatus(), current.getPaymentIntentId(),
+                    paymentIntent.getStatus(), created, current.getFetchedAt());
+            return new Entry(updated, entry.refetch);
+        });
+    }
+
+    // always a retrieve, even to seed an entry: a cached subscription carries no
+    // time it was read at to version the entry with
+    private ProjectedSubscription fetch(StripeAccount account, String subscriptionId, Entry previous) {
+        long requestedAt = System.currentTimeMillis() / 1000L;
+        try {
+            SubscriptionRetrieveParams params = SubscriptionRetrieveParams.builder()
+                    .addExpand(StripeFetchContext.LATEST_INVOICE_PAYMENT_INTENT)
+                    .build();
+            Subscription subscription = executor.read(account, "subscription.retrieve",
+                    options -> Subscription.retrieve(subscriptionId, params, options));
+            cache.put(Subscription.class, subscription);
+            apply(subscription, requestedAt);
+            return entries.get(subscriptionId).projected;
+        } catch (StripeException e) {
+            if (previous != null) {
+                logger.info("Stripe: serving last projected subscription ({}): {}", subscriptionId, e.getMessage());
+                return previous.projected;
+            }
+            failureLogger.log(logger, "Stripe: failed getting subscription", subscriptionId, e);
+            StripeErrors error = StripeErrors.from(e);
+            throw new ErrorCodedHttpException(error.httpStatus(), error, e);
+        }
+    }
+
+    private static ProjectedSubscription project(Subscription subscription, long version) {
+        Invoice invoice = subscription.getLatestInvoiceObject();
+        PaymentIntent intent = invoice != null ? invoice.getPaymentIntentObject() : null;
+        return new ProjectedSubscription(subscription.getId(), subscription.getCustomer(), subscription.getStatus(),
+                subscription.getLatestInvoice(),
+                invoice != null ? invoice.getStatus() : null,
+                intent != null ? intent.getId() : null,
+                intent != null ? intent.getStatus() : null,
+                version, System.currentTimeMillis());
+    }
+
+    private static class Entry {
+        private final ProjectedSubscription projected;
+        // an event showed a change we couldn't apply
+        private final boolean refetch;
+
+        private Entry(ProjectedSubscription projected, boolean refetch) {
+            this.projected = projected;
+            this.refetch = refetch;
+        }
+    }
+}
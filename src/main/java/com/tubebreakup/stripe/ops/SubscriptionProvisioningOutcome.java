@@ -0,0 +1,39 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.exception.ErrorCodedHttpException;
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class SubscriptionProvisioningOutcome {
+
+    public enum Status {
+        CREATED,
+        SKIPPED,
+        FAILED,
+    }
+
+    private LocalOrganization organization;
+    private Status status;
+    private SubscriptionUpdateResult result;
+    private ErrorCodedHttpException failure;
+
+    public boolean isFailed() {
+        return status == Status.FAILED;
+    }
+
+    static SubscriptionProvisioningOutcome created(LocalOrganization organization, SubscriptionUpdateResult result) {
+        return new SubscriptionProvisioningOutcome(organization, Status.CREATED, result, null);
+    }
+
+    static SubscriptionProvisioningOutcome skipped(LocalOrganization organization) {
+        return new SubscriptionProvisioningOutcome(organization, Status.SKIPPED, null, null);
+    }
+
+    static SubscriptionProvisioningOutcome failed(LocalOrganization organization, ErrorCodedHttpException failure) {
+        return new SubscriptionProvisioningOutcome(organization, Status.FAILED, null, failure);
+    }
+}
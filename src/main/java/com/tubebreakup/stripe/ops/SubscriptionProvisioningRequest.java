@@ -0,0 +1,13 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.stripe.SubscriptionMetaProvider;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class SubscriptionProvisioningRequest {
+    private LocalOrganization organization;
+    private SubscriptionMetaProvider metaProvider;
+    private Long trialDays;
+}
@@ -0,0 +1,203 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionCollection;
+import com.stripe.param.SubscriptionListParams;
+import com.tubebreakup.exception.ErrorCodedHttpException;
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Brings every organization's subscription status in line with Stripe in one
+// pass over Subscription.list, instead of a retrieve per organization. Pages
+// are fetched with the latest invoice and payment intent expanded, matched to
+// organizations one page at a time and then dropped, so memory stays constant
+// however many subscriptions the account has. Organizations are only updated
+// when the result differs from what they last applied. Every configured
+// account is swept in turn. Progress is saved per account after each page when
+// a SubscriptionSweepCheckpoint is available, and cleared once all accounts
+// are done, so a rerun after a failure skips the accounts that finished.
+@Service
+public class SubscriptionStatusReconciler {
+
+    private static final String DATA_LATEST_INVOICE_PAYMENT_INTENT = "data." + StripeFetchContext.LATEST_INVOICE_PAYMENT_INTENT;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StripeRequestExecutor executor;
+
+    @Autowired
+    private StripeAccounts accounts;
+
+    @Autowired
+    private StripeObjectCache cache;
+
+    @Autowired(required = false)
+    private LocalOrganizationLookup organizationLookup;
+
+    @Autowired(required = false)
+    private SubscriptionSweepCheckpoint checkpoint;
+
+    @Value("${stripe.sweep.pageSize:100}")
+    private long pageSize;
+
+    @Value("${stripe.sweep.reportIntervalSeconds:30}")
+    private long reportIntervalSeconds;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+
+    // every account, each resuming from its saved checkpoint, if any
+    public SubscriptionSweepReport sweep() {
+        return sweep(accounts.getAll(), null);
+    }
+
+    // the default account's subscriptions listed after startingAfter (null for all)
+    public SubscriptionSweepReport sweep(String startingAfter) {
+        return sweep(Collections.singletonList(accounts.getDefault()), startingAfter);
+    }
+
+    // startingAfter overrides the checkpoints (null to use them)
+    private SubscriptionSweepReport sweep(Collection<StripeAccount> sweptAccounts, String startingAfter) {
+        if (organizationLookup == null) {
+            throw new IllegalStateException("Stripe: subscription sweep needs a LocalOrganizationLookup");
+        }
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("Stripe: subscription sweep already running");
+        }
+        try {
+            Sweep sweep = new Sweep();
+            for (StripeAccount account : sweptAccounts) {
+                String resumeAfter = startingAfter != null || checkpoint == null ? startingAfter : checkpoint.load(account.getName());
+                run(sweep, account, resumeAfter);
+            }
+            if (checkpoint != null) {
+                for (StripeAccount account : sweptAccounts) {
+                    checkpoint.clear(account.getName());
+                }
+            }
+            SubscriptionSweepReport report = sweep.report(true);
+            logger.info("Stripe: subscription sweep finished: {} scanned, {} updated, {} unchanged, {} unmatched, {} failed in {} ms ({}/s)",
+                    report.getScanned(), report.getUpdated(), report.getUnchanged(), report.getUnmatched(), report.getFailed(),
+                    report.getElapsedMillis(), String.format("%.1f", report.getSubscriptionsPerSecond()));
+            return report;
+        } finally {
+            running.set(false);
+        }
+    }
+
+    private void run(Sweep sweep, StripeAccount account, String startingAfter) {
+        sweep.account = account.getName();
+        sweep.lastSubscriptionId = startingAfter;
+        logger.info("Stripe: subscription sweep of {} started{}", account.getName(), startingAfter != null ? " after " + startingAfter : "");
+        try {
+            boolean hasMore = true;
+            while (hasMore) {
+                SubscriptionCollection page = fetchPage(account, sweep.lastSubscriptionId);
+                List<Subscription> subscriptions = page.getData();
+                if (subscriptions == null || subscriptions.isEmpty()) {
+                    break;
+                }
+                apply(sweep, subscriptions);
+                sweep.lastSubscriptionId = subscriptions.get(subscriptions.size() - 1).getId();
+                if (checkpoint != null) {
+                    checkpoint.save(account.getName(), sweep.lastSubscriptionId);
+                }
+                sweep.reportProgress();
+                hasMore = Boolean.TRUE.equals(page.getHasMore());
+            }
+        } catch (StripeException e) {
+            logger.error("Stripe: subscription sweep of {} stopped after {} ({} scanned)", account.getName(),
+                    sweep.lastSubscriptionId, sweep.scanned, e);
+            StripeErrors error = StripeErrors.from(e);
+            throw new ErrorCodedHttpException(error.httpStatus(), error, e);
+        }
+    }
+
+    private SubscriptionCollection fetchPage(StripeAccount account, String startingAfter) throws StripeException {
+        SubscriptionListParams.Builder builder = SubscriptionListParams.builder()
+                .setStatus(SubscriptionListParams.Status.ALL)
+                .setLimit(pageSize)
+                .addExpand(DATA_LATEST_INVOICE_PAYMENT_INTENT);
+        if (startingAfter != null) {
+            builder.setStartingAfter(startingAfter);
+        }
+        SubscriptionListParams params = builder.build();
+        return executor.read(account, "subscription.list", options -> Subscription.list(params, options));
+    }
+
+    private void apply(Sweep sweep, List<Subscription> subscriptions) {
+        List<String> ids = new ArrayList<>(subscriptions.size());
+        for (Subscription subscription : subscriptions) {
+            ids.add(subscription.getId());
+        }
+        Map<String, LocalOrganization> organizations = organizationLookup.findBySubscriptionExternalIds(ids);
+        for (Subscription subscription : subscriptions) {
+            sweep.scanned++;
+            LocalOrganization organization = organizations.get(subscription.getId());
+            if (organization == null) {
+                sweep.unmatched++;
+                continue;
+            }
+            SubscriptionUpdateResult result = StripeService.buildSubscriptionUpdateResult(subscription);
+            if (result.equals(organization.getLastSubscriptionUpdate())) {
+                sweep.unchanged++;
+                continue;
+            }
+            try {
+                organization.updateFrom(result);
+                cache.invalidate(Subscription.class, subscription.getId());
+                sweep.updated++;
+            } catch (RuntimeException e) {
+                logger.error("Stripe: failed applying subscription status ({}) ({})", subscription.getId(), organization.getUuid(), e);
+                sweep.failed++;
+            }
+        }
+    }
+
+    private class Sweep {
+
+        private final long started = System.nanoTime();
+
+        private long nextReport = started + TimeUnit.SECONDS.toNanos(reportIntervalSeconds);
+
+        // the account being swept, and how far it got
+        private String account;
+        private String lastSubscriptionId;
+
+        private long scanned;
+        private long unmatched;
+        private long unchanged;
+        private long updated;
+        private long failed;
+
+        void reportProgress() {
+            long now = System.nanoTime();
+            if (now - nextReport < 0) {
+                return;
+            }
+            nextReport = now + TimeUnit.SECONDS.toNanos(reportIntervalSeconds);
+            SubscriptionSweepReport report = report(false);
+            logger.info("Stripe: subscription sweep of {} at {}: {} scanned, {} updated ({}/s)",
+                    account, lastSubscriptionId, scanned, updated, String.format("%.1f", report.getSubscriptionsPerSecond()));
+        }
+
+        SubscriptionSweepReport report(boolean complete) {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            return new SubscriptionSweepReport(scanned, unmatched, unchanged, updated, failed, elapsedMillis,
+                    lastSubscriptionId, complete);
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package com.tubebreakup.stripe.ops;
+
+// Persists how far a subscription status sweep got in each Stripe account, so
+// an interrupted sweep resumes after the last page it finished instead of
+// starting over.
+public interface SubscriptionSweepCheckpoint {
+
+    // id of the last subscription of the account's last completed page, or null
+    String load(String account);
+
+    void save(String account, String lastSubscriptionId);
+
+    void clear(String account);
+}
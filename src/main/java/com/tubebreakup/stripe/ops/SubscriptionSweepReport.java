@@ -0,0 +1,22 @@
+package com.tubebreakup.stripe.ops;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+@Getter
+@AllArgsConstructor
+public class SubscriptionSweepReport {
+    private long scanned;
+    private long unmatched;
+    private long unchanged;
+    private long updated;
+    private long failed;
+    private long elapsedMillis;
+    // resume point if the sweep did not complete
+    private String lastSubscriptionId;
+    private boolean complete;
+
+    public double getSubscriptionsPerSecond() {
+        return elapsedMillis > 0 ? scanned * 1000.0 / elapsedMillis : 0;
+    }
+}
@@ -0,0 +1,40 @@
+package com.tubebreakup.stripe.ops;
+
+import java.util.concurrent.TimeUnit;
+
+// Paces callers to a sustained rate while allowing short bursts. Each caller
+// reserves a token up front and sleeps off any deficit, so waiting callers are
+// released in arrival order at exactly the configured rate.
+class TokenBucket {
+
+    private final double tokensPerNano;
+
+    private final double capacity;
+
+    private double tokens;
+
+    private long lastRefill;
+
+    TokenBucket(double tokensPerSecond, int burst) {
+        this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = Math.max(1, burst);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    void acquire() throws InterruptedException {
+        long wait = reserve();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    // takes one token and returns how long the caller must wait before using it
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+    }
+}
@@ -0,0 +1,218 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.WebhookEndpoint;
+import com.stripe.model.WebhookEndpointCollection;
+import com.stripe.net.ApiRequestParams;
+import com.stripe.param.WebhookEndpointCreateParams;
+import com.stripe.param.WebhookEndpointListParams;
+import com.stripe.param.WebhookEndpointUpdateParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Makes sure the account has exactly one webhook endpoint for our URL, with at
+// least the events we handle enabled. The first call lists every endpoint on
+// the account (all pages), creates or updates ours as needed and remembers the
+// result; later calls are answered from memory. That first call is made
+// when the application is ready (stripe.webhook.reconcileOnStartup), so no
+// request thread pays for the listing; a failed startup pass is logged and
+// retried on first use. Configured events this
+// stripe-java version has no parameter for are skipped with a warning rather
+// than failing the reconcile.
+@Component
+public class WebhookEndpointReconciler {
+
+    private static final long PAGE_SIZE = 100;
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Autowired
+    private StripeRequestExecutor executor;
+
+    @Value("${stripe.webhook.url:https://api.talentdrop.com:8080/webhooks}")
+    private String url;
+
+    @Value("${stripe.webhook.enabledEvents:payment_intent.succeeded,payment_method.attached,invoice.payment_action_required,invoice.payment_failed,invoice.upcoming,invoice.payment_succeeded,customer.subscription.updated,price.created,price.updated,price.deleted,product.updated,product.deleted}")
+    private String[] enabledEvents;
+
+    @Value("${stripe.webhook.reconcileOnStartup:true}")
+    private boolean reconcileOnStartup;
+
+    @Value("${stripe.webhook.maxPages:50}")
+    private int maxPages;
+
+    // url -> endpoint, loaded on first use
+    private Map<String, WebhookEndpoint> endpointsByUrl;
+
+    private String endpointId;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        if (!reconcileOnStartup) {
+            return;
+        }
+        try {
+            logger.info("Stripe: webhook endpoint reconciled: {} ({})", reconcile(), url);
+        } catch (StripeException e) {
+            logger.error("Stripe: failed reconciling webhook endpoint ({})", url, e);
+        }
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    // the id of our endpoint, creating it or enabling missing events if needed
+    public synchronized String reconcile() throws StripeException {
+        if (endpointId != null) {
+            return endpointId;
+        }
+        WebhookEndpoint endpoint = index().get(url);
+        if (endpoint == null) {
+            endpoint = create();
+        } else {
+            endpoint = enableMissingEvents(endpoint);
+        }
+        endpointsByUrl.put(url, endpoint);
+        endpointId = endpoint.getId();
+        return endpointId;
+    }
+
+    // the endpoint registered for url, or null
+    public synchronized WebhookEndpoint find(String url) throws StripeException {
+        if (url == null) {
+            return null;
+        }
+        return index().get(url);
+    }
+
+    // forget what was loaded; the next call lists the account again
+    public synchronized void invalidate() {
+        endpointsByUrl = null;
+        endpointId = null;
+    }
+
+    private Map<String, WebhookEndpoint> index() throws StripeException {
+        if (endpointsByUrl != null) {
+            return endpointsByUrl;
+        }
+        Map<String, WebhookEndpoint> index = new HashMap<>();
+        String startingAfter = null;
+        for (int page = 0; page < maxPages; page++) {
+            WebhookEndpointListParams.Builder builder = WebhookEndpointListParams.builder()
+                    .setLimit(PAGE_SIZE);
+            if (startingAfter != null) {
+                builder.setStartingAfter(startingAfter);
+            }
+            WebhookEndpointListParams params = builder.build();
+            WebhookEndpointCollection collection = executor.read("webhook_endpoint.list", options -> WebhookEndpoint.list(params, options));
+            List<WebhookEndpoint> endpoints = collection.getData();
+            if (endpoints == null || endpoints.isEmpty()) {
+                break;
+            }
+            for (WebhookEndpoint endpoint : endpoints) {
+                WebhookEndpoint existing = index.putIfAbsent(endpoint.getUrl(), endpoint);
+                if (existing != null) {
+                    logger.warn("Stripe: duplicate webhook endpoint {} for {}, using {}", endpoint.getId(), endpoint.getUrl(), existing.getId());
+                }
+            }
+            if (!Boolean.TRUE.equals(collection.getHasMore())) {
+                break;
+            }
+            if (page == maxPages - 1) {
+                logger.warn("Stripe: stopped listing webhook endpoints after {} pages", maxPages);
+            }
+            startingAfter = endpoints.get(endpoints.size() - 1).getId();
+        }
+        endpointsByUrl = index;
+        return index;
+    }
+
+    private WebhookEndpoint create() throws StripeException {
+        List<WebhookEndpointCreateParams.EnabledEvent> events = new ArrayList<>();
+        for (String event : supportedEvents()) {
+            events.add(toParam(WebhookEndpointCreateParams.EnabledEvent.class, event));
+        }
+        WebhookEndpointCreateParams params = WebhookEndpointCreateParams.builder()
+                .setUrl(url)
+                .addAllEnabledEvent(events)
+                .build();
+        WebhookEndpoint endpoint = executor.write("webhook_endpoint.create", options -> WebhookEndpoint.create(params, options));
+        logger.info("Stripe: created webhook endpoint {} ({})", endpoint.getId(), url);
+        return endpoint;
+    }
+
+    // adds the events we need to those already enabled, leaving any extras alone
+    private WebhookEndpoint enableMissingEvents(WebhookEndpoint endpoint) throws StripeException {
+        Set<String> current = new LinkedHashSet<>();
+        if (endpoint.getEnabledEvents() != null) {
+            current.addAll(endpoint.getEnabledEvents());
+        }
+        if (current.contains("*")) {
+            return endpoint;
+        }
+        Set<String> wanted = new LinkedHashSet<>(current);
+        wanted.addAll(supportedEvents());
+        if (wanted.size() == current.size()) {
+            return endpoint;
+        }
+        WebhookEndpointUpdateParams.Builder builder = WebhookEndpointUpdateParams.builder();
+        List<WebhookEndpointUpdateParams.EnabledEvent> events = new ArrayList<>();
+        for (String event : wanted) {
+            WebhookEndpointUpdateParams.EnabledEvent param = toParam(WebhookEndpointUpdateParams.EnabledEvent.class, event);
+            if (param == null) {
+                events = null;
+                break;
+            }
+            events.add(param);
+        }
+        if (events != null) {
+            builder.addAllEnabledEvent(events);
+        } else {
+            // the update replaces the list; an already enabled event we have no parameter
+            // for would be dropped, so the list goes as the strings Stripe gave us
+            builder.putExtraParam("enabled_events", new ArrayList<>(wanted));
+        }
+        WebhookEndpointUpdateParams params = builder.build();
+        WebhookEndpoint updated = executor.write("webhook_endpoint.update", options -> endpoint.update(params, options));
+        logger.info("Stripe: enabled events on webhook endpoint {}: {}", endpoint.getId(), wanted);
+        return updated;
+    }
+
+    // the configured events stripe-java can enable; the rest are logged and skipped
+    private List<String> supportedEvents() {
+        List<String> supported = new ArrayList<>();
+        for (String event : enabledEvents) {
+            String value = event.trim();
+            if (toParam(WebhookEndpointCreateParams.EnabledEvent.class, value) == null) {
+                logger.warn("Stripe: skipped enabling unknown webhook event {} ({})", value, url);
+                continue;
+            }
+            supported.add(value);
+        }
+        return supported;
+    }
+
+    // null when this stripe-java version has no parameter for the event
+    private static <E extends Enum<E> & ApiRequestParams.EnumParam> E toParam(Class<E> type, String event) {
+        String value = event.trim();
+        for (E candidate : type.getEnumConstants()) {
+            if (candidate.getValue().equals(value)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+}
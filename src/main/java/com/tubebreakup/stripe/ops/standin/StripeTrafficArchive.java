@@ -0,0 +1,200 @@
+package com.tubebreakup.stripe.ops.standin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Stripe responses captured by StripeTrafficRecorder, read back for
+// StripeTrafficReplayer. The file is a header followed by one record per
+// exchange:
+//   key, status, latency (nanos), deflated response body
+// where the key is the HTTP method and the request path with object ids
+// replaced by {id} ("POST /v1/subscriptions/{id}"), so a replay matches
+// requests for objects that didn't exist when the traffic was recorded.
+// Opening maps the file read-only and indexes it by key, skipping over the
+// bodies; a body is only inflated when it is served. A record cut short by a
+// crash while recording ends the archive. Files over 2GB are not supported.
+public class StripeTrafficArchive {
+
+    static final int MAGIC = 0x53545431; // "STT1"
+
+    private static final Pattern OBJECT_ID = Pattern.compile("[a-z]+_[A-Za-z0-9]+");
+
+    private final Path path;
+
+    private final MappedByteBuffer buffer;
+
+    // key -> records for it, in recording order
+    private final Map<String, List<Entry>> index = new HashMap<>();
+
+    private int size;
+
+    private StripeTrafficArchive(Path path, MappedByteBuffer buffer) {
+        this.path = path;
+        this.buffer = buffer;
+    }
+
+    public static StripeTrafficArchive open(Path path) {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            StripeTrafficArchive archive = new StripeTrafficArchive(path,
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            archive.index();
+            return archive;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Stripe: failed opening traffic archive " + path, e);
+        }
+    }
+
+    // Paths alternate /v1/{collection}/{id}/{collection}/{id}..., and only a
+    // segment in an id position is replaced, so collections whose names look
+    // like ids (payment_methods, subscription_items) are kept, as are actions
+    // such as /attach or /upcoming.
+    public static String key(String method, String path) {
+        StringBuilder key = new StringBuilder(method).append(' ');
+        int position = 0;
+        for (String segment : path.split("/")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            boolean idPosition = position > 0 && position % 2 == 0;
+            key.append('/').append(idPosition && OBJECT_ID.matcher(segment).matches() ? "{id}" : segment);
+            position++;
+        }
+        return key.toString();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Set<String> keys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    public List<Entry> get(String key) {
+        List<Entry> entries = index.get(key);
+        return entries != null ? entries : Collections.emptyList();
+    }
+
+    // the response body of a record
+    public String body(Entry entry) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(entry.bodyOffset);
+        byte[] compressed = new byte[entry.compressedLength];
+        view.get(compressed);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed);
+            byte[] body = new byte[entry.bodyLength];
+            int read = 0;
+            while (read < body.length && !inflater.finished()) {
+                read += inflater.inflate(body, read, body.length - read);
+            }
+            return new String(body, 0, read, StandardCharsets.UTF_8);
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Stripe: corrupt record in traffic archive " + path, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void index() {
+        ByteBuffer view = buffer.duplicate();
+        if (view.remaining() < 4 || view.getInt() != MAGIC) {
+            throw new IllegalStateException("Stripe: not a traffic archive " + path);
+        }
+        try {
+            while (view.hasRemaining()) {
+                byte[] key = new byte[view.getShort() & 0xffff];
+                view.get(key);
+                int status = view.getShort();
+                long latencyNanos = view.getLong();
+                int bodyLength = view.getInt();
+                int compressedLength = view.getInt();
+                int bodyOffset = view.position();
+                if (compressedLength > view.remaining()) {
+                    break;
+                }
+                view.position(bodyOffset + compressedLength);
+                index.computeIfAbsent(new String(key, StandardCharsets.UTF_8), k -> new ArrayList<>())
+                        .add(new Entry(status, latencyNanos, bodyOffset, bodyLength, compressedLength));
+                size++;
+            }
+        } catch (BufferUnderflowException e) {
+            // truncated last record
+        }
+    }
+
+    // one record in the format index() reads
+    static byte[] record(String key, int status, long latencyNanos, String body) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] bodyBytes = body != null ? body.getBytes(StandardCharsets.UTF_8) : new byte[0];
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bodyBytes.length / 4 + 64);
+        try {
+            deflater.setInput(bodyBytes);
+            deflater.finish();
+            byte[] chunk = new byte[4096];
+            while (!deflater.finished()) {
+                compressed.write(chunk, 0, deflater.deflate(chunk));
+            }
+        } finally {
+            deflater.end();
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream(keyBytes.length + compressed.size() + 24);
+        try (DataOutputStream out = new DataOutputStream(record)) {
+            out.writeShort(keyBytes.length);
+            out.write(keyBytes);
+            out.writeShort(status);
+            out.writeLong(latencyNanos);
+            out.writeInt(bodyBytes.length);
+            out.writeInt(compressed.size());
+            compressed.writeTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return record.toByteArray();
+    }
+
+    public static class Entry {
+        private final int status;
+        private final long latencyNanos;
+        private final int bodyOffset;
+        private final int bodyLength;
+        private final int compressedLength;
+
+        private Entry(int status, long latencyNanos, int bodyOffset, int bodyLength, int compressedLength) {
+            this.status = status;
+            this.latencyNanos = latencyNanos;
+            this.bodyOffset = bodyOffset;
+            this.bodyLength = bodyLength;
+            this.compressedLength = compressedLength;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+    }
+}
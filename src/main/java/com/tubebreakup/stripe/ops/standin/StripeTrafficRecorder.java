@@ -0,0 +1,90 @@
+package com.tubebreakup.stripe.ops.standin;
+
+import com.stripe.exception.StripeException;
+import com.stripe.net.ApiResource;
+import com.stripe.net.HttpClient;
+import com.stripe.net.HttpURLConnectionClient;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Passes stripe-java's requests through to another client (the real API by
+// default, or StripeHttpTransport.getHttpClient()) and appends every response,
+// with how long it took, to a StripeTrafficArchive file. Requests that fail
+// before a response arrives are not recorded. Close it to flush the archive.
+public class StripeTrafficRecorder extends HttpClient implements Closeable {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final HttpClient delegate;
+
+    private final Path path;
+
+    private final DataOutputStream out;
+
+    private final AtomicLong recorded = new AtomicLong();
+
+    public StripeTrafficRecorder(Path path) {
+        this(path, new HttpURLConnectionClient());
+    }
+
+    public StripeTrafficRecorder(Path path, HttpClient delegate) {
+        this.path = path;
+        this.delegate = delegate;
+        try {
+            OutputStream file = Files.newOutputStream(path);
+            this.out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            out.writeInt(StripeTrafficArchive.MAGIC);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Stripe: failed creating traffic archive " + path, e);
+        }
+    }
+
+    // routes every stripe-java request in this JVM through this recorder
+    public StripeTrafficRecorder install() {
+        ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter(this));
+        return this;
+    }
+
+    public long getRecordedCount() {
+        return recorded.get();
+    }
+
+    @Override
+    public StripeResponse request(StripeRequest request) throws StripeException {
+        long start = System.nanoTime();
+        StripeResponse response = delegate.request(request);
+        long latencyNanos = System.nanoTime() - start;
+
+        String key = StripeTrafficArchive.key(request.method().name(), request.url().getPath());
+        byte[] record = StripeTrafficArchive.record(key, response.code(), latencyNanos, response.body());
+        synchronized (out) {
+            try {
+                out.write(record);
+                recorded.incrementAndGet();
+            } catch (IOException e) {
+                logger.warn("Stripe: failed recording {} to {}", key, path, e);
+            }
+        }
+        return response;
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (out) {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import com.stripe.model.Event;
+import com.stripe.model.Invoice;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+import com.tubebreakup.stripe.ops.ProrationPreviewCache;
+import com.tubebreakup.stripe.ops.StripeObjectCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+// Drops cached subscriptions when Stripe reports a change we didn't make
+// ourselves; cached subscriptions embed their latest invoice, so invoice
+// events invalidate them too. Proration previews of the subscription go with
+// them.
+@Component
+public class CacheInvalidatingEventHandler implements StripeEventHandler<StripeObject> {
+
+    @Autowired
+    private StripeObjectCache cache;
+
+    @Autowired
+    private ProrationPreviewCache prorationPreviews;
+
+    @Override
+    public Class<StripeObject> getObjectType() {
+        return StripeObject.class;
+    }
+
+    @Override
+    public boolean supports(String eventType) {
+        return eventType.startsWith("customer.subscription.") || eventType.startsWith("invoice.");
+    }
+
+    @Override
+    public void handle(Event event, StripeObject object) {
+        String subscriptionId = null;
+        if (object instanceof Subscription) {
+            subscriptionId = ((Subscription) object).getId();
+        } else if (object instanceof Invoice) {
+            subscriptionId = ((Invoice) object).getSubscription();
+        }
+        if (subscriptionId != null) {
+            cache.invalidate(Subscription.class, subscriptionId);
+            prorationPreviews.invalidate(subscriptionId);
+        }
+    }
+}
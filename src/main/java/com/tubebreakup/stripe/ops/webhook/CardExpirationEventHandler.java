@@ -0,0 +1,40 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import com.stripe.model.Event;
+import com.stripe.model.PaymentMethod;
+import com.tubebreakup.stripe.ops.CardExpirationIndex;
+import com.tubebreakup.stripe.ops.StripeObjectCache;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+// Keeps the card expiration index current with cards attached, updated (e.g. a
+// new expiry from the card network) or detached outside of StripeService.
+@Component
+public class CardExpirationEventHandler implements StripeEventHandler<PaymentMethod> {
+
+    @Autowired
+    private CardExpirationIndex cardExpirationIndex;
+
+    @Autowired
+    private StripeObjectCache cache;
+
+    @Override
+    public Class<PaymentMethod> getObjectType() {
+        return PaymentMethod.class;
+    }
+
+    @Override
+    public boolean supports(String eventType) {
+        return eventType.startsWith("payment_method.");
+    }
+
+    @Override
+    public void handle(Event event, PaymentMethod paymentMethod) {
+        cache.invalidate(PaymentMethod.class, paymentMethod.getId());
+        if ("payment_method.detached".equals(event.getType())) {
+            cardExpirationIndex.remove(paymentMethod.getId());
+        } else {
+            cardExpirationIndex.index(paymentMethod);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import com.stripe.model.Event;
+import com.stripe.model.Price;
+import com.stripe.model.Product;
+import com.stripe.model.StripeObject;
+import com.tubebreakup.stripe.ops.StripeCatalog;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+// Applies price and product changes made in the Stripe dashboard to the
+// catalog between reloads.
+@Component
+public class CatalogEventHandler implements StripeEventHandler<StripeObject> {
+
+    @Autowired
+    private StripeCatalog catalog;
+
+    @Override
+    public Class<StripeObject> getObjectType() {
+        return StripeObject.class;
+    }
+
+    @Override
+    public boolean supports(String eventType) {
+        return eventType.startsWith("price.") || eventType.startsWith("product.");
+    }
+
+    @Override
+    public void handle(Event event, StripeObject object) {
+        boolean deleted = event.getType().endsWith(".deleted");
+        if (object instanceof Price) {
+            Price price = (Price) object;
+            if (deleted) {
+                catalog.remove(price.getId());
+            } else {
+                catalog.update(price);
+            }
+        } else if (object instanceof Product) {
+            Product product = (Product) object;
+            if (deleted) {
+                catalog.remove(product.getId());
+            } else {
+                catalog.update(product);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Remembers the most recent event ids so redelivered events can be dropped.
+// Stripe redelivers within days, so a bounded window of recent ids catches
+// retries of anything still in flight without growing forever.
+class EventDeduplicator {
+
+    private final LinkedHashMap<String, Boolean> seen;
+
+    EventDeduplicator(final int capacity) {
+        this.seen = new LinkedHashMap<String, Boolean>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // true the first time an id is seen
+    synchronized boolean markSeen(String eventId) {
+        return seen.put(eventId, Boolean.TRUE) == null;
+    }
+
+    // lets a later delivery of an event through again, e.g. when it could not be queued
+    synchronized void forget(String eventId) {
+        seen.remove(eventId);
+    }
+}
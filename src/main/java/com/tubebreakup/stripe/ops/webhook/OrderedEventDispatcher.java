@@ -0,0 +1,63 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Runs tasks on a fixed set of single-threaded lanes with bounded queues. Tasks
+// with the same key always land on the same lane, so they run in submission
+// order while different keys proceed in parallel.
+class OrderedEventDispatcher {
+
+    private final ThreadPoolExecutor[] lanes;
+
+    OrderedEventDispatcher(int laneCount, int laneCapacity) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("stripe-webhook-");
+        threadFactory.setDaemon(true);
+        lanes = new ThreadPoolExecutor[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(laneCapacity), threadFactory);
+        }
+    }
+
+    // false when the key's lane is full
+    boolean submit(String key, Runnable task) {
+        try {
+            lanes[laneFor(key)].execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    int getQueuedCount() {
+        int queued = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            queued += lane.getQueue().size();
+        }
+        return queued;
+    }
+
+    // stops taking tasks and waits for the queued ones; returns how many were left unrun
+    int shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        int unrun = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            if (!lane.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                unrun += lane.shutdownNow().size();
+            }
+        }
+        return unrun;
+    }
+
+    private int laneFor(String key) {
+        return key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length);
+    }
+}
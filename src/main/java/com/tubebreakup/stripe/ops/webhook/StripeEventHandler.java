@@ -0,0 +1,16 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import com.stripe.model.Event;
+import com.stripe.model.StripeObject;
+
+// Receives webhook events whose data object is of the handled type. Events for
+// the same customer are delivered one at a time, in the order they were
+// received; events for different customers are handled in parallel.
+public interface StripeEventHandler<T extends StripeObject> {
+
+    Class<T> getObjectType();
+
+    boolean supports(String eventType);
+
+    void handle(Event event, T object);
+}
@@ -0,0 +1,227 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import com.google.gson.JsonParseException;
+import com.stripe.exception.EventDataObjectDeserializationException;
+import com.stripe.exception.SignatureVerificationException;
+import com.stripe.model.Event;
+import com.stripe.model.EventDataObjectDeserializer;
+import com.stripe.model.HasId;
+import com.stripe.model.Invoice;
+import com.stripe.model.PaymentIntent;
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+import com.stripe.net.Webhook;
+import com.tubebreakup.exception.CommonErrors;
+import com.tubebreakup.exception.ErrorCodedHttpException;
+import com.tubebreakup.stripe.ops.StripeErrors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Entry point for the events registered by StripeService.createWebhookEndpointIfNecessary.
+// ingest() only verifies, de-duplicates and queues the event, so the webhook
+// request can be acknowledged right away; handlers run on the dispatcher's lanes.
+// When a lane is full the event is refused with a 503 and Stripe redelivers it
+// later, which keeps memory bounded during renewal spikes.
+//
+// An event whose handlers fail is forgotten by the deduplicator, so a later
+// delivery of it is handled again (handlers must be idempotent). Acknowledged
+// events still queued when the node dies are lost, as Stripe won't redeliver
+// them; with stripe.webhook.acknowledgeAfterHandling, ingest() instead waits
+// for the handlers (up to handlingTimeoutMillis) and fails the request when
+// they fail or don't finish, so Stripe redelivers. Shutdown waits for the
+// queued events to be handled.
+@Service
+public class StripeWebhookIngestor implements InitializingBean, DisposableBean {
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    @Value("${stripe.webhook.secret:}")
+    private String webhookSecret;
+
+    @Value("${stripe.webhook.lanes:8}")
+    private int laneCount;
+
+    @Value("${stripe.webhook.laneCapacity:1000}")
+    private int laneCapacity;
+
+    @Value("${stripe.webhook.dedupSize:100000}")
+    private int dedupSize;
+
+    @Value("${stripe.webhook.acknowledgeAfterHandling:false}")
+    private boolean acknowledgeAfterHandling;
+
+    @Value("${stripe.webhook.handlingTimeoutMillis:10000}")
+    private long handlingTimeoutMillis;
+
+    @Value("${stripe.webhook.shutdownTimeoutSeconds:30}")
+    private long shutdownTimeoutSeconds;
+
+    @Autowired(required = false)
+    private List<StripeEventHandler<?>> handlers = Collections.emptyList();
+
+    private EventDeduplicator deduplicator;
+
+    private OrderedEventDispatcher dispatcher;
+
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong handled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        deduplicator = new EventDeduplicator(dedupSize);
+        dispatcher = new OrderedEventDispatcher(laneCount, laneCapacity);
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        int unhandled = dispatcher.shutdown(shutdownTimeoutSeconds, TimeUnit.SECONDS);
+        if (unhandled > 0) {
+            logger.warn("Stripe: shut down with {} acknowledged webhook events unhandled", unhandled);
+        }
+    }
+
+    public void ingest(String payload, String signatureHeader) {
+        Event event;
+        try {
+            event = Webhook.constructEvent(payload, signatureHeader, webhookSecret);
+        } catch (SignatureVerificationException e) {
+            logger.warn("Stripe: rejected webhook with invalid signature");
+            throw new ErrorCodedHttpException(HttpStatus.BAD_REQUEST, StripeErrors.STRIPE_WEBHOOK_SIGNATURE_INVALID,
+                    "Stripe: invalid webhook signature", e);
+        } catch (JsonParseException e) {
+            logger.warn("Stripe: rejected unparseable webhook payload");
+            throw new ErrorCodedHttpException(HttpStatus.BAD_REQUEST, StripeErrors.STRIPE_WEBHOOK_PAYLOAD_INVALID,
+                    "Stripe: invalid webhook payload", e);
+        }
+        received.incrementAndGet();
+
+        if (!deduplicator.markSeen(event.getId())) {
+            duplicates.incrementAndGet();
+            return;
+        }
+        StripeObject object = deserialize(event);
+        CompletableFuture<Boolean> outcome = new CompletableFuture<>();
+        if (!dispatcher.submit(orderingKey(object), () -> outcome.complete(dispatch(event, object)))) {
+            deduplicator.forget(event.getId());
+            refused.incrementAndGet();
+            throw new ErrorCodedHttpException(HttpStatus.SERVICE_UNAVAILABLE, CommonErrors.SERVER_ERROR,
+                    "Stripe: webhook queue is full");
+        }
+        if (acknowledgeAfterHandling) {
+            awaitHandling(event, outcome);
+        }
+    }
+
+    private void awaitHandling(Event event, CompletableFuture<Boolean> outcome) {
+        boolean succeeded;
+        try {
+            succeeded = outcome.get(handlingTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // still queued; a redelivery arriving after it failed gets through
+            throw new ErrorCodedHttpException(HttpStatus.SERVICE_UNAVAILABLE, CommonErrors.SERVER_ERROR,
+                    "Stripe: webhook event not handled in time", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ErrorCodedHttpException(HttpStatus.SERVICE_UNAVAILABLE, CommonErrors.SERVER_ERROR,
+                    "Stripe: interrupted handling webhook event", e);
+        } catch (ExecutionException e) {
+            succeeded = false;
+        }
+        if (!succeeded) {
+            throw new ErrorCodedHttpException(HttpStatus.INTERNAL_SERVER_ERROR, CommonErrors.SERVER_ERROR,
+                    "Stripe: webhook handler failed for event " + event.getId());
+        }
+    }
+
+    public long getReceivedCount() { return received.get(); }
+    public long getDuplicateCount() { return duplicates.get(); }
+    public long getRefusedCount() { return refused.get(); }
+    public long getHandledCount() { return handled.get(); }
+    public long getFailedCount() { return failed.get(); }
+    public int getQueuedCount() { return dispatcher.getQueuedCount(); }
+
+    // false if a handler failed, in which case the event may be delivered again
+    private boolean dispatch(Event event, StripeObject object) {
+        if (object == null) {
+            return true;
+        }
+        boolean succeeded = true;
+        for (StripeEventHandler<?> handler : handlers) {
+            try {
+                dispatch(handler, event, object);
+            } catch (RuntimeException e) {
+                succeeded = false;
+                logger.error("Stripe: webhook handler {} failed for event {} ({})",
+                        handler.getClass().getSimpleName(), event.getId(), event.getType(), e);
+            }
+        }
+        if (succeeded) {
+            handled.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+            deduplicator.forget(event.getId());
+        }
+        return succeeded;
+    }
+
+    private <T extends StripeObject> void dispatch(StripeEventHandler<T> handler, Event event, StripeObject object) {
+        if (handler.getObjectType().isInstance(object) && handler.supports(event.getType())) {
+            handler.handle(event, handler.getObjectType().cast(object));
+        }
+    }
+
+    private StripeObject deserialize(Event event) {
+        EventDataObjectDeserializer deserializer = event.getDataObjectDeserializer();
+        StripeObject object = deserializer.getObject().orElse(null);
+        if (object != null) {
+            return object;
+        }
+        // the event was rendered with a different API version than this library's
+        try {
+            return deserializer.deserializeUnsafe();
+        } catch (EventDataObjectDeserializationException e) {
+            logger.error("Stripe: failed deserializing webhook event {} ({})", event.getId(), event.getType(), e);
+            return null;
+        }
+    }
+
+    // Every registered event type belongs to a customer, and each organization
+    // has a single customer and subscription, so keying on the customer keeps a
+    // subscription's invoice, payment intent and subscription events in order.
+    private static String orderingKey(StripeObject object) {
+        if (object instanceof Subscription) {
+            return ((Subscription) object).getCustomer();
+        }
+        if (object instanceof Invoice) {
+            return ((Invoice) object).getCustomer();
+        }
+        if (object instanceof PaymentIntent) {
+            return ((PaymentIntent) object).getCustomer();
+        }
+        if (object instanceof PaymentMethod) {
+            return ((PaymentMethod) object).getCustomer();
+        }
+        if (object instanceof HasId) {
+            return ((HasId) object).getId();
+        }
+        return null;
+    }
+}
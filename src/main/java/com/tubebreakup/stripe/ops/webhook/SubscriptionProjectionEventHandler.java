@@ -0,0 +1,42 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import com.stripe.model.Event;
+import com.stripe.model.Invoice;
+import com.stripe.model.PaymentIntent;
+import com.stripe.model.StripeObject;
+import com.stripe.model.Subscription;
+import com.tubebreakup.stripe.ops.SubscriptionProjection;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+// Feeds subscription, invoice and payment intent events to the subscription
+// projection.
+@Component
+public class SubscriptionProjectionEventHandler implements StripeEventHandler<StripeObject> {
+
+    @Autowired
+    private SubscriptionProjection projection;
+
+    @Override
+    public Class<StripeObject> getObjectType() {
+        return StripeObject.class;
+    }
+
+    @Override
+    public boolean supports(String eventType) {
+        return eventType.startsWith("customer.subscription.") || eventType.startsWith("invoice.")
+                || eventType.startsWith("payment_intent.");
+    }
+
+    @Override
+    public void handle(Event event, StripeObject object) {
+        long created = event.getCreated() != null ? event.getCreated() : 0;
+        if (object instanceof Subscription) {
+            projection.onSubscriptionEvent(created, (Subscription) object);
+        } else if (object instanceof Invoice) {
+            projection.onInvoiceEvent(created, (Invoice) object);
+        } else if (object instanceof PaymentIntent) {
+            projection.onPaymentIntentEvent(created, (PaymentIntent) object);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.PaymentMethod;
+import com.tubebreakup.exception.ErrorCodedHttpException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.USER;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+
+public class AsyncStripeServiceTests {
+
+    private final StripeService stripeService = Mockito.mock(StripeService.class);
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    private AsyncStripeService async;
+
+    @BeforeEach
+    public void start() throws Exception {
+        async = new AsyncStripeService();
+        ReflectionTestUtils.setField(async, "stripeService", stripeService);
+        ReflectionTestUtils.setField(async, "poolSize", 1);
+        ReflectionTestUtils.setField(async, "queueCapacity", 1);
+        async.afterPropertiesSet();
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        release.countDown();
+        async.destroy();
+    }
+
+    @Test
+    public void aRejectedInvoiceStepFailsWithTheSameErrorAsARejectedSubmit() throws Exception {
+        Mockito.when(stripeService.getSubscription(any(String.class))).thenAnswer(invocation -> {
+            release.await(5, TimeUnit.SECONDS);
+            return null;
+        });
+        // the steps finish only once the invoice step is chained, so it is submitted from the pool
+        CountDownLatch chained = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            chained.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(stripeService).voidInvoiceIfNecessary(any(), any());
+        // the pool's one thread is busy with this step and the queue filled, as the invoice step is submitted
+        Mockito.doAnswer(invocation -> {
+            async.getSubscription("sub_blocking");
+            return null;
+        })
+                .when(stripeService).updateCustomerPaymentMethod(any(), any(), any());
+
+        CompletableFuture<Void> updated = async.updateSubscription(USER, new TestOrganization(), new PaymentMethod());
+        chained.countDown();
+
+        assertThatThrownBy(() -> updated.get(5, TimeUnit.SECONDS))
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(ErrorCodedHttpException.class)
+                .hasRootCauseInstanceOf(RejectedExecutionException.class);
+        Mockito.verify(stripeService, Mockito.never()).updateInvoiceStatus(any(), any());
+    }
+}
@@ -0,0 +1,123 @@
+package com.tubebreakup.stripe.ops;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.tubebreakup.stripe.ops.CircuitBreaker.State.CLOSED;
+import static com.tubebreakup.stripe.ops.CircuitBreaker.State.HALF_OPEN;
+import static com.tubebreakup.stripe.ops.CircuitBreaker.State.OPEN;
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class CircuitBreakerTests {
+
+    private final List<String> transitions = new ArrayList<>();
+
+    @Test
+    public void staysClosedUntilMinimumCalls() {
+        CircuitBreaker breaker = breaker(10, 4, 2);
+
+        fail(breaker, 3);
+        assertThat(breaker.getState()).isEqualTo(CLOSED);
+        assertThat(breaker.tryAcquire()).isTrue();
+
+        breaker.onFailure();
+        assertThat(breaker.getState()).isEqualTo(OPEN);
+        assertThat(transitions).containsExactly("CLOSED->OPEN");
+    }
+
+    @Test
+    public void opensAtTheFailureRate() {
+        CircuitBreaker breaker = breaker(10, 4, 2);
+
+        succeed(breaker, 2);
+        fail(breaker, 1);
+        assertThat(breaker.getState()).isEqualTo(CLOSED);
+        breaker.onFailure();
+
+        // two of four
+        assertThat(breaker.getState()).isEqualTo(OPEN);
+    }
+
+    @Test
+    public void onlyTheLastWindowSizeCallsCount() {
+        CircuitBreaker breaker = breaker(4, 4, 2);
+
+        fail(breaker, 1);
+        succeed(breaker, 4);
+        fail(breaker, 1);
+        // the first failure has left the window: one of four
+        assertThat(breaker.getState()).isEqualTo(CLOSED);
+
+        breaker.onFailure();
+        assertThat(breaker.getState()).isEqualTo(OPEN);
+    }
+
+    @Test
+    public void rejectsWhileOpenThenLetsTrialCallsThrough() throws Exception {
+        CircuitBreaker breaker = breaker(4, 2, 2);
+        fail(breaker, 2);
+        assertThat(breaker.tryAcquire()).isFalse();
+
+        Thread.sleep(60);
+
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.getState()).isEqualTo(HALF_OPEN);
+        assertThat(breaker.tryAcquire()).isTrue();
+        // no more than halfOpenCalls trials
+        assertThat(breaker.tryAcquire()).isFalse();
+    }
+
+    @Test
+    public void closesWhenEveryTrialSucceeds() throws Exception {
+        CircuitBreaker breaker = halfOpen(breaker(4, 2, 2));
+
+        breaker.onSuccess();
+        assertThat(breaker.getState()).isEqualTo(HALF_OPEN);
+        breaker.onSuccess();
+
+        assertThat(breaker.getState()).isEqualTo(CLOSED);
+        assertThat(transitions).containsExactly("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->CLOSED");
+        // closed again with an empty window
+        fail(breaker, 1);
+        assertThat(breaker.getState()).isEqualTo(CLOSED);
+    }
+
+    @Test
+    public void aFailedTrialOpensItAgain() throws Exception {
+        CircuitBreaker breaker = halfOpen(breaker(4, 2, 2));
+
+        breaker.onSuccess();
+        breaker.onFailure();
+
+        assertThat(breaker.getState()).isEqualTo(OPEN);
+        assertThat(breaker.tryAcquire()).isFalse();
+        assertThat(transitions).containsExactly("CLOSED->OPEN", "OPEN->HALF_OPEN", "HALF_OPEN->OPEN");
+    }
+
+    private CircuitBreaker breaker(int windowSize, int minimumCalls, int halfOpenCalls) {
+        return new CircuitBreaker("test", windowSize, minimumCalls, 50, 50, halfOpenCalls,
+                (name, from, to) -> transitions.add(from + "->" + to));
+    }
+
+    private CircuitBreaker halfOpen(CircuitBreaker breaker) throws InterruptedException {
+        fail(breaker, breaker.getState() == CLOSED ? 2 : 0);
+        Thread.sleep(60);
+        assertThat(breaker.tryAcquire()).isTrue();
+        assertThat(breaker.tryAcquire()).isTrue();
+        return breaker;
+    }
+
+    private static void fail(CircuitBreaker breaker, int calls) {
+        for (int i = 0; i < calls; i++) {
+            breaker.onFailure();
+        }
+    }
+
+    private static void succeed(CircuitBreaker breaker, int calls) {
+        for (int i = 0; i < calls; i++) {
+            breaker.onSuccess();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+import com.tubebreakup.stripe.ops.SingleFlightTests.Caller;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.tubebreakup.stripe.ops.SingleFlightTests.await;
+import static com.tubebreakup.stripe.ops.SingleFlightTests.awaitWaiting;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class IdempotentResultCacheTests {
+
+    private static final SubscriptionUpdateResult ACTIVE = new SubscriptionUpdateResult("sub_1", "active", null, null);
+
+    private static final SubscriptionUpdateResult INCOMPLETE =
+            new SubscriptionUpdateResult("sub_1", "incomplete", "pi_1", "requires_action");
+
+    private final AtomicInteger runs = new AtomicInteger();
+
+    private IdempotentResultCache cache;
+
+    @BeforeEach
+    public void createCache() {
+        cache = new IdempotentResultCache();
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 3600L);
+        ReflectionTestUtils.setField(cache, "maxEntries", 2);
+    }
+
+    @Test
+    public void aRepeatGetsTheFirstResultWithoutRunning() {
+        IdempotentResultCache.Outcome first = cache.execute("token_1", () -> run(ACTIVE));
+        IdempotentResultCache.Outcome repeat = cache.execute("token_1", () -> run(INCOMPLETE));
+
+        assertThat(first.isRan()).isTrue();
+        assertThat(repeat.isRan()).isFalse();
+        assertThat(repeat.getResult()).isEqualTo(ACTIVE);
+        assertThat(runs.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void aRepeatInFlightWaitsForTheFirstCall() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch running = new CountDownLatch(1);
+        Caller<IdempotentResultCache.Outcome> first = Caller.start(() -> cache.execute("token_1", () -> {
+            running.countDown();
+            await(release);
+            return run(ACTIVE);
+        }));
+        await(running);
+        Caller<IdempotentResultCache.Outcome> repeat = Caller.start(() -> cache.execute("token_1", () -> run(INCOMPLETE)));
+        awaitWaiting(repeat);
+
+        release.countDown();
+
+        assertThat(first.get().isRan()).isTrue();
+        assertThat(repeat.get().isRan()).isFalse();
+        assertThat(repeat.get().getResult()).isEqualTo(ACTIVE);
+        assertThat(runs.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void aFailedCallIsNotKept() {
+        assertThatThrownBy(() -> cache.execute("token_1", () -> {
+            throw new IllegalStateException("subscription.create failed");
+        })).isInstanceOf(IllegalStateException.class);
+        assertThat(cache.size()).isZero();
+
+        IdempotentResultCache.Outcome retry = cache.execute("token_1", () -> run(ACTIVE));
+
+        assertThat(retry.isRan()).isTrue();
+        assertThat(retry.getResult()).isEqualTo(ACTIVE);
+    }
+
+    @Test
+    public void anExpiredResultRunsAgain() {
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 0L);
+        cache.execute("token_1", () -> run(ACTIVE));
+
+        IdempotentResultCache.Outcome repeat = cache.execute("token_1", () -> run(INCOMPLETE));
+
+        assertThat(repeat.isRan()).isTrue();
+        assertThat(repeat.getResult()).isEqualTo(INCOMPLETE);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    @Test
+    public void whenFullNewCallsRunUncached() {
+        cache.execute("token_1", () -> run(ACTIVE));
+        cache.execute("token_2", () -> run(ACTIVE));
+
+        IdempotentResultCache.Outcome third = cache.execute("token_3", () -> run(INCOMPLETE));
+        IdempotentResultCache.Outcome repeat = cache.execute("token_3", () -> run(INCOMPLETE));
+
+        assertThat(third.isRan()).isTrue();
+        assertThat(repeat.isRan()).isTrue();
+        assertThat(runs.get()).isEqualTo(4);
+        assertThat(cache.size()).isEqualTo(2);
+        // keys already held are still answered
+        assertThat(cache.execute("token_1", () -> run(INCOMPLETE)).getResult()).isEqualTo(ACTIVE);
+    }
+
+    @Test
+    public void expiredResultsAreEvictedToMakeRoom() {
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 0L);
+        cache.execute("token_1", () -> run(ACTIVE));
+        cache.execute("token_2", () -> run(ACTIVE));
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 3600L);
+
+        cache.execute("token_3", () -> run(INCOMPLETE));
+        IdempotentResultCache.Outcome repeat = cache.execute("token_3", () -> run(ACTIVE));
+
+        assertThat(repeat.isRan()).isFalse();
+        assertThat(repeat.getResult()).isEqualTo(INCOMPLETE);
+        assertThat(cache.size()).isEqualTo(1);
+    }
+
+    private SubscriptionUpdateResult run(SubscriptionUpdateResult result) {
+        runs.incrementAndGet();
+        return result;
+    }
+}
@@ -0,0 +1,73 @@
+package com.tubebreakup.stripe.ops;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ProrationPreviewCacheTests {
+
+    private ProrationPreviewCache cache;
+
+    private final AtomicInteger loads = new AtomicInteger();
+
+    @BeforeEach
+    public void createCache() {
+        cache = new ProrationPreviewCache();
+        ReflectionTestUtils.setField(cache, "ttlSeconds", 30L);
+        ReflectionTestUtils.setField(cache, "maxEntries", 100);
+    }
+
+    @Test
+    public void previewsAreCachedUntilTheirSubscriptionIsInvalidated() {
+        load("sub_1");
+        load("sub_1");
+        assertThat(loads.get()).isEqualTo(1);
+
+        cache.invalidate("sub_1");
+        load("sub_1");
+        assertThat(loads.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void aPreviewLoadedAcrossAnInvalidationIsNotCached() {
+        cache.get("sub_1", "price_test", 1L, 0L, () -> {
+            cache.invalidate("sub_1");
+            return preview("sub_1");
+        });
+
+        assertThat(cache.size()).isZero();
+        assertThat(generations()).isEmpty();
+    }
+
+    @Test
+    public void invalidationsKeepNothingForSubscriptionsWithoutAPreviewInFlight() {
+        for (int i = 0; i < 1000; i++) {
+            load("sub_" + i);
+            cache.invalidate("sub_" + i);
+            cache.invalidate("sub_never_previewed_" + i);
+        }
+
+        assertThat(cache.size()).isZero();
+        assertThat(generations()).isEmpty();
+    }
+
+    private ProrationPreview load(String subscriptionId) {
+        return cache.get(subscriptionId, "price_test", 1L, 0L, () -> {
+            loads.incrementAndGet();
+            return preview(subscriptionId);
+        });
+    }
+
+    private Map<?, ?> generations() {
+        return (Map<?, ?>) ReflectionTestUtils.getField(cache, "generations");
+    }
+
+    private static ProrationPreview preview(String subscriptionId) {
+        return new ProrationPreview(subscriptionId, "price_test", 1L, 0L, "usd", 0L, 0L, 0L);
+    }
+}
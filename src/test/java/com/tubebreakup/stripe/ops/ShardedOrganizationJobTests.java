@@ -0,0 +1,242 @@
+package com.tubebreakup.stripe.ops;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ShardedOrganizationJobTests {
+
+    private static final int PARTITIONS = 8;
+
+    private final MemoryLeaseStore store = new MemoryLeaseStore();
+
+    private final List<ClusterPartitions> nodes = new ArrayList<>();
+
+    private final Map<String, AtomicInteger> done = new ConcurrentHashMap<>();
+
+    @AfterEach
+    public void stopNodes() throws Exception {
+        for (ClusterPartitions node : nodes) {
+            node.destroy();
+        }
+    }
+
+    @Test
+    public void nodesShareTheRunAndDoEachOrganizationOnce() throws Exception {
+        ClusterPartitions a = start("node-a");
+        ClusterPartitions b = start("node-b");
+        awaitSplit(a, b);
+        List<LocalOrganization> organizations = organizations(200);
+
+        CompletableFuture<ShardedJobReport> onA = CompletableFuture.supplyAsync(() -> job(a).run("test", "run-1", organizations, this::work));
+        CompletableFuture<ShardedJobReport> onB = CompletableFuture.supplyAsync(() -> job(b).run("test", "run-1", organizations, this::work));
+
+        ShardedJobReport reportA = onA.get(10, TimeUnit.SECONDS);
+        ShardedJobReport reportB = onB.get(10, TimeUnit.SECONDS);
+        assertThat(reportA.getProcessed() + reportB.getProcessed()).isEqualTo(200);
+        assertThat(reportA.getUnfinished() + reportB.getUnfinished()).isZero();
+        assertThat(done).hasSize(200).allSatisfy((uuid, count) -> assertThat(count.get()).isEqualTo(1));
+    }
+
+    @Test
+    public void partitionsOfANodeThatLeavesArePickedUp() throws Exception {
+        ClusterPartitions a = start("node-a");
+        ClusterPartitions b = start("node-b");
+        awaitSplit(a, b);
+        List<LocalOrganization> organizations = organizations(200);
+
+        // b never runs the job and goes away while a is waiting on its partitions
+        CompletableFuture<ShardedJobReport> onA = CompletableFuture.supplyAsync(() -> job(a).run("test", "run-1", organizations, this::work));
+        Thread.sleep(100);
+        assertThat(onA).isNotDone();
+        b.destroy();
+
+        ShardedJobReport report = onA.get(10, TimeUnit.SECONDS);
+        assertThat(report.getProcessed()).isEqualTo(200);
+        assertThat(report.getUnfinished()).isZero();
+        assertThat(store.completedPartitions("run-1")).hasSize(new HashSet<>(partitionsOf(a, organizations)).size());
+    }
+
+    @Test
+    public void handedOverLeasesAreReleasedAfterTheGracePeriod() throws Exception {
+        ClusterPartitions a = node("node-a");
+        a.rebalance();
+        assertThat(a.getOwnedPartitions()).hasSize(PARTITIONS);
+
+        store.heartbeat("node-b", System.currentTimeMillis());
+        a.rebalance();
+        assertThat(a.getOwnedPartitions()).hasSizeLessThan(PARTITIONS);
+        assertThat(store.releases.get()).isZero();
+
+        Thread.sleep(400);
+        store.heartbeat("node-b", System.currentTimeMillis());
+        a.rebalance();
+        assertThat(store.releases.get()).isEqualTo(PARTITIONS - a.getOwnedPartitions().size());
+    }
+
+    @Test
+    public void handedOverLeasesAreRenewedThroughAGraceLongerThanTheLease() throws Exception {
+        ClusterPartitions a = node("node-a");
+        ReflectionTestUtils.setField(a, "handoverGraceMillis", 1500L);
+        a.rebalance();
+        store.heartbeat("node-b", System.currentTimeMillis());
+        a.rebalance();
+        Set<Integer> handedOver = new HashSet<>();
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            if (!a.getOwnedPartitions().contains(partition)) {
+                handedOver.add(partition);
+            }
+        }
+        assertThat(handedOver).isNotEmpty();
+
+        Thread.sleep(600);
+        store.heartbeat("node-b", System.currentTimeMillis());
+        a.rebalance();
+        // past the one second lease taken before the handover
+        Thread.sleep(600);
+        long now = System.currentTimeMillis();
+        for (Integer partition : handedOver) {
+            assertThat(store.acquire(partition, "node-b", now, now + 1000)).isFalse();
+        }
+
+        Thread.sleep(400);
+        store.heartbeat("node-b", System.currentTimeMillis());
+        a.rebalance();
+        assertThat(store.releases.get()).isEqualTo(handedOver.size());
+    }
+
+    private void work(LocalOrganization organization) {
+        done.computeIfAbsent(organization.getUuid(), uuid -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private ClusterPartitions node(String nodeId) {
+        ClusterPartitions node = new ClusterPartitions();
+        ReflectionTestUtils.setField(node, "leaseStore", store);
+        ReflectionTestUtils.setField(node, "enabled", true);
+        ReflectionTestUtils.setField(node, "nodeId", nodeId);
+        ReflectionTestUtils.setField(node, "partitionCount", PARTITIONS);
+        ReflectionTestUtils.setField(node, "leaseSeconds", 1L);
+        ReflectionTestUtils.setField(node, "handoverGraceMillis", 300L);
+        return node;
+    }
+
+    private ClusterPartitions start(String nodeId) throws Exception {
+        ClusterPartitions node = node(nodeId);
+        node.afterPropertiesSet();
+        nodes.add(node);
+        return node;
+    }
+
+    private ShardedOrganizationJob job(ClusterPartitions node) {
+        ShardedOrganizationJob job = new ShardedOrganizationJob();
+        ReflectionTestUtils.setField(job, "partitions", node);
+        ReflectionTestUtils.setField(job, "pollMillis", 20L);
+        ReflectionTestUtils.setField(job, "timeoutSeconds", 10L);
+        return job;
+    }
+
+    private static void awaitSplit(ClusterPartitions a, ClusterPartitions b) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            Set<Integer> owned = new HashSet<>(a.getOwnedPartitions());
+            if (!owned.isEmpty() && !b.getOwnedPartitions().isEmpty() && owned.size() + b.getOwnedPartitions().size() == PARTITIONS) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        throw new AssertionError("partitions were not split between the nodes");
+    }
+
+    private static List<LocalOrganization> organizations(int count) {
+        List<LocalOrganization> organizations = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            organizations.add(new TestOrganization());
+        }
+        return organizations;
+    }
+
+    private static List<Integer> partitionsOf(ClusterPartitions node, List<LocalOrganization> organizations) {
+        List<Integer> partitions = new ArrayList<>();
+        for (LocalOrganization organization : organizations) {
+            partitions.add(node.partitionOf(organization.getUuid()));
+        }
+        return partitions;
+    }
+
+    static class MemoryLeaseStore implements PartitionLeaseStore {
+
+        private final Map<String, Long> heartbeats = new HashMap<>();
+
+        private final Map<Integer, String> owners = new HashMap<>();
+
+        private final Map<Integer, Long> expiries = new HashMap<>();
+
+        private final Map<String, Set<Integer>> runs = new HashMap<>();
+
+        final AtomicInteger releases = new AtomicInteger();
+
+        @Override
+        public synchronized void heartbeat(String nodeId, long now) {
+            heartbeats.put(nodeId, now);
+        }
+
+        @Override
+        public synchronized Set<String> liveNodes(long since) {
+            Set<String> live = new HashSet<>();
+            heartbeats.forEach((node, at) -> {
+                if (at >= since) {
+                    live.add(node);
+                }
+            });
+            return live;
+        }
+
+        @Override
+        public synchronized boolean acquire(int partition, String nodeId, long now, long expiresAt) {
+            String owner = owners.get(partition);
+            if (owner != null && !owner.equals(nodeId) && expiries.get(partition) >= now) {
+                return false;
+            }
+            owners.put(partition, nodeId);
+            expiries.put(partition, expiresAt);
+            return true;
+        }
+
+        @Override
+        public synchronized void release(int partition, String nodeId) {
+            if (nodeId.equals(owners.get(partition))) {
+                owners.remove(partition);
+                releases.incrementAndGet();
+            }
+        }
+
+        @Override
+        public synchronized void complete(String runId, int partition, String nodeId, long now) {
+            runs.computeIfAbsent(runId, id -> new HashSet<>()).add(partition);
+        }
+
+        @Override
+        public synchronized Set<Integer> completedPartitions(String runId) {
+            return new HashSet<>(runs.getOrDefault(runId, new HashSet<>()));
+        }
+
+        @Override
+        public synchronized void leave(String nodeId) {
+            owners.values().removeIf(nodeId::equals);
+            heartbeats.remove(nodeId);
+        }
+    }
+}
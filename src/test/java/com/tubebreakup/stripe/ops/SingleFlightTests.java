@@ -0,0 +1,134 @@
+package com.tubebreakup.stripe.ops;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SingleFlightTests {
+
+    private final SingleFlight<String, String> flights = new SingleFlight<>();
+
+    private final AtomicInteger runs = new AtomicInteger();
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    public void aFollowerSharesTheLeadersResult() throws Exception {
+        Caller<String> leader = Caller.start(() -> flights.execute("org_1", () -> {
+            runs.incrementAndGet();
+            await(release);
+            return "cus_1";
+        }));
+        awaitRuns(1);
+        Caller<String> follower = Caller.start(() -> flights.execute("org_1", () -> {
+            runs.incrementAndGet();
+            return "cus_2";
+        }));
+        awaitWaiting(follower);
+
+        release.countDown();
+
+        assertThat(leader.get()).isEqualTo("cus_1");
+        assertThat(follower.get()).isEqualTo("cus_1");
+        assertThat(runs.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void aFollowerSharesTheLeadersException() throws Exception {
+        Caller<String> leader = Caller.start(() -> flights.execute("org_1", () -> {
+            runs.incrementAndGet();
+            await(release);
+            throw new IllegalStateException("customer.create failed");
+        }));
+        awaitRuns(1);
+        Caller<String> follower = Caller.start(() -> flights.execute("org_1", () -> {
+            runs.incrementAndGet();
+            return "cus_2";
+        }));
+        awaitWaiting(follower);
+
+        release.countDown();
+
+        assertThatThrownBy(() -> leader.get()).hasCauseInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> follower.get())
+                .hasCauseInstanceOf(IllegalStateException.class)
+                .hasMessageContaining("customer.create failed");
+        assertThat(runs.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void theKeyIsReleasedOnceTheWorkFinishes() {
+        assertThat(flights.execute("org_1", () -> "cus_1")).isEqualTo("cus_1");
+        assertThat(flights.execute("org_1", () -> "cus_2")).isEqualTo("cus_2");
+
+        assertThatThrownBy(() -> flights.execute("org_2", () -> {
+            throw new IllegalStateException("customer.create failed");
+        })).isInstanceOf(IllegalStateException.class);
+        assertThat(flights.execute("org_2", () -> "cus_3")).isEqualTo("cus_3");
+    }
+
+    @Test
+    public void differentKeysDoNotWaitOnEachOther() throws Exception {
+        Caller<String> leader = Caller.start(() -> flights.execute("org_1", () -> {
+            await(release);
+            return "cus_1";
+        }));
+
+        assertThat(flights.execute("org_2", () -> "cus_2")).isEqualTo("cus_2");
+
+        release.countDown();
+        assertThat(leader.get()).isEqualTo("cus_1");
+    }
+
+    private void awaitRuns(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (runs.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(runs.get()).isEqualTo(expected);
+    }
+
+    // a follower parks in join() while the leader is in flight
+    static void awaitWaiting(Caller<?> caller) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (caller.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(caller.getState()).isEqualTo(Thread.State.WAITING);
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static class Caller<V> extends Thread {
+        private final FutureTask<V> task;
+
+        private Caller(FutureTask<V> task) {
+            super(task);
+            this.task = task;
+            setDaemon(true);
+        }
+
+        static <V> Caller<V> start(Callable<V> call) {
+            Caller<V> caller = new Caller<>(new FutureTask<>(call));
+            caller.start();
+            return caller;
+        }
+
+        V get() throws Exception {
+            return task.get(5, TimeUnit.SECONDS);
+        }
+    }
+}
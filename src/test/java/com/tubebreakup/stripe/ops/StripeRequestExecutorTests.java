@@ -0,0 +1,178 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.exception.ApiConnectionException;
+import com.stripe.exception.CardException;
+import com.stripe.exception.InvalidRequestException;
+import com.stripe.exception.RateLimitException;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StripeRequestExecutorTests {
+
+    private final StripeAccount account = new StripeAccount(StripeAccounts.DEFAULT, "sk_test_executor", 1000, 1000, 1, 1);
+
+    private final AtomicInteger attempts = new AtomicInteger();
+
+    private StripeRequestExecutor executor;
+
+    @BeforeEach
+    public void createExecutor() throws Exception {
+        StripeMetrics metrics = new StripeMetrics();
+        ReflectionTestUtils.setField(metrics, "registry", new SimpleMeterRegistry());
+        metrics.afterPropertiesSet();
+        StripeAccounts accounts = Mockito.mock(StripeAccounts.class);
+        Mockito.when(accounts.getDefault()).thenReturn(account);
+
+        executor = new StripeRequestExecutor();
+        ReflectionTestUtils.setField(executor, "metrics", metrics);
+        ReflectionTestUtils.setField(executor, "accounts", accounts);
+        ReflectionTestUtils.setField(executor, "requestsPerSecond", 0d);
+        ReflectionTestUtils.setField(executor, "maxAttempts", 4);
+        ReflectionTestUtils.setField(executor, "initialBackoffMillis", 1L);
+        ReflectionTestUtils.setField(executor, "maxBackoffMillis", 5L);
+        ReflectionTestUtils.setField(executor, "circuitEnabled", true);
+        ReflectionTestUtils.setField(executor, "circuitWindowSize", 4);
+        ReflectionTestUtils.setField(executor, "circuitMinimumCalls", 4);
+        ReflectionTestUtils.setField(executor, "circuitFailureRatePercent", 50);
+        ReflectionTestUtils.setField(executor, "circuitOpenMillis", 60000L);
+        ReflectionTestUtils.setField(executor, "circuitHalfOpenCalls", 1);
+        ReflectionTestUtils.setField(executor, "maxConcurrentReads", 1);
+        ReflectionTestUtils.setField(executor, "maxConcurrentWrites", 1);
+        ReflectionTestUtils.setField(executor, "bulkheadMaxWaitMillis", 10L);
+        executor.afterPropertiesSet();
+    }
+
+    @Test
+    public void retriesKeepTheIdempotencyKey() throws Exception {
+        List<String> keys = Collections.synchronizedList(new ArrayList<>());
+
+        String result = executor.write("customer.create", options -> {
+            keys.add(options.getIdempotencyKey());
+            if (attempts.incrementAndGet() < 3) {
+                throw rateLimited();
+            }
+            return "cus_1";
+        });
+
+        assertThat(result).isEqualTo("cus_1");
+        assertThat(keys).hasSize(3).doesNotContainNull();
+        assertThat(new HashSet<>(keys)).hasSize(1);
+    }
+
+    @Test
+    public void writesUseTheCallersKeyAndReadsNone() throws Exception {
+        List<String> keys = new ArrayList<>();
+
+        executor.write(account, "customer.create", "customer.create:org_1", options -> keys.add(options.getIdempotencyKey()));
+        executor.read("customer.retrieve", options -> keys.add(options.getIdempotencyKey()));
+
+        assertThat(keys).containsExactly("customer.create:org_1", null);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        assertThatThrownBy(() -> executor.read("subscription.retrieve", options -> {
+            attempts.incrementAndGet();
+            throw new ApiConnectionException("connection reset");
+        })).isInstanceOf(ApiConnectionException.class);
+
+        assertThat(attempts.get()).isEqualTo(4);
+    }
+
+    @Test
+    public void doesNotRetryFailuresThatWouldFailAgain() {
+        assertThatThrownBy(() -> executor.read("subscription.retrieve", options -> {
+            attempts.incrementAndGet();
+            throw new InvalidRequestException("No such subscription", "req_1", "resource_missing", "id", 404, null);
+        })).isInstanceOf(InvalidRequestException.class);
+
+        assertThat(attempts.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void anOpenCircuitRejectsWithoutCallingStripe() throws Exception {
+        // one call, four failed attempts
+        assertThatThrownBy(() -> executor.read("subscription.retrieve", options -> {
+            attempts.incrementAndGet();
+            throw new ApiConnectionException("connection reset");
+        })).isInstanceOf(ApiConnectionException.class);
+        attempts.set(0);
+
+        assertThatThrownBy(() -> executor.read("subscription.retrieve", options -> attempts.incrementAndGet()))
+                .isInstanceOf(StripeCallRejectedException.class);
+        assertThat(attempts.get()).isZero();
+        // breakers are per operation
+        String other = executor.read("customer.retrieve", options -> "cus_1");
+        assertThat(other).isEqualTo("cus_1");
+    }
+
+    @Test
+    public void declinesDoNotOpenTheCircuit() throws Exception {
+        for (int i = 0; i < 6; i++) {
+            assertThatThrownBy(() -> executor.write("invoice.pay", options -> {
+                throw new CardException("Your card was declined.", "req_1", "card_declined", null,
+                        "generic_decline", null, 402, null);
+            })).isInstanceOf(CardException.class);
+        }
+
+        String paid = executor.write("invoice.pay", options -> "in_1");
+        assertThat(paid).isEqualTo("in_1");
+    }
+
+    @Test
+    public void aFullBulkheadRejectsAfterItsWait() throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> holding = CompletableFuture.supplyAsync(() -> {
+            try {
+                return executor.write("customer.update", options -> {
+                    entered.countDown();
+                    await(release);
+                    return "cus_1";
+                });
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+
+        assertThatThrownBy(() -> executor.write("customer.create", options -> attempts.incrementAndGet()))
+                .isInstanceOf(StripeCallRejectedException.class);
+        // reads have their own permits
+        String read = executor.read("customer.retrieve", options -> "cus_1");
+        assertThat(read).isEqualTo("cus_1");
+
+        release.countDown();
+        assertThat(holding.get(5, TimeUnit.SECONDS)).isEqualTo("cus_1");
+        assertThat(attempts.get()).isZero();
+        String created = executor.write("customer.create", options -> "cus_2");
+        assertThat(created).isEqualTo("cus_2");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static RateLimitException rateLimited() {
+        return new RateLimitException("Too many requests", "req_1", "rate_limit", null, 429, null);
+    }
+}
@@ -0,0 +1,249 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.PaymentMethod;
+import com.stripe.model.Subscription;
+import com.stripe.model.WebhookEndpoint;
+import com.tubebreakup.model.config.AppConfigManager;
+import com.tubebreakup.stripe.LocalPaymentMethod;
+import com.tubebreakup.stripe.ops.standin.StripeStandIn;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.ComponentScan;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.PLAN;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.PRICE_ID;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.USER;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.WORKING_CARD;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.card;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.plan;
+
+// Every public StripeService operation against a StripeStandIn without latency,
+// so the numbers are the library's own cost: the executor, cache, single
+// flights and (de)serialization around each Stripe request. Throughput and
+// sampled latency percentiles per operation; the benchmark profile adds the
+// gc profiler for bytes allocated per operation (gc.alloc.rate.norm).
+//
+//   mvn -Pbenchmark verify -Dbenchmark.include=StripeServiceBenchmark
+//
+// Operations that consume an organization (createSubscription,
+// cancelSubscription) get a fresh one per invocation, prepared outside the
+// timing; the gc profiler still counts that preparation's allocations.
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class StripeServiceBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Stripe {
+
+        ConfigurableApplicationContext context;
+
+        StripeService stripeService;
+
+        StripeObjectCache cache;
+
+        StripeStandIn standIn;
+
+        @Setup(Level.Trial)
+        public void start() {
+            context = new SpringApplicationBuilder(BenchmarkConfiguration.class)
+                    .web(WebApplicationType.NONE)
+                    .logStartupInfo(false)
+                    // the account's rate limit would otherwise be all there is to measure
+                    .properties("logging.level.com.tubebreakup=WARN",
+                            "stripe.rateLimit.requestsPerSecond=1000000", "stripe.rateLimit.burst=1000000")
+                    .run();
+            stripeService = context.getBean(StripeService.class);
+            cache = context.getBean(StripeObjectCache.class);
+            standIn = new StripeStandIn().install();
+            standIn.addPrice(PRICE_ID, "prod_test", 1000, "usd", true);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() {
+            StripeStandIn.uninstall();
+            context.close();
+        }
+
+        TestOrganization withPaymentMethod() {
+            TestOrganization organization = new TestOrganization();
+            organization.getLocalPaymentMethod().setExternalId(stripeService.createPaymentMethod(USER, card(WORKING_CARD)).getId());
+            return organization;
+        }
+
+        TestOrganization subscribed() {
+            TestOrganization organization = withPaymentMethod();
+            stripeService.createSubscription(USER, organization, PLAN, null);
+            return organization;
+        }
+    }
+
+    // one subscribed organization per thread, reused by every invocation
+    @State(Scope.Thread)
+    public static class Customer {
+
+        TestOrganization organization;
+
+        String subscriptionId;
+
+        PaymentMethod paymentMethod;
+
+        BenchmarkPaymentMethod localPaymentMethod = new BenchmarkPaymentMethod();
+
+        @Setup(Level.Trial)
+        public void subscribe(Stripe stripe) {
+            organization = stripe.subscribed();
+            subscriptionId = organization.getLocalSubscription().getExternalId();
+            paymentMethod = stripe.stripeService.createPaymentMethod(USER, card(WORKING_CARD));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Unsubscribed {
+
+        TestOrganization organization;
+
+        @Setup(Level.Invocation)
+        public void prepare(Stripe stripe) {
+            organization = stripe.withPaymentMethod();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Subscribed {
+
+        TestOrganization organization;
+
+        @Setup(Level.Invocation)
+        public void prepare(Stripe stripe) {
+            organization = stripe.subscribed();
+        }
+    }
+
+    @Benchmark
+    public String createWebhookEndpointIfNecessary(Stripe stripe) {
+        return stripe.stripeService.createWebhookEndpointIfNecessary();
+    }
+
+    @Benchmark
+    public WebhookEndpoint fetchWebhookEndpoint(Stripe stripe) {
+        return stripe.stripeService.fetchWebhookEndpoint("https://api.talentdrop.com:8080/webhooks");
+    }
+
+    @Benchmark
+    public TestOrganization createSubscription(Stripe stripe, Unsubscribed unsubscribed) {
+        stripe.stripeService.createSubscription(USER, unsubscribed.organization, PLAN, null);
+        return unsubscribed.organization;
+    }
+
+    @Benchmark
+    public Subscription getSubscription(Stripe stripe, Customer customer) {
+        return stripe.stripeService.getSubscription(customer.subscriptionId);
+    }
+
+    @Benchmark
+    public Subscription getSubscriptionUncached(Stripe stripe, Customer customer) {
+        stripe.cache.invalidate(Subscription.class, customer.subscriptionId);
+        return stripe.stripeService.getSubscription(customer.subscriptionId);
+    }
+
+    @Benchmark
+    public TestOrganization updateSubscriptionPlan(Stripe stripe, Customer customer) {
+        stripe.stripeService.updateSubscriptionPlan(USER, customer.organization, plan(PRICE_ID, 5L));
+        return customer.organization;
+    }
+
+    @Benchmark
+    public ProrationPreview previewSubscriptionPlan(Stripe stripe, Customer customer) {
+        return stripe.stripeService.previewSubscriptionPlan(USER, customer.organization, plan(PRICE_ID, 7L));
+    }
+
+    @Benchmark
+    public TestOrganization cancelSubscription(Stripe stripe, Subscribed subscribed) {
+        stripe.stripeService.cancelSubscription(USER, subscribed.organization);
+        return subscribed.organization;
+    }
+
+    @Benchmark
+    public String createDefaultPaymentMethod(Stripe stripe) {
+        return stripe.stripeService.createPaymentMethod(USER);
+    }
+
+    @Benchmark
+    public PaymentMethod createPaymentMethod(Stripe stripe) {
+        return stripe.stripeService.createPaymentMethod(USER, card(WORKING_CARD));
+    }
+
+    @Benchmark
+    public PaymentMethod refreshPaymentMethod(Stripe stripe, Customer customer) {
+        return stripe.stripeService.refreshPaymentMethod(USER, customer.localPaymentMethod, customer.paymentMethod.getId());
+    }
+
+    @Benchmark
+    public List<PaymentMethod> refreshPaymentMethods(Stripe stripe, Customer customer) {
+        return stripe.stripeService.refreshPaymentMethods(USER, customer.organization);
+    }
+
+    @Benchmark
+    public TestOrganization updateSubscription(Stripe stripe, Customer customer) {
+        stripe.stripeService.updateSubscription(USER, customer.organization, customer.paymentMethod);
+        return customer.organization;
+    }
+
+    @Benchmark
+    public TestOrganization refreshSubscriptionStatus(Stripe stripe, Customer customer) {
+        stripe.stripeService.refreshSubscriptionStatus(USER, customer.organization);
+        return customer.organization;
+    }
+
+    // registered directly rather than scanned, so the test context never picks it up
+    @ComponentScan("com.tubebreakup.stripe.ops")
+    static class BenchmarkConfiguration {
+
+        @Bean
+        public AppConfigManager appConfigManager() {
+            return Mockito.mock(AppConfigManager.class);
+        }
+    }
+
+    static class BenchmarkPaymentMethod extends TestOrganization.Entity implements LocalPaymentMethod {
+
+        @Override
+        public void setType(String type) {
+        }
+
+        @Override
+        public void setLast4(String last4) {
+        }
+
+        @Override
+        public void setExpirationMonth(Long expirationMonth) {
+        }
+
+        @Override
+        public void setExpirationYear(Long expirationYear) {
+        }
+    }
+}
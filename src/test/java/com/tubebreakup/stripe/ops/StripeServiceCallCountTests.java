@@ -0,0 +1,191 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.PaymentMethod;
+import com.stripe.param.PaymentMethodCreateParams;
+import com.tubebreakup.model.NameProvider;
+import com.tubebreakup.stripe.SubscriptionMetaProvider;
+import com.tubebreakup.stripe.ops.standin.StripeStandIn;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+// Stripe requests per StripeService operation, so composite operations keep
+// sharing one fetch of the subscription (with its latest invoice and payment
+// intent expanded) instead of each step retrieving it again.
+@SpringBootTest(classes = StripeTestConfiguration.class)
+public class StripeServiceCallCountTests {
+
+    static final String PRICE_ID = "price_test";
+
+    static final String WORKING_CARD = "4242424242424242";
+
+    static final NameProvider USER = () -> "billing@example.com";
+
+    static final SubscriptionMetaProvider PLAN = plan(PRICE_ID, 3L);
+
+    @Autowired
+    private StripeService stripeService;
+
+    @Autowired
+    private StripeObjectCache cache;
+
+    private StripeStandIn standIn;
+
+    @BeforeEach
+    public void installStandIn() {
+        standIn = new StripeStandIn().install();
+        standIn.addPrice(PRICE_ID, "prod_test", 1000, "usd", true);
+        cache.invalidateAll();
+    }
+
+    @AfterEach
+    public void uninstallStandIn() {
+        StripeStandIn.uninstall();
+    }
+
+    @Test
+    public void updateSubscriptionVoidsDeclinedInvoiceWithOneSubscriptionRetrieve() {
+        TestOrganization organization = subscribe(StripeStandIn.DECLINING_CARD);
+        assertThat(organization.getLastSubscriptionUpdate().getPaymentIntentStatus()).isEqualTo("requires_payment_method");
+        PaymentMethod replacement = stripeService.createPaymentMethod(USER, card(WORKING_CARD));
+        cache.invalidateAll();
+        standIn.resetCounts();
+
+        stripeService.updateSubscription(USER, organization, replacement);
+
+        Map<String, Long> counts = standIn.getRequestCounts();
+        assertThat(counts.get("subscription.retrieve")).isEqualTo(1L);
+        assertThat(counts).doesNotContainKey("invoice.retrieve");
+        assertThat(counts.get("invoice.void")).isEqualTo(1L);
+        assertThat(counts.get("payment_method.attach")).isEqualTo(1L);
+        assertThat(counts.get("customer.update")).isEqualTo(1L);
+        assertThat(standIn.getRequestCount()).isLessThanOrEqualTo(4L);
+    }
+
+    @Test
+    public void updateSubscriptionRepeatedWithItsTokenWritesOnce() {
+        TestOrganization organization = subscribe(StripeStandIn.DECLINING_CARD);
+        PaymentMethod replacement = stripeService.createPaymentMethod(USER, card(WORKING_CARD));
+        cache.invalidateAll();
+        standIn.resetCounts();
+
+        stripeService.updateSubscription(USER, organization, replacement, "tok_1");
+        Map<String, Long> first = standIn.getRequestCounts();
+        stripeService.updateSubscription(USER, organization, replacement, "tok_1");
+
+        assertThat(standIn.getRequestCounts()).isEqualTo(first);
+        assertThat(first.get("invoice.void")).isEqualTo(1L);
+        assertThat(first.get("payment_method.attach")).isEqualTo(1L);
+    }
+
+    @Test
+    public void createSubscriptionReportsEachResultToTheHostOnce() {
+        TestOrganization organization = new TestOrganization();
+        organization.getLocalPaymentMethod().setExternalId(stripeService.createPaymentMethod(USER, card(WORKING_CARD)).getId());
+
+        stripeService.createSubscription(USER, organization, PLAN, null, "tok_1");
+        assertThat(organization.getUpdateCount()).isEqualTo(1);
+
+        // a repeat with its own copy of the organization gets the result applied to that copy
+        TestOrganization copy = new TestOrganization(organization.getUuid());
+        copy.getLocalPaymentMethod().setExternalId(organization.getLocalPaymentMethod().getExternalId());
+        stripeService.createSubscription(USER, copy, PLAN, null, "tok_1");
+        assertThat(copy.getUpdateCount()).isEqualTo(1);
+        assertThat(organization.getUpdateCount()).isEqualTo(1);
+        assertThat(standIn.getRequestCount("subscription.create")).isEqualTo(1L);
+    }
+
+    @Test
+    public void updateSubscriptionOnPaidSubscriptionRetrievesItOnce() {
+        TestOrganization organization = subscribe(WORKING_CARD);
+        PaymentMethod replacement = stripeService.createPaymentMethod(USER, card(WORKING_CARD));
+        cache.invalidateAll();
+        standIn.resetCounts();
+
+        stripeService.updateSubscription(USER, organization, replacement);
+
+        Map<String, Long> counts = standIn.getRequestCounts();
+        assertThat(counts.get("subscription.retrieve")).isEqualTo(1L);
+        assertThat(counts).doesNotContainKeys("invoice.retrieve", "invoice.void", "invoice.pay");
+        assertThat(standIn.getRequestCount()).isLessThanOrEqualTo(3L);
+    }
+
+    @Test
+    public void refreshSubscriptionStatusRetrievesSubscriptionOnce() {
+        TestOrganization organization = subscribe(WORKING_CARD);
+        cache.invalidateAll();
+        standIn.resetCounts();
+
+        stripeService.refreshSubscriptionStatus(USER, organization);
+
+        assertThat(standIn.getRequestCounts()).containsOnlyKeys("subscription.retrieve");
+        assertThat(standIn.getRequestCount("subscription.retrieve")).isEqualTo(1L);
+
+        standIn.resetCounts();
+        stripeService.refreshSubscriptionStatus(USER, organization);
+        assertThat(standIn.getRequestCount()).isZero();
+    }
+
+    @Test
+    public void updateSubscriptionPlanUpdatesByIdWithoutRetrieving() {
+        TestOrganization organization = subscribe(WORKING_CARD);
+        cache.invalidateAll();
+        standIn.resetCounts();
+
+        stripeService.updateSubscriptionPlan(USER, organization, plan(PRICE_ID, 5L));
+
+        assertThat(standIn.getRequestCounts()).containsOnlyKeys("subscription.update");
+        assertThat(standIn.getRequestCount("subscription.update")).isEqualTo(1L);
+    }
+
+    @Test
+    public void cancelSubscriptionCancelsByIdWithoutRetrieving() {
+        TestOrganization organization = subscribe(WORKING_CARD);
+        cache.invalidateAll();
+        standIn.resetCounts();
+
+        stripeService.cancelSubscription(USER, organization);
+
+        assertThat(standIn.getRequestCounts()).containsOnlyKeys("subscription.cancel");
+        assertThat(organization.getLocalSubscription().getExternalId()).isNull();
+    }
+
+    private TestOrganization subscribe(String cardNumber) {
+        TestOrganization organization = new TestOrganization();
+        organization.getLocalPaymentMethod().setExternalId(stripeService.createPaymentMethod(USER, card(cardNumber)).getId());
+        stripeService.createSubscription(USER, organization, PLAN, null);
+        return organization;
+    }
+
+    static PaymentMethodCreateParams card(String number) {
+        return PaymentMethodCreateParams.builder()
+                .setType(PaymentMethodCreateParams.Type.CARD)
+                .setCard(PaymentMethodCreateParams.CardDetails.builder()
+                        .setNumber(number)
+                        .setExpMonth(12L)
+                        .setExpYear(2099L)
+                        .setCvc("333")
+                        .build())
+                .build();
+    }
+
+    static SubscriptionMetaProvider plan(String priceId, Long quantity) {
+        return new SubscriptionMetaProvider() {
+            @Override
+            public Long getQuantity() {
+                return quantity;
+            }
+
+            @Override
+            public String getPriceId() {
+                return priceId;
+            }
+        };
+    }
+}
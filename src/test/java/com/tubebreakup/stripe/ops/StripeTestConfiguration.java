@@ -0,0 +1,16 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.model.config.AppConfigManager;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.Configuration;
+
+// The library's components as a host application would scan them, for tests
+// running against a StripeStandIn.
+@Configuration
+@ComponentScan("com.tubebreakup.stripe.ops")
+public class StripeTestConfiguration {
+
+    @MockBean
+    private AppConfigManager appConfigManager;
+}
@@ -0,0 +1,213 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+import com.tubebreakup.stripe.ops.standin.StripeStandIn;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.PLAN;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.PRICE_ID;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.USER;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.WORKING_CARD;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.card;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.plan;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+
+@SpringBootTest(classes = StripeTestConfiguration.class)
+public class SubscriptionOutboxTests {
+
+    @Autowired
+    private StripeService stripeService;
+
+    private StripeStandIn standIn;
+
+    private Lookup lookup;
+
+    private MemoryStore store;
+
+    private SubscriptionOutbox outbox;
+
+    @BeforeEach
+    public void start() throws Exception {
+        standIn = new StripeStandIn().install();
+        standIn.addPrice(PRICE_ID, "prod_test", 1000, "usd", true);
+        lookup = new Lookup();
+        store = new MemoryStore();
+        outbox = new SubscriptionOutbox();
+        ReflectionTestUtils.setField(outbox, "stripeService", stripeService);
+        ReflectionTestUtils.setField(outbox, "organizationLookup", lookup);
+        ReflectionTestUtils.setField(outbox, "store", store);
+        ReflectionTestUtils.setField(outbox, "registry", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(outbox, "enabled", true);
+        ReflectionTestUtils.setField(outbox, "pollMillis", 5L);
+        ReflectionTestUtils.setField(outbox, "parallelism", 2);
+        ReflectionTestUtils.setField(outbox, "maxAttempts", 3);
+        ReflectionTestUtils.setField(outbox, "initialBackoffMillis", 1L);
+        ReflectionTestUtils.setField(outbox, "maxBackoffMillis", 5L);
+        ReflectionTestUtils.setField(outbox, "shutdownTimeoutSeconds", 5L);
+        outbox.afterPropertiesSet();
+    }
+
+    @AfterEach
+    public void stop() throws Exception {
+        outbox.destroy();
+        StripeStandIn.uninstall();
+    }
+
+    @Test
+    public void drainedCancellationsAreReportedToTheHost() throws Exception {
+        TestOrganization organization = subscribe();
+
+        outbox.enqueueCancel(USER, organization);
+        await(() -> store.open().isEmpty());
+
+        SubscriptionUpdateResult reported = lookup.lastCopy(organization.getUuid()).getLastSubscriptionUpdate();
+        assertThat(reported.getSubscriptionStatus()).isEqualTo("canceled");
+    }
+
+    @Test
+    public void unexpectedFailuresParkTheOrganizationWithoutRetrying() throws Exception {
+        TestOrganization organization = subscribe();
+        lookup.failUpdates(organization.getUuid());
+        standIn.resetCounts();
+
+        outbox.enqueueUpdatePlan(USER, organization, plan(PRICE_ID, 5L));
+        await(() -> outbox.parkedCount() == 1);
+        outbox.enqueueCancel(USER, organization);
+        Thread.sleep(50);
+
+        assertThat(standIn.getRequestCount("subscription.update")).isEqualTo(1L);
+        assertThat(standIn.getRequestCount("subscription.cancel")).isZero();
+        assertThat(outbox.pendingCount()).isEqualTo(2);
+        // kept for the next start to recover
+        assertThat(store.open()).hasSize(2);
+    }
+
+    @Test
+    public void retriesOfAGrowingPlanRunStillParkAfterMaxAttempts() throws Exception {
+        TestOrganization organization = subscribe();
+        StripeService failing = Mockito.mock(StripeService.class);
+        AtomicInteger attempts = new AtomicInteger();
+        Mockito.doAnswer(invocation -> {
+            // another plan change arrives behind the failing run before each retry
+            if (attempts.incrementAndGet() < 10) {
+                outbox.enqueueUpdatePlan(USER, organization, plan(PRICE_ID, 5L + attempts.get()));
+            }
+            throw StripeCallRejectedException.circuitOpen("subscription.update");
+        }).when(failing).applySubscriptionPlan(any(), any(), any(), any(), any());
+        ReflectionTestUtils.setField(outbox, "stripeService", failing);
+
+        outbox.enqueueUpdatePlan(USER, organization, plan(PRICE_ID, 5L));
+        await(() -> outbox.parkedCount() == 1);
+
+        assertThat(attempts.get()).isEqualTo(3);
+    }
+
+    private TestOrganization subscribe() {
+        TestOrganization organization = new TestOrganization();
+        organization.getLocalPaymentMethod().setExternalId(stripeService.createPaymentMethod(USER, card(WORKING_CARD)).getId());
+        stripeService.createSubscription(USER, organization, PLAN, null);
+        lookup.add(organization);
+        return organization;
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!condition.getAsBoolean() && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(condition.getAsBoolean()).isTrue();
+    }
+
+    // hands out a fresh copy per lookup, like a host loading the organization from its database
+    static class Lookup implements LocalOrganizationLookup {
+
+        private final Map<String, TestOrganization> organizations = new ConcurrentHashMap<>();
+
+        private final Map<String, TestOrganization> copies = new ConcurrentHashMap<>();
+
+        private final Map<String, Boolean> failing = new ConcurrentHashMap<>();
+
+        void add(TestOrganization organization) {
+            organizations.put(organization.getUuid(), organization);
+        }
+
+        void failUpdates(String uuid) {
+            failing.put(uuid, true);
+        }
+
+        TestOrganization lastCopy(String uuid) {
+            return copies.get(uuid);
+        }
+
+        @Override
+        public Map<String, LocalOrganization> findBySubscriptionExternalIds(Collection<String> subscriptionIds) {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public LocalOrganization findByUuid(String uuid) {
+            TestOrganization original = organizations.get(uuid);
+            if (original == null) {
+                return null;
+            }
+            boolean fail = failing.containsKey(uuid);
+            TestOrganization copy = new TestOrganization(uuid) {
+                @Override
+                public void updateFrom(SubscriptionUpdateResult result) {
+                    if (fail) {
+                        throw new IllegalStateException("host failed saving the organization");
+                    }
+                    super.updateFrom(result);
+                }
+            };
+            copy.getLocalPaymentMethod().setExternalId(original.getLocalPaymentMethod().getExternalId());
+            copy.getLocalCustomer().setExternalId(original.getLocalCustomer().getExternalId());
+            copy.getLocalSubscription().setExternalId(original.getLocalSubscription().getExternalId());
+            copies.put(uuid, copy);
+            return copy;
+        }
+    }
+
+    static class MemoryStore implements SubscriptionOutboxStore {
+
+        private final Map<String, SubscriptionMutation> pending = new LinkedHashMap<>();
+
+        @Override
+        public synchronized List<SubscriptionMutation> open() {
+            return new ArrayList<>(pending.values());
+        }
+
+        @Override
+        public synchronized void append(SubscriptionMutation mutation) {
+            pending.put(mutation.getId(), mutation);
+        }
+
+        @Override
+        public synchronized void complete(Collection<String> mutationIds) {
+            pending.keySet().removeAll(mutationIds);
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
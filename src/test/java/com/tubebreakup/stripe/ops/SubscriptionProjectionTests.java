@@ -0,0 +1,104 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.Invoice;
+import com.stripe.model.Subscription;
+import com.tubebreakup.stripe.ops.standin.StripeStandIn;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.PLAN;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.PRICE_ID;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.USER;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.WORKING_CARD;
+import static com.tubebreakup.stripe.ops.StripeServiceCallCountTests.card;
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(classes = StripeTestConfiguration.class)
+public class SubscriptionProjectionTests {
+
+    @Autowired
+    private StripeService stripeService;
+
+    @Autowired
+    private SubscriptionProjection projection;
+
+    @Autowired
+    private StripeObjectCache cache;
+
+    private StripeStandIn standIn;
+
+    @BeforeEach
+    public void installStandIn() {
+        standIn = new StripeStandIn().install();
+        standIn.addPrice(PRICE_ID, "prod_test", 1000, "usd", true);
+    }
+
+    @AfterEach
+    public void uninstallStandIn() {
+        StripeStandIn.uninstall();
+    }
+
+    @Test
+    public void seedsEntriesFromStripeRatherThanTheCache() {
+        TestOrganization organization = subscribed();
+        String subscriptionId = organization.getLocalSubscription().getExternalId();
+        projection.remove(subscriptionId);
+        assertThat(cache.get(Subscription.class, subscriptionId)).isNotNull();
+        standIn.resetCounts();
+
+        projection.get(organization);
+
+        assertThat(standIn.getRequestCount("subscription.retrieve")).isEqualTo(1L);
+    }
+
+    @Test
+    public void indexesOnlyEachEntrysCurrentPaymentIntent() {
+        TestOrganization organization = subscribed();
+        String subscriptionId = organization.getLocalSubscription().getExternalId();
+        ProjectedSubscription projected = projection.get(organization);
+        long created = projected.getVersion();
+
+        for (int i = 0; i < 5; i++) {
+            Invoice invoice = new Invoice();
+            invoice.setId(projected.getLatestInvoiceId());
+            invoice.setSubscription(subscriptionId);
+            invoice.setStatus("open");
+            invoice.setPaymentIntent("pi_retry" + i);
+            projection.onInvoiceEvent(++created, invoice);
+        }
+        assertThat(paymentIntentsOf(subscriptionId)).containsExactly("pi_retry4");
+
+        Subscription renewed = new Subscription();
+        renewed.setId(subscriptionId);
+        renewed.setStatus("active");
+        renewed.setLatestInvoice("in_renewal");
+        projection.onSubscriptionEvent(++created, renewed);
+        assertThat(paymentIntentsOf(subscriptionId)).isEmpty();
+    }
+
+    private List<String> paymentIntentsOf(String subscriptionId) {
+        Map<?, ?> index = (Map<?, ?>) ReflectionTestUtils.getField(projection, "subscriptionsByPaymentIntent");
+        List<String> paymentIntents = new ArrayList<>();
+        index.forEach((paymentIntentId, indexed) -> {
+            if (subscriptionId.equals(indexed)) {
+                paymentIntents.add((String) paymentIntentId);
+            }
+        });
+        return paymentIntents;
+    }
+
+    private TestOrganization subscribed() {
+        TestOrganization organization = new TestOrganization();
+        organization.getLocalPaymentMethod().setExternalId(stripeService.createPaymentMethod(USER, card(WORKING_CARD)).getId());
+        stripeService.createSubscription(USER, organization, PLAN, null);
+        return organization;
+    }
+}
@@ -0,0 +1,150 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.Subscription;
+import com.stripe.model.SubscriptionCollection;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+
+public class SubscriptionStatusReconcilerTests {
+
+    private final StripeAccount main = account(StripeAccounts.DEFAULT);
+
+    private final StripeAccount brand = account("brand");
+
+    private final StripeRequestExecutor executor = Mockito.mock(StripeRequestExecutor.class);
+
+    private final Map<String, LocalOrganization> organizations = new HashMap<>();
+
+    private final MemoryCheckpoint checkpoint = new MemoryCheckpoint();
+
+    private SubscriptionStatusReconciler reconciler;
+
+    @BeforeEach
+    public void createReconciler() {
+        StripeAccounts accounts = Mockito.mock(StripeAccounts.class);
+        Mockito.when(accounts.getAll()).thenReturn(Arrays.asList(main, brand));
+        Mockito.when(accounts.getDefault()).thenReturn(main);
+        reconciler = new SubscriptionStatusReconciler();
+        ReflectionTestUtils.setField(reconciler, "executor", executor);
+        ReflectionTestUtils.setField(reconciler, "accounts", accounts);
+        ReflectionTestUtils.setField(reconciler, "cache", Mockito.mock(StripeObjectCache.class));
+        ReflectionTestUtils.setField(reconciler, "organizationLookup", new MapLookup());
+        ReflectionTestUtils.setField(reconciler, "checkpoint", checkpoint);
+        ReflectionTestUtils.setField(reconciler, "pageSize", 100L);
+        ReflectionTestUtils.setField(reconciler, "reportIntervalSeconds", 30L);
+    }
+
+    @Test
+    public void sweepsEveryAccount() throws Exception {
+        TestOrganization onMain = organization("sub_main");
+        TestOrganization onBrand = organization("sub_brand");
+        list(main, subscription("sub_main", "active"));
+        list(brand, subscription("sub_brand", "past_due"));
+
+        SubscriptionSweepReport report = reconciler.sweep();
+
+        assertThat(report.getScanned()).isEqualTo(2);
+        assertThat(report.getUpdated()).isEqualTo(2);
+        assertThat(onMain.getLastSubscriptionUpdate().getSubscriptionStatus()).isEqualTo("active");
+        assertThat(onBrand.getLastSubscriptionUpdate().getSubscriptionStatus()).isEqualTo("past_due");
+        assertThat(checkpoint.saved).containsExactly("default:sub_main", "brand:sub_brand");
+        assertThat(checkpoint.positions).isEmpty();
+    }
+
+    @Test
+    public void eachAccountResumesFromItsOwnCheckpoint() throws Exception {
+        checkpoint.positions.put("brand", "sub_brand_1");
+        list(main, subscription("sub_main", "active"));
+        list(brand, subscription("sub_brand_2", "active"));
+
+        reconciler.sweep();
+
+        Mockito.verify(executor).read(eq(main), eq("subscription.list"), any());
+        Mockito.verify(executor).read(eq(brand), eq("subscription.list"), any());
+        assertThat(checkpoint.loaded).containsExactly("default", "brand");
+    }
+
+    private void list(StripeAccount account, Subscription... subscriptions) throws Exception {
+        SubscriptionCollection page = new SubscriptionCollection();
+        page.setData(new ArrayList<>(Arrays.asList(subscriptions)));
+        page.setHasMore(false);
+        Mockito.when(executor.read(eq(account), eq("subscription.list"), any())).thenReturn(page);
+    }
+
+    private TestOrganization organization(String subscriptionId) {
+        TestOrganization organization = new TestOrganization();
+        organization.getLocalSubscription().setExternalId(subscriptionId);
+        organizations.put(subscriptionId, organization);
+        return organization;
+    }
+
+    private static Subscription subscription(String id, String status) {
+        Subscription subscription = new Subscription();
+        subscription.setId(id);
+        subscription.setStatus(status);
+        return subscription;
+    }
+
+    private static StripeAccount account(String name) {
+        return new StripeAccount(name, "sk_test_" + name, 1000, 1000, 1, 1);
+    }
+
+    private class MapLookup implements LocalOrganizationLookup {
+
+        @Override
+        public Map<String, LocalOrganization> findBySubscriptionExternalIds(Collection<String> subscriptionIds) {
+            Map<String, LocalOrganization> found = new HashMap<>();
+            for (String id : subscriptionIds) {
+                if (organizations.containsKey(id)) {
+                    found.put(id, organizations.get(id));
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public LocalOrganization findByUuid(String uuid) {
+            return null;
+        }
+    }
+
+    static class MemoryCheckpoint implements SubscriptionSweepCheckpoint {
+
+        final Map<String, String> positions = new HashMap<>();
+
+        final List<String> loaded = new ArrayList<>();
+
+        final List<String> saved = new ArrayList<>();
+
+        @Override
+        public String load(String account) {
+            loaded.add(account);
+            return positions.get(account);
+        }
+
+        @Override
+        public void save(String account, String lastSubscriptionId) {
+            saved.add(account + ":" + lastSubscriptionId);
+            positions.put(account, lastSubscriptionId);
+        }
+
+        @Override
+        public void clear(String account) {
+            positions.remove(account);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package com.tubebreakup.stripe.ops;
+
+import com.tubebreakup.model.ExternalEntity;
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestOrganization implements LocalOrganization {
+
+    private final String uuid;
+
+    private final Entity paymentMethod = new Entity();
+
+    private final Entity customer = new Entity();
+
+    private final Entity subscription = new Entity();
+
+    private volatile SubscriptionUpdateResult lastUpdate;
+
+    private final AtomicInteger updates = new AtomicInteger();
+
+    public TestOrganization() {
+        this(UUID.randomUUID().toString());
+    }
+
+    public TestOrganization(String uuid) {
+        this.uuid = uuid;
+    }
+
+    @Override
+    public String getUuid() {
+        return uuid;
+    }
+
+    @Override
+    public String getName() {
+        return "test " + uuid;
+    }
+
+    @Override
+    public ExternalEntity getLocalPaymentMethod() {
+        return paymentMethod;
+    }
+
+    @Override
+    public ExternalEntity getLocalCustomer() {
+        return customer;
+    }
+
+    @Override
+    public ExternalEntity getLocalSubscription() {
+        return subscription;
+    }
+
+    @Override
+    public void updateFrom(SubscriptionUpdateResult result) {
+        lastUpdate = result;
+        updates.incrementAndGet();
+        subscription.setExternalId(result.getSubscriptionExternalId());
+    }
+
+    public int getUpdateCount() {
+        return updates.get();
+    }
+
+    @Override
+    public SubscriptionUpdateResult getLastSubscriptionUpdate() {
+        return lastUpdate;
+    }
+
+    public static class Entity implements ExternalEntity {
+
+        private volatile String externalId;
+
+        @Override
+        public String getExternalId() {
+            return externalId;
+        }
+
+        @Override
+        public void setExternalId(String externalId) {
+            this.externalId = externalId;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.tubebreakup.stripe.ops;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class TokenBucketTests {
+
+    @Test
+    public void aBurstIsServedWithoutWaiting() throws Exception {
+        TokenBucket bucket = new TokenBucket(1, 5);
+
+        long started = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            bucket.acquire();
+        }
+
+        assertThat(elapsedMillis(started)).isLessThan(100);
+    }
+
+    @Test
+    public void callersBeyondTheBurstArePacedAtTheRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(50, 1);
+        bucket.acquire();
+
+        long started = System.nanoTime();
+        for (int i = 0; i < 10; i++) {
+            bucket.acquire();
+        }
+
+        // ten tokens at 50 a second
+        assertThat(elapsedMillis(started)).isBetween(180L, 1000L);
+    }
+
+    @Test
+    public void waitingCallersAreReleasedAtTheRateTogether() throws Exception {
+        TokenBucket bucket = new TokenBucket(50, 1);
+        bucket.acquire();
+
+        long started = System.nanoTime();
+        Thread[] callers = new Thread[5];
+        for (int i = 0; i < callers.length; i++) {
+            callers[i] = new Thread(() -> {
+                try {
+                    bucket.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            callers[i].start();
+        }
+        for (Thread caller : callers) {
+            caller.join();
+        }
+
+        // the last of five reservations waits its turn, not more
+        assertThat(elapsedMillis(started)).isBetween(80L, 600L);
+    }
+
+    @Test
+    public void idleTimeRefillsUpToTheBurstOnly() throws Exception {
+        TokenBucket bucket = new TokenBucket(100, 2);
+        bucket.acquire();
+        bucket.acquire();
+        Thread.sleep(100);
+
+        long started = System.nanoTime();
+        bucket.acquire();
+        bucket.acquire();
+        bucket.acquire();
+
+        // two from the refilled burst, the third paced
+        assertThat(elapsedMillis(started)).isBetween(5L, 500L);
+    }
+
+    private static long elapsedMillis(long started) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+    }
+}
@@ -0,0 +1,66 @@
+package com.tubebreakup.stripe.ops;
+
+import com.stripe.model.WebhookEndpoint;
+import com.stripe.param.WebhookEndpointCreateParams;
+import com.tubebreakup.stripe.ops.standin.StripeStandIn;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+@SpringBootTest(classes = StripeTestConfiguration.class)
+public class WebhookEndpointReconcilerTests {
+
+    private static final String URL = "https://example.com/webhooks";
+
+    @Autowired
+    private StripeRequestExecutor executor;
+
+    private WebhookEndpointReconciler reconciler;
+
+    @BeforeEach
+    public void start() {
+        new StripeStandIn().install();
+        reconciler = new WebhookEndpointReconciler();
+        ReflectionTestUtils.setField(reconciler, "executor", executor);
+        ReflectionTestUtils.setField(reconciler, "url", URL);
+        ReflectionTestUtils.setField(reconciler, "maxPages", 50);
+        ReflectionTestUtils.setField(reconciler, "enabledEvents",
+                new String[]{"invoice.payment_failed", "made_up.event", "customer.subscription.updated"});
+    }
+
+    @AfterEach
+    public void stop() {
+        StripeStandIn.uninstall();
+    }
+
+    @Test
+    public void createsTheEndpointWithoutEventsItHasNoParameterFor() throws Exception {
+        reconciler.reconcile();
+
+        reconciler.invalidate();
+        assertThat(reconciler.find(URL).getEnabledEvents())
+                .containsExactly("invoice.payment_failed", "customer.subscription.updated");
+    }
+
+    @Test
+    public void keepsEnabledEventsItHasNoParameterFor() throws Exception {
+        WebhookEndpointCreateParams params = WebhookEndpointCreateParams.builder()
+                .setUrl(URL)
+                .putExtraParam("enabled_events", Arrays.asList("newer.event", "invoice.payment_failed"))
+                .build();
+        executor.write("webhook_endpoint.create", options -> WebhookEndpoint.create(params, options));
+
+        reconciler.reconcile();
+
+        reconciler.invalidate();
+        assertThat(reconciler.find(URL).getEnabledEvents())
+                .containsExactly("newer.event", "invoice.payment_failed", "customer.subscription.updated");
+    }
+}
@@ -0,0 +1,475 @@
+package com.tubebreakup.stripe.ops.standin;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.PaymentMethod;
+import com.stripe.net.ApiResource;
+import com.stripe.net.HttpClient;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+import com.stripe.param.PaymentMethodCreateParams;
+import com.tubebreakup.model.ExternalEntity;
+import com.tubebreakup.model.NameProvider;
+import com.tubebreakup.stripe.SubscriptionMetaProvider;
+import com.tubebreakup.stripe.SubscriptionUpdateResult;
+import com.tubebreakup.stripe.ops.LocalOrganization;
+import com.tubebreakup.stripe.ops.StripeErrors;
+import com.tubebreakup.stripe.ops.StripeService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Load generator for the billing path: simulates organizations signing up
+// concurrently through StripeService, against a StripeStandIn (or a
+// StripeTrafficReplayer) in place of Stripe. Each organization runs one flow:
+// - creates a payment method, declining with probability declineRate;
+// - creates a subscription;
+// - after a declined first payment, creates a working payment method and
+//   updates the subscription with it, voiding and retrying the invoice;
+// - changes the plan quantity;
+// - cancels with probability cancelRate.
+// concurrency flows run at a time, like that many simultaneous users. A step
+// that fails ends its organization's flow.
+//
+// The report gives throughput, p50/p95/p99 latency and Stripe requests per
+// user operation, counted per calling thread so concurrent flows don't mix,
+// and how saturated the StripeRequestExecutor's bulkheads were, sampled from
+// the stripe.bulkhead.available gauges every sampleMillis. The backend's
+// latency (StripeStandIn.setLatency) and injected errors shape the run; prices
+// must exist in it.
+//
+//   StripeStandIn standIn = new StripeStandIn().install().setLatency(80, 250);
+//   standIn.addPrice("price_load", "prod_load", 1000, "usd", true);
+//   StripeLoadReport report = new StripeLoadHarness(stripeService, standIn, "price_load")
+//           .setOrganizations(5000).setConcurrency(200).run();
+public class StripeLoadHarness {
+
+    static final String[] OPERATIONS = {"payment_method.create", "subscription.create",
+            "subscription.update_payment_method", "subscription.update_plan", "subscription.cancel"};
+
+    private static final String WORKING_CARD = "4242424242424242";
+
+    private Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final StripeService stripeService;
+
+    private final HttpClient backend;
+
+    private final String priceId;
+
+    private MeterRegistry registry = Metrics.globalRegistry;
+
+    private int organizations = 1000;
+
+    private int concurrency = 50;
+
+    private double declineRate = 0.1;
+
+    private double cancelRate = 0.2;
+
+    private long sampleMillis = 10;
+
+    // Stripe requests sent from each thread so far
+    private final ThreadLocal<long[]> threadCalls = ThreadLocal.withInitial(() -> new long[1]);
+
+    private final AtomicLong totalCalls = new AtomicLong();
+
+    private final Map<String, Samples> samples = new ConcurrentHashMap<>();
+
+    public StripeLoadHarness(StripeService stripeService, HttpClient backend, String priceId) {
+        this.stripeService = stripeService;
+        this.backend = backend;
+        this.priceId = priceId;
+    }
+
+    // the registry StripeMetrics publishes to, for the bulkhead gauges
+    public StripeLoadHarness setMeterRegistry(MeterRegistry registry) {
+        this.registry = registry;
+        return this;
+    }
+
+    public StripeLoadHarness setOrganizations(int organizations) {
+        this.organizations = organizations;
+        return this;
+    }
+
+    public StripeLoadHarness setConcurrency(int concurrency) {
+        this.concurrency = Math.max(1, concurrency);
+        return this;
+    }
+
+    public StripeLoadHarness setDeclineRate(double declineRate) {
+        this.declineRate = declineRate;
+        return this;
+    }
+
+    public StripeLoadHarness setCancelRate(double cancelRate) {
+        this.cancelRate = cancelRate;
+        return this;
+    }
+
+    public StripeLoadHarness setSampleMillis(long sampleMillis) {
+        this.sampleMillis = Math.max(1, sampleMillis);
+        return this;
+    }
+
+    // routes stripe-java through the backend while it runs, then leaves the backend installed
+    public StripeLoadReport run() throws InterruptedException {
+        samples.clear();
+        totalCalls.set(0);
+        for (String operation : OPERATIONS) {
+            samples.put(operation, new Samples());
+        }
+        ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter(new CountingClient()));
+
+        // an empty composite (the global registry with no backend) only has no-op gauges
+        SimpleMeterRegistry gauges = null;
+        if (registry instanceof CompositeMeterRegistry && ((CompositeMeterRegistry) registry).getRegistries().isEmpty()) {
+            gauges = new SimpleMeterRegistry();
+            ((CompositeMeterRegistry) registry).add(gauges);
+        }
+        Saturation saturation = new Saturation();
+        CustomizableThreadFactory samplerFactory = new CustomizableThreadFactory("stripe-load-sampler-");
+        samplerFactory.setDaemon(true);
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(samplerFactory);
+        sampler.scheduleAtFixedRate(saturation::sample, 0, sampleMillis, TimeUnit.MILLISECONDS);
+
+        CustomizableThreadFactory userFactory = new CustomizableThreadFactory("stripe-load-");
+        userFactory.setDaemon(true);
+        ExecutorService users = Executors.newFixedThreadPool(concurrency, userFactory);
+        AtomicLong completed = new AtomicLong();
+        long start = System.nanoTime();
+        try {
+            for (int i = 0; i < organizations; i++) {
+                int index = i;
+                users.execute(() -> {
+                    if (runFlow(index)) {
+                        completed.incrementAndGet();
+                    }
+                });
+            }
+            users.shutdown();
+            while (!users.awaitTermination(10, TimeUnit.SECONDS)) {
+                logger.info("Stripe load: {} of {} flows done", completed.get(), organizations);
+            }
+        } finally {
+            users.shutdownNow();
+            sampler.shutdownNow();
+            if (gauges != null) {
+                ((CompositeMeterRegistry) registry).remove(gauges);
+            }
+            ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter(backend));
+        }
+        long elapsedNanos = System.nanoTime() - start;
+
+        StripeLoadReport report = report(completed.get(), elapsedNanos, saturation);
+        log(report);
+        return report;
+    }
+
+    // true if every step succeeded
+    private boolean runFlow(int index) {
+        LoadOrganization organization = new LoadOrganization();
+        NameProvider user = () -> "load-" + index + "@example.com";
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        try {
+            boolean declining = random.nextDouble() < declineRate;
+            PaymentMethod paymentMethod = time("payment_method.create",
+                    () -> stripeService.createPaymentMethod(user, card(declining ? StripeStandIn.DECLINING_CARD : WORKING_CARD)));
+            organization.paymentMethod.setExternalId(paymentMethod.getId());
+
+            SubscriptionUpdateResult created = time("subscription.create",
+                    () -> stripeService.createSubscription(user, organization, plan(1), null, UUID.randomUUID().toString()));
+            if (created != null && "requires_payment_method".equals(created.getPaymentIntentStatus())) {
+                PaymentMethod replacement = time("payment_method.create",
+                        () -> stripeService.createPaymentMethod(user, card(WORKING_CARD)));
+                organization.paymentMethod.setExternalId(replacement.getId());
+                time("subscription.update_payment_method", () -> {
+                    stripeService.updateSubscription(user, organization, replacement);
+                    return null;
+                });
+            }
+
+            time("subscription.update_plan",
+                    () -> stripeService.updateSubscriptionPlan(user, organization, plan(2), UUID.randomUUID().toString()));
+            if (random.nextDouble() < cancelRate) {
+                time("subscription.cancel", () -> {
+                    stripeService.cancelSubscription(user, organization);
+                    return null;
+                });
+            }
+            return true;
+        } catch (RuntimeException e) {
+            // recorded against the failing step
+            return false;
+        }
+    }
+
+    private <T> T time(String operation, Supplier<T> call) {
+        long[] calls = threadCalls.get();
+        long callsBefore = calls[0];
+        long start = System.nanoTime();
+        try {
+            T result = call.get();
+            samples.get(operation).record(System.nanoTime() - start, calls[0] - callsBefore, null);
+            return result;
+        } catch (RuntimeException e) {
+            samples.get(operation).record(System.nanoTime() - start, calls[0] - callsBefore, errorName(e));
+            throw e;
+        }
+    }
+
+    private static String errorName(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof StripeException) {
+                return StripeErrors.from((StripeException) cause).name();
+            }
+        }
+        return e.getClass().getSimpleName();
+    }
+
+    private SubscriptionMetaProvider plan(long quantity) {
+        return new SubscriptionMetaProvider() {
+            @Override
+            public Long getQuantity() {
+                return quantity;
+            }
+
+            @Override
+            public String getPriceId() {
+                return priceId;
+            }
+        };
+    }
+
+    private static PaymentMethodCreateParams card(String number) {
+        Calendar expiry = Calendar.getInstance();
+        expiry.add(Calendar.YEAR, 1);
+        return PaymentMethodCreateParams.builder()
+                .setType(PaymentMethodCreateParams.Type.CARD)
+                .setCard(PaymentMethodCreateParams.CardDetails.builder()
+                        .setNumber(number)
+                        .setExpMonth((long) expiry.get(Calendar.MONTH) + 1)
+                        .setExpYear((long) expiry.get(Calendar.YEAR))
+                        .setCvc("333")
+                        .build())
+                .build();
+    }
+
+    private StripeLoadReport report(long completed, long elapsedNanos, Saturation saturation) {
+        Map<String, StripeLoadOperationStats> operations = new LinkedHashMap<>();
+        long count = 0;
+        for (String operation : OPERATIONS) {
+            StripeLoadOperationStats stats = samples.get(operation).stats(operation);
+            operations.put(operation, stats);
+            count += stats.getCount();
+        }
+        double seconds = Math.max(1, elapsedNanos) / 1e9;
+        // the sampler may still be finishing a sample
+        synchronized (saturation) {
+            return new StripeLoadReport(organizations, concurrency, completed, TimeUnit.NANOSECONDS.toMillis(elapsedNanos),
+                    count / seconds, totalCalls.get(), operations, saturation.peakInFlight,
+                    saturation.minFreeRead == Long.MAX_VALUE ? -1 : saturation.minFreeRead,
+                    saturation.minFreeWrite == Long.MAX_VALUE ? -1 : saturation.minFreeWrite,
+                    saturation.percent(saturation.readSaturated), saturation.percent(saturation.writeSaturated));
+        }
+    }
+
+    private void log(StripeLoadReport report) {
+        logger.info("Stripe load: {} organizations, {} concurrent: {} flows completed in {} ms, {} ops/s, {} Stripe calls",
+                report.getOrganizations(), report.getConcurrency(), report.getFlowsCompleted(), report.getElapsedMillis(),
+                String.format("%.1f", report.getOperationsPerSecond()), report.getStripeCalls());
+        for (StripeLoadOperationStats stats : report.getOperations().values()) {
+            if (stats.getCount() == 0) {
+                continue;
+            }
+            logger.info("Stripe load: {}: {} calls, {} failed, p50 {} ms, p95 {} ms, p99 {} ms, max {} ms, {} Stripe calls each {}",
+                    stats.getOperation(), stats.getCount(), stats.getFailed(),
+                    String.format("%.1f", stats.getP50Millis()), String.format("%.1f", stats.getP95Millis()),
+                    String.format("%.1f", stats.getP99Millis()), String.format("%.1f", stats.getMaxMillis()),
+                    String.format("%.2f", stats.getStripeCallsPerOperation()), stats.getErrors().isEmpty() ? "" : stats.getErrors());
+        }
+        logger.info("Stripe load: peak {} requests in flight; bulkheads: read {} free at least, saturated {}% of the time; "
+                        + "write {} free at least, saturated {}% of the time",
+                report.getPeakRequestsInFlight(), report.getMinFreeReadPermits(),
+                String.format("%.1f", report.getReadSaturatedPercent()), report.getMinFreeWritePermits(),
+                String.format("%.1f", report.getWriteSaturatedPercent()));
+    }
+
+    // passes requests to the backend, counting them per thread
+    private class CountingClient extends HttpClient {
+
+        @Override
+        public StripeResponse request(StripeRequest request) throws StripeException {
+            threadCalls.get()[0]++;
+            totalCalls.incrementAndGet();
+            return backend.request(request);
+        }
+    }
+
+    private static class Samples {
+
+        private long[] nanos = new long[1024];
+
+        private int count;
+
+        private long failed;
+
+        private long calls;
+
+        private final Map<String, Long> errors = new TreeMap<>();
+
+        synchronized void record(long elapsedNanos, long stripeCalls, String error) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = elapsedNanos;
+            calls += stripeCalls;
+            if (error != null) {
+                failed++;
+                errors.merge(error, 1L, Long::sum);
+            }
+        }
+
+        synchronized StripeLoadOperationStats stats(String operation) {
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            return new StripeLoadOperationStats(operation, count, failed,
+                    percentile(sorted, 0.50), percentile(sorted, 0.95), percentile(sorted, 0.99),
+                    count > 0 ? sorted[count - 1] / 1e6 : 0,
+                    count > 0 ? (double) calls / count : 0, new TreeMap<>(errors));
+        }
+
+        // nearest rank, in millis
+        private static double percentile(long[] sorted, double p) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(p * sorted.length);
+            return sorted[Math.max(0, rank - 1)] / 1e6;
+        }
+    }
+
+    private class Saturation {
+
+        private long samples;
+
+        private long readSaturated;
+
+        private long writeSaturated;
+
+        private long minFreeRead = Long.MAX_VALUE;
+
+        private long minFreeWrite = Long.MAX_VALUE;
+
+        private long peakInFlight;
+
+        synchronized void sample() {
+            Gauge read = registry.find("stripe.bulkhead.available").tag("kind", "read").gauge();
+            Gauge write = registry.find("stripe.bulkhead.available").tag("kind", "write").gauge();
+            Gauge inFlight = registry.find("stripe.requests.in_flight").gauge();
+            samples++;
+            if (read != null && !Double.isNaN(read.value())) {
+                long free = (long) read.value();
+                minFreeRead = Math.min(minFreeRead, free);
+                readSaturated += free <= 0 ? 1 : 0;
+            }
+            if (write != null && !Double.isNaN(write.value())) {
+                long free = (long) write.value();
+                minFreeWrite = Math.min(minFreeWrite, free);
+                writeSaturated += free <= 0 ? 1 : 0;
+            }
+            if (inFlight != null && !Double.isNaN(inFlight.value())) {
+                peakInFlight = Math.max(peakInFlight, (long) inFlight.value());
+            }
+        }
+
+        double percent(long saturated) {
+            return samples > 0 ? 100.0 * saturated / samples : 0;
+        }
+    }
+
+    private static class LoadOrganization implements LocalOrganization {
+
+        private final String uuid = UUID.randomUUID().toString();
+
+        private final Entity paymentMethod = new Entity();
+
+        private final Entity customer = new Entity();
+
+        private final Entity subscription = new Entity();
+
+        private volatile SubscriptionUpdateResult lastUpdate;
+
+        @Override
+        public String getUuid() {
+            return uuid;
+        }
+
+        @Override
+        public String getName() {
+            return "load " + uuid;
+        }
+
+        @Override
+        public ExternalEntity getLocalPaymentMethod() {
+            return paymentMethod;
+        }
+
+        @Override
+        public ExternalEntity getLocalCustomer() {
+            return customer;
+        }
+
+        @Override
+        public ExternalEntity getLocalSubscription() {
+            return subscription;
+        }
+
+        @Override
+        public void updateFrom(SubscriptionUpdateResult result) {
+            lastUpdate = result;
+            subscription.setExternalId(result.getSubscriptionExternalId());
+        }
+
+        @Override
+        public SubscriptionUpdateResult getLastSubscriptionUpdate() {
+            return lastUpdate;
+        }
+    }
+
+    private static class Entity implements ExternalEntity {
+
+        private volatile String externalId;
+
+        @Override
+        public String getExternalId() {
+            return externalId;
+        }
+
+        @Override
+        public void setExternalId(String externalId) {
+            this.externalId = externalId;
+        }
+    }
+}
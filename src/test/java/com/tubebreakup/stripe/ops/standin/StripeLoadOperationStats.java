@@ -0,0 +1,23 @@
+package com.tubebreakup.stripe.ops.standin;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+
+@Getter
+@AllArgsConstructor
+public class StripeLoadOperationStats {
+    // subscription.create, subscription.update_plan, ...
+    private String operation;
+    private long count;
+    private long failed;
+    private double p50Millis;
+    private double p95Millis;
+    private double p99Millis;
+    private double maxMillis;
+    // Stripe requests sent per call, retries included
+    private double stripeCallsPerOperation;
+    // StripeErrors code (or exception name) -> failed calls
+    private Map<String, Long> errors;
+}
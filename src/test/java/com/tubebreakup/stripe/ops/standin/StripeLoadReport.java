@@ -0,0 +1,27 @@
+package com.tubebreakup.stripe.ops.standin;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.util.Map;
+
+@Getter
+@AllArgsConstructor
+public class StripeLoadReport {
+    private int organizations;
+    private int concurrency;
+    // organizations whose flow ran to the end
+    private long flowsCompleted;
+    private long elapsedMillis;
+    // user operations (successful or not) per second
+    private double operationsPerSecond;
+    private long stripeCalls;
+    // operation -> stats, in flow order
+    private Map<String, StripeLoadOperationStats> operations;
+    private long peakRequestsInFlight;
+    // fewest free bulkhead permits seen, and the share of samples with none free
+    private long minFreeReadPermits;
+    private long minFreeWritePermits;
+    private double readSaturatedPercent;
+    private double writeSaturatedPercent;
+}
@@ -0,0 +1,698 @@
+package com.tubebreakup.stripe.ops.standin;
+
+import com.stripe.exception.StripeException;
+import com.stripe.net.ApiResource;
+import com.stripe.net.HttpClient;
+import com.stripe.net.HttpHeaders;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+import com.tubebreakup.stripe.ops.StripeErrors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// In-memory stand-in for the Stripe API, plugged in underneath stripe-java so
+// StripeService runs unchanged without network access. It models customers,
+// payment methods, subscriptions, invoices, payment intents, prices, products
+// and webhook endpoints closely enough for the flows this library drives:
+// - paying with the 4000000000000002 test card leaves the subscription
+//   incomplete with an open invoice, like a declined first payment;
+// - every request can be delayed (setLatency) and failed with any StripeErrors
+//   code (injectError), using the status and error type Stripe would send.
+// Operations are named like the StripeRequestExecutor's ("subscription.create").
+public class StripeStandIn extends HttpClient {
+
+    public static final String DECLINING_CARD = "4000000000000002";
+
+    // card failures Stripe reports under their own code rather than as
+    // card_declined, even where the same name is also an issuer decline code
+    private static final Set<String> CARD_ERROR_CODES = new HashSet<>(Arrays.asList(
+            "card_declined", "expired_card", "incorrect_cvc", "incorrect_number", "incorrect_zip",
+            "invalid_cvc", "invalid_expiry_month", "invalid_expiry_year", "invalid_number", "processing_error"));
+
+    private final Map<String, Map<String, Object>> objects = new ConcurrentHashMap<>();
+
+    private final Set<String> decliningPaymentMethods = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    private final Map<String, InjectedError> injectedErrors = new ConcurrentHashMap<>();
+
+    private final Map<String, AtomicLong> requestCounts = new ConcurrentHashMap<>();
+
+    private final AtomicLong totalRequests = new AtomicLong();
+
+    private final AtomicLong ids = new AtomicLong();
+
+    private volatile long minLatencyMillis;
+
+    private volatile long maxLatencyMillis;
+
+    // routes every stripe-java request in this JVM to this stand-in
+    public StripeStandIn install() {
+        ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter(this));
+        return this;
+    }
+
+    // restores the real Stripe API
+    public static void uninstall() {
+        ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter());
+    }
+
+    public StripeStandIn setLatency(long minMillis, long maxMillis) {
+        this.minLatencyMillis = minMillis;
+        this.maxLatencyMillis = Math.max(minMillis, maxMillis);
+        return this;
+    }
+
+    // fails the given fraction of an operation's requests with the error
+    public StripeStandIn injectError(String operation, StripeErrors error, double probability) {
+        injectedErrors.put(operation, new InjectedError(error, probability));
+        return this;
+    }
+
+    public StripeStandIn clearErrors() {
+        injectedErrors.clear();
+        return this;
+    }
+
+    public StripeStandIn addPrice(String priceId, String productId, long unitAmount, String currency, boolean active) {
+        if (!objects.containsKey(productId)) {
+            Map<String, Object> product = object("product", productId);
+            product.put("active", true);
+            product.put("name", productId);
+        }
+        Map<String, Object> price = object("price", priceId);
+        price.put("active", active);
+        price.put("currency", currency);
+        price.put("unit_amount", unitAmount);
+        price.put("product", productId);
+        price.put("type", "recurring");
+        Map<String, Object> recurring = new LinkedHashMap<>();
+        recurring.put("interval", "month");
+        recurring.put("interval_count", 1L);
+        price.put("recurring", recurring);
+        return this;
+    }
+
+    public long getRequestCount() {
+        return totalRequests.get();
+    }
+
+    public long getRequestCount(String operation) {
+        AtomicLong count = requestCounts.get(operation);
+        return count != null ? count.get() : 0;
+    }
+
+    public Map<String, Long> getRequestCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        requestCounts.forEach((operation, count) -> counts.put(operation, count.get()));
+        return counts;
+    }
+
+    public void resetCounts() {
+        requestCounts.clear();
+        totalRequests.set(0);
+    }
+
+    @Override
+    public StripeResponse request(StripeRequest request) throws StripeException {
+        String[] path = request.url().getPath().replaceFirst("^/v1/", "").split("/");
+        String method = request.method().name();
+        Map<String, Object> params = request.params() != null ? request.params() : Collections.emptyMap();
+
+        String operation = operation(method, path);
+        totalRequests.incrementAndGet();
+        requestCounts.computeIfAbsent(operation, key -> new AtomicLong()).incrementAndGet();
+        delay();
+
+        InjectedError injected = injectedErrors.get(operation);
+        if (injected != null && ThreadLocalRandom.current().nextDouble() < injected.probability) {
+            return error(injected.error);
+        }
+        try {
+            Object body;
+            synchronized (this) {
+                body = route(operation, path, params);
+            }
+            return response(200, expand(body, params));
+        } catch (StandInError e) {
+            return e.response;
+        }
+    }
+
+    private static String operation(String method, String[] path) {
+        String resource = singular(path[0]);
+        if (path.length == 1) {
+            switch (method) {
+                case "POST": return resource + ".create";
+                default: return resource + ".list";
+            }
+        }
+        if (path.length == 2) {
+            if ("upcoming".equals(path[1])) {
+                return resource + ".upcoming";
+            }
+            switch (method) {
+                case "POST": return resource + ".update";
+                case "DELETE": return resource + ".cancel";
+                default: return resource + ".retrieve";
+            }
+        }
+        return resource + "." + path[2];
+    }
+
+    private static String singular(String resource) {
+        return resource.endsWith("s") ? resource.substring(0, resource.length() - 1) : resource;
+    }
+
+    private Object route(String operation, String[] path, Map<String, Object> params) throws StandInError {
+        switch (operation) {
+            case "customer.create": return createCustomer(params);
+            case "customer.retrieve": return find("customer", path[1]);
+            case "customer.update": return updateCustomer(find("customer", path[1]), params);
+            case "payment_method.create": return createPaymentMethod(params);
+            case "payment_method.retrieve": return find("payment_method", path[1]);
+            case "payment_method.attach": return attachPaymentMethod(find("payment_method", path[1]), params);
+            case "payment_method.list": return list("payment_method", params, "customer");
+            case "subscription.create": return createSubscription(params);
+            case "subscription.retrieve": return find("subscription", path[1]);
+            case "subscription.update": return updateSubscription(find("subscription", path[1]), params);
+            case "subscription.cancel": return cancelSubscription(find("subscription", path[1]));
+            case "subscription.list": return list("subscription", params, "customer");
+            case "invoice.retrieve": return find("invoice", path[1]);
+            case "invoice.pay": return payInvoice(find("invoice", path[1]));
+            case "invoice.void": return voidInvoice(find("invoice", path[1]));
+            case "invoice.list": return list("invoice", params, "customer", "subscription");
+            case "invoice.upcoming": return upcomingInvoice(params);
+            case "payment_intent.retrieve": return find("payment_intent", path[1]);
+            case "payment_intent.cancel": return cancelPaymentIntent(find("payment_intent", path[1]));
+            case "price.retrieve": return find("price", path[1]);
+            case "price.list": return list("price", params, "active", "product");
+            case "product.retrieve": return find("product", path[1]);
+            case "product.list": return list("product", params, "active");
+            case "webhook_endpoint.create": return createWebhookEndpoint(params);
+            case "webhook_endpoint.update": return updateWebhookEndpoint(find("webhook_endpoint", path[1]), params);
+            case "webhook_endpoint.list": return list("webhook_endpoint", params);
+            default:
+                throw new StandInError(errorResponse(404, "invalid_request_error", null, null,
+                        "Unrecognized request URL: " + String.join("/", path)));
+        }
+    }
+
+    private Map<String, Object> createCustomer(Map<String, Object> params) throws StandInError {
+        Map<String, Object> customer = object("customer", newId("cus"));
+        customer.put("email", params.get("email"));
+        customer.put("description", params.get("description"));
+        customer.put("metadata", params.containsKey("metadata") ? params.get("metadata") : new LinkedHashMap<>());
+        customer.put("invoice_settings", invoiceSettings(null));
+        String paymentMethodId = (String) params.get("payment_method");
+        if (paymentMethodId != null) {
+            find("payment_method", paymentMethodId).put("customer", customer.get("id"));
+        }
+        return updateCustomer(customer, params);
+    }
+
+    private Map<String, Object> updateCustomer(Map<String, Object> customer, Map<String, Object> params) throws StandInError {
+        for (String field : new String[]{"email", "description"}) {
+            if (params.containsKey(field)) {
+                customer.put(field, params.get(field));
+            }
+        }
+        Map<String, Object> settings = asMap(params.get("invoice_settings"));
+        if (settings != null && settings.containsKey("default_payment_method")) {
+            String paymentMethodId = (String) settings.get("default_payment_method");
+            find("payment_method", paymentMethodId);
+            customer.put("invoice_settings", invoiceSettings(paymentMethodId));
+        }
+        return customer;
+    }
+
+    private Map<String, Object> createPaymentMethod(Map<String, Object> params) {
+        Map<String, Object> cardParams = asMap(params.get("card"));
+        String number = cardParams != null && cardParams.get("number") != null ? cardParams.get("number").toString() : "4242424242424242";
+        Map<String, Object> paymentMethod = object("payment_method", newId("pm"));
+        paymentMethod.put("type", params.containsKey("type") ? params.get("type") : "card");
+        paymentMethod.put("customer", null);
+        paymentMethod.put("billing_details", new LinkedHashMap<>());
+        paymentMethod.put("metadata", new LinkedHashMap<>());
+        Map<String, Object> card = new LinkedHashMap<>();
+        card.put("brand", "visa");
+        card.put("country", "US");
+        card.put("funding", "credit");
+        card.put("last4", number.substring(Math.max(0, number.length() - 4)));
+        card.put("exp_month", cardParams != null ? asLong(cardParams.get("exp_month")) : 12L);
+        card.put("exp_year", cardParams != null ? asLong(cardParams.get("exp_year")) : 2099L);
+        paymentMethod.put("card", card);
+        if (DECLINING_CARD.equals(number)) {
+            decliningPaymentMethods.add((String) paymentMethod.get("id"));
+        }
+        return paymentMethod;
+    }
+
+    private Map<String, Object> attachPaymentMethod(Map<String, Object> paymentMethod, Map<String, Object> params) throws StandInError {
+        String customerId = (String) params.get("customer");
+        find("customer", customerId);
+        paymentMethod.put("customer", customerId);
+        return paymentMethod;
+    }
+
+    private Map<String, Object> createSubscription(Map<String, Object> params) throws StandInError {
+        Map<String, Object> customer = find("customer", (String) params.get("customer"));
+        Map<String, Object> subscription = object("subscription", newId("sub"));
+        long now = now();
+        subscription.put("customer", customer.get("id"));
+        subscription.put("default_payment_method", params.get("default_payment_method"));
+        subscription.put("cancel_at_period_end", false);
+        subscription.put("collection_method", "charge_automatically");
+        subscription.put("current_period_start", now);
+        subscription.put("current_period_end", now + TimeUnit.DAYS.toSeconds(30));
+        subscription.put("metadata", new LinkedHashMap<>());
+        subscription.put("items", items(subscription, asList(params.get("items"))));
+
+        long trialDays = asLong(params.get("trial_period_days"));
+        Map<String, Object> invoice = createInvoice(subscription, trialDays > 0 ? 0 : amount(subscription));
+        if (trialDays > 0) {
+            subscription.put("status", "trialing");
+            subscription.put("trial_end", now + TimeUnit.DAYS.toSeconds(trialDays));
+            invoice.put("status", "paid");
+            invoice.put("paid", true);
+        } else {
+            charge(subscription, invoice);
+        }
+        return subscription;
+    }
+
+    private Map<String, Object> updateSubscription(Map<String, Object> subscription, Map<String, Object> params) throws StandInError {
+        if (params.containsKey("items")) {
+            subscription.put("items", items(subscription, asList(params.get("items"))));
+        }
+        for (String field : new String[]{"default_payment_method", "cancel_at_period_end"}) {
+            if (params.containsKey(field)) {
+                subscription.put(field, params.get(field));
+            }
+        }
+        return subscription;
+    }
+
+    private Map<String, Object> cancelSubscription(Map<String, Object> subscription) {
+        subscription.put("status", "canceled");
+        subscription.put("canceled_at", now());
+        return subscription;
+    }
+
+    private Map<String, Object> createInvoice(Map<String, Object> subscription, long amount) {
+        Map<String, Object> invoice = object("invoice", newId("in"));
+        invoice.put("customer", subscription.get("customer"));
+        invoice.put("subscription", subscription.get("id"));
+        invoice.put("number", "STANDIN-" + ids.get());
+        invoice.put("currency", currency(subscription));
+        invoice.put("amount_due", amount);
+        invoice.put("amount_paid", 0L);
+        invoice.put("total", amount);
+        invoice.put("attempted", false);
+        invoice.put("paid", false);
+        invoice.put("status", "open");
+        invoice.put("payment_intent", null);
+        subscription.put("latest_invoice", invoice.get("id"));
+        return invoice;
+    }
+
+    // attempts payment of a subscription's invoice with its payment method
+    private void charge(Map<String, Object> subscription, Map<String, Object> invoice) {
+        Map<String, Object> intent = object("payment_intent", newId("pi"));
+        String paymentMethodId = paymentMethodFor(subscription);
+        boolean declined = paymentMethodId == null || decliningPaymentMethods.contains(paymentMethodId);
+        intent.put("amount", invoice.get("amount_due"));
+        intent.put("currency", invoice.get("currency"));
+        intent.put("customer", invoice.get("customer"));
+        intent.put("invoice", invoice.get("id"));
+        intent.put("payment_method", paymentMethodId);
+        intent.put("status", declined ? "requires_payment_method" : "succeeded");
+        invoice.put("payment_intent", intent.get("id"));
+        invoice.put("attempted", true);
+        if (declined) {
+            if (!"active".equals(subscription.get("status"))) {
+                subscription.put("status", "incomplete");
+            }
+        } else {
+            invoice.put("status", "paid");
+            invoice.put("paid", true);
+            invoice.put("amount_paid", invoice.get("amount_due"));
+            subscription.put("status", "active");
+        }
+    }
+
+    private Map<String, Object> payInvoice(Map<String, Object> invoice) throws StandInError {
+        if (!"open".equals(invoice.get("status"))) {
+            throw new StandInError(errorResponse(400, "invalid_request_error", "invoice_not_editable", null,
+                    "Invoice is already " + invoice.get("status")));
+        }
+        Map<String, Object> subscription = find("subscription", (String) invoice.get("subscription"));
+        charge(subscription, invoice);
+        if (!"paid".equals(invoice.get("status"))) {
+            throw new StandInError(errorResponse(402, "card_error", "card_declined", "generic_decline",
+                    "Your card was declined."));
+        }
+        return invoice;
+    }
+
+    private Map<String, Object> voidInvoice(Map<String, Object> invoice) {
+        invoice.put("status", "void");
+        return invoice;
+    }
+
+    private Map<String, Object> cancelPaymentIntent(Map<String, Object> intent) {
+        intent.put("status", "canceled");
+        return intent;
+    }
+
+    private Map<String, Object> upcomingInvoice(Map<String, Object> params) throws StandInError {
+        Map<String, Object> subscription = find("subscription", (String) params.get("subscription"));
+        Map<String, Object> preview = copy(subscription);
+        if (params.containsKey("subscription_items")) {
+            preview.put("items", items(preview, asList(params.get("subscription_items"))));
+        }
+        Map<String, Object> invoice = new LinkedHashMap<>();
+        invoice.put("object", "invoice");
+        invoice.put("customer", subscription.get("customer"));
+        invoice.put("subscription", subscription.get("id"));
+        invoice.put("currency", currency(preview));
+        invoice.put("amount_due", amount(preview));
+        invoice.put("total", amount(preview));
+        invoice.put("status", "draft");
+        invoice.put("created", now());
+        return invoice;
+    }
+
+    private Map<String, Object> createWebhookEndpoint(Map<String, Object> params) {
+        Map<String, Object> endpoint = object("webhook_endpoint", newId("we"));
+        endpoint.put("url", params.get("url"));
+        endpoint.put("enabled_events", new ArrayList<>(asList(params.get("enabled_events"))));
+        endpoint.put("status", "enabled");
+        endpoint.put("secret", "whsec_" + endpoint.get("id"));
+        return endpoint;
+    }
+
+    private Map<String, Object> updateWebhookEndpoint(Map<String, Object> endpoint, Map<String, Object> params) {
+        if (params.containsKey("url")) {
+            endpoint.put("url", params.get("url"));
+        }
+        if (params.containsKey("enabled_events")) {
+            endpoint.put("enabled_events", new ArrayList<>(asList(params.get("enabled_events"))));
+        }
+        return endpoint;
+    }
+
+    // objects of a type in creation order, filtered on the given parameters and paged like Stripe lists
+    private Map<String, Object> list(String type, Map<String, Object> params, String... filters) {
+        List<Map<String, Object>> matches = new ArrayList<>();
+        for (Map<String, Object> object : objects.values()) {
+            if (!type.equals(object.get("object"))) {
+                continue;
+            }
+            boolean matched = true;
+            for (String filter : filters) {
+                Object expected = params.get(filter);
+                if (expected != null && !expected.toString().equals(String.valueOf(object.get(filter)))) {
+                    matched = false;
+                }
+            }
+            if (matched) {
+                matches.add(object);
+            }
+        }
+        matches.sort((a, b) -> Long.compare(sequence(a), sequence(b)));
+
+        int start = 0;
+        Object startingAfter = params.get("starting_after");
+        if (startingAfter != null) {
+            for (int i = 0; i < matches.size(); i++) {
+                if (startingAfter.equals(matches.get(i).get("id"))) {
+                    start = i + 1;
+                }
+            }
+        }
+        int limit = params.containsKey("limit") ? (int) asLong(params.get("limit")) : 10;
+        int end = Math.min(matches.size(), start + limit);
+
+        Map<String, Object> list = new LinkedHashMap<>();
+        list.put("object", "list");
+        list.put("data", new ArrayList<>(matches.subList(start, end)));
+        list.put("has_more", end < matches.size());
+        list.put("url", "/v1/" + type + "s");
+        return list;
+    }
+
+    private Map<String, Object> items(Map<String, Object> subscription, List<Object> itemParams) throws StandInError {
+        List<Object> data = new ArrayList<>();
+        for (Object itemParam : itemParams) {
+            Map<String, Object> params = asMap(itemParam);
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", newId("si"));
+            item.put("object", "subscription_item");
+            item.put("subscription", subscription.get("id"));
+            item.put("price", copy(find("price", (String) params.get("price"))));
+            item.put("quantity", params.containsKey("quantity") ? asLong(params.get("quantity")) : 1L);
+            data.add(item);
+        }
+        Map<String, Object> items = new LinkedHashMap<>();
+        items.put("object", "list");
+        items.put("data", data);
+        items.put("has_more", false);
+        items.put("url", "/v1/subscription_items?subscription=" + subscription.get("id"));
+        return items;
+    }
+
+    private long amount(Map<String, Object> subscription) {
+        long amount = 0;
+        for (Object item : asList(asMap(subscription.get("items")).get("data"))) {
+            Map<String, Object> price = asMap(asMap(item).get("price"));
+            amount += asLong(price.get("unit_amount")) * asLong(asMap(item).get("quantity"));
+        }
+        return amount;
+    }
+
+    private String currency(Map<String, Object> subscription) {
+        List<Object> data = asList(asMap(subscription.get("items")).get("data"));
+        return data.isEmpty() ? "usd" : (String) asMap(asMap(data.get(0)).get("price")).get("currency");
+    }
+
+    private String paymentMethodFor(Map<String, Object> subscription) {
+        Object paymentMethodId = subscription.get("default_payment_method");
+        if (paymentMethodId != null) {
+            return paymentMethodId.toString();
+        }
+        Map<String, Object> customer = objects.get((String) subscription.get("customer"));
+        return customer != null ? (String) asMap(customer.get("invoice_settings")).get("default_payment_method") : null;
+    }
+
+    private Map<String, Object> find(String type, String id) throws StandInError {
+        Map<String, Object> object = id != null ? objects.get(id) : null;
+        if (object == null || !type.equals(object.get("object"))) {
+            throw new StandInError(errorResponse(404, "invalid_request_error", "resource_missing", null,
+                    "No such " + type + ": '" + id + "'"));
+        }
+        return object;
+    }
+
+    private Map<String, Object> object(String type, String id) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        object.put("id", id);
+        object.put("object", type);
+        object.put("created", now());
+        object.put("livemode", false);
+        object.put("_sequence", ids.incrementAndGet());
+        objects.put(id, object);
+        return object;
+    }
+
+    private String newId(String prefix) {
+        return prefix + "_standin" + ids.incrementAndGet();
+    }
+
+    private static long sequence(Map<String, Object> object) {
+        return asLong(object.get("_sequence"));
+    }
+
+    private static Map<String, Object> invoiceSettings(String defaultPaymentMethod) {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("default_payment_method", defaultPaymentMethod);
+        return settings;
+    }
+
+    // Copies the response and replaces ids with the objects named by the
+    // request's expand[] paths ("latest_invoice.payment_intent", "data.payment_intent").
+    private Object expand(Object body, Map<String, Object> params) {
+        Object response = copy(body);
+        Object expand = params.get("expand");
+        if (expand != null) {
+            for (Object path : asList(expand)) {
+                expand(response, path.toString().split("\\."), 0);
+            }
+        }
+        return response;
+    }
+
+    private void expand(Object node, String[] path, int index) {
+        if (index >= path.length || !(node instanceof Map)) {
+            return;
+        }
+        Map<String, Object> object = asMap(node);
+        Object value = object.get(path[index]);
+        if ("data".equals(path[index]) && value instanceof List) {
+            for (Object item : asList(value)) {
+                expand(item, path, index + 1);
+            }
+            return;
+        }
+        if (value instanceof String && objects.containsKey(value)) {
+            value = copy(objects.get(value));
+            object.put(path[index], value);
+        }
+        expand(value, path, index + 1);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T value) {
+        if (value instanceof Map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            for (Map.Entry<String, Object> entry : ((Map<String, Object>) value).entrySet()) {
+                if (!entry.getKey().startsWith("_")) {
+                    copy.put(entry.getKey(), copy(entry.getValue()));
+                }
+            }
+            return (T) copy;
+        }
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<>();
+            for (Object item : (List<Object>) value) {
+                copy.add(copy(item));
+            }
+            return (T) copy;
+        }
+        return value;
+    }
+
+    private void delay() {
+        long min = minLatencyMillis;
+        long max = maxLatencyMillis;
+        if (max <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(min + ThreadLocalRandom.current().nextLong(max - min + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // the status and error shape Stripe uses for each kind of code
+    private static StripeResponse error(StripeErrors error) {
+        String code = error.message();
+        switch (error.kind()) {
+            case RATE_LIMITED:
+                return errorResponse(429, "invalid_request_error", code, null, "Too many requests");
+            case NOT_FOUND:
+                return errorResponse(404, "invalid_request_error", code, null, "No such resource");
+            case DECLINE:
+            case INVALID_INPUT:
+                if (CARD_ERROR_CODES.contains(code)) {
+                    return errorResponse(402, "card_error", code, null, "Your card was declined.");
+                }
+                if (isIssuerDeclineCode(error)) {
+                    // issuer decline codes arrive as card_declined with a decline_code
+                    return errorResponse(402, "card_error", "card_declined", code, "Your card was declined.");
+                }
+                if (error.kind() == StripeErrors.Kind.DECLINE) {
+                    return errorResponse(402, "invalid_request_error", code, null, error.name());
+                }
+                return errorResponse(400, "invalid_request_error", code, null, error.name());
+            default:
+                if (error == StripeErrors.STRIPE_UNKNOWN_ERROR) {
+                    return errorResponse(500, "api_error", null, null, "An unknown error occurred");
+                }
+                return errorResponse(400, "invalid_request_error", code, null, error.name());
+        }
+    }
+
+    // the first block of StripeErrors is Stripe's list of issuer decline codes
+    private static boolean isIssuerDeclineCode(StripeErrors error) {
+        return error.value() <= StripeErrors.STRIPE_AUTHENTICATION_REQUIRED.value()
+                && error.value() >= StripeErrors.STRIPE_WITHDRAWAL_COUNT_LIMIT_EXCEEDED.value();
+    }
+
+    private static StripeResponse errorResponse(int status, String type, String code, String declineCode, String message) {
+        Map<String, Object> error = new LinkedHashMap<>();
+        error.put("type", type);
+        error.put("code", code);
+        error.put("decline_code", declineCode);
+        error.put("message", message);
+        return response(status, Collections.singletonMap("error", error));
+    }
+
+    private static StripeResponse response(int status, Object body) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        headers.put("Request-Id", Collections.singletonList("req_standin" + System.nanoTime()));
+        return new StripeResponse(status, HttpHeaders.of(headers), ApiResource.GSON.toJson(body));
+    }
+
+    private static long now() {
+        return System.currentTimeMillis() / 1000L;
+    }
+
+    private static long asLong(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        return Long.parseLong(value.toString());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> asMap(Object value) {
+        return (Map<String, Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> asList(Object value) {
+        if (value == null) {
+            return Collections.emptyList();
+        }
+        if (value instanceof Map) {
+            // form-encoded arrays may arrive keyed by index
+            return new ArrayList<>(((Map<String, Object>) value).values());
+        }
+        return (List<Object>) value;
+    }
+
+    private static class InjectedError {
+        private final StripeErrors error;
+        private final double probability;
+
+        InjectedError(StripeErrors error, double probability) {
+            this.error = error;
+            this.probability = probability;
+        }
+    }
+
+    private static class StandInError extends Exception {
+        private final StripeResponse response;
+
+        StandInError(StripeResponse response) {
+            super(null, null, false, false);
+            this.response = response;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.tubebreakup.stripe.ops.standin;
+
+import com.stripe.exception.StripeException;
+import com.stripe.model.PaymentMethod;
+import com.stripe.net.RequestOptions;
+import com.stripe.param.PaymentMethodCreateParams;
+import com.tubebreakup.stripe.ops.StripeErrors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowableOfType;
+
+public class StripeStandInTests {
+
+    private static final RequestOptions OPTIONS = RequestOptions.builder().setApiKey("sk_test_standin").build();
+
+    private static final PaymentMethodCreateParams CARD = PaymentMethodCreateParams.builder()
+            .setType(PaymentMethodCreateParams.Type.CARD)
+            .setCard(PaymentMethodCreateParams.CardDetails.builder()
+                    .setNumber("4242424242424242")
+                    .setExpMonth(12L)
+                    .setExpYear(2099L)
+                    .setCvc("333")
+                    .build())
+            .build();
+
+    private StripeStandIn standIn;
+
+    @BeforeEach
+    public void installStandIn() {
+        standIn = new StripeStandIn().install();
+    }
+
+    @AfterEach
+    public void uninstallStandIn() {
+        StripeStandIn.uninstall();
+    }
+
+    @Test
+    public void injectedErrorsReadBackAsTheSameCode() {
+        for (StripeErrors error : StripeErrors.values()) {
+            if (error.value() <= -10500 || error == StripeErrors.STRIPE_UNKNOWN_ERROR) {
+                continue;
+            }
+            assertThat(StripeErrors.from(fail(error))).as(error.message()).isEqualTo(error);
+        }
+    }
+
+    @Test
+    public void cardErrorsKeepTheirOwnCode() {
+        StripeException expired = fail(StripeErrors.STRIPE_EXPIRED_CARD);
+        assertThat(expired.getCode()).isEqualTo("expired_card");
+        assertThat(expired.getStripeError().getDeclineCode()).isNull();
+
+        StripeException incorrectNumber = fail(StripeErrors.STRIPE_INCORRECT_NUMBER);
+        assertThat(incorrectNumber.getCode()).isEqualTo("incorrect_number");
+        assertThat(incorrectNumber.getStatusCode()).isEqualTo(402);
+
+        StripeException processing = fail(StripeErrors.STRIPE_PROCESSING_ERROR);
+        assertThat(processing.getCode()).isEqualTo("processing_error");
+    }
+
+    @Test
+    public void issuerDeclinesArriveAsCardDeclined() {
+        StripeException insufficientFunds = fail(StripeErrors.STRIPE_INSUFFICIENT_FUNDS);
+        assertThat(insufficientFunds.getCode()).isEqualTo("card_declined");
+        assertThat(insufficientFunds.getStripeError().getDeclineCode()).isEqualTo("insufficient_funds");
+    }
+
+    private StripeException fail(StripeErrors error) {
+        standIn.injectError("payment_method.create", error, 1.0);
+        return catchThrowableOfType(() -> PaymentMethod.create(CARD, OPTIONS), StripeException.class);
+    }
+}
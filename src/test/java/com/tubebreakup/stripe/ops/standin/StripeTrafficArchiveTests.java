@@ -0,0 +1,30 @@
+package com.tubebreakup.stripe.ops.standin;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class StripeTrafficArchiveTests {
+
+    @Test
+    public void keyReplacesObjectIds() {
+        assertThat(StripeTrafficArchive.key("GET", "/v1/subscriptions/sub_1HaXy2Lk")).isEqualTo("GET /v1/subscriptions/{id}");
+        assertThat(StripeTrafficArchive.key("POST", "/v1/invoices/in_1HaXy2Lk/pay")).isEqualTo("POST /v1/invoices/{id}/pay");
+        assertThat(StripeTrafficArchive.key("GET", "/v1/customers/cus_HaXyLkQw/balance_transactions/cbtxn_1Ha"))
+                .isEqualTo("GET /v1/customers/{id}/balance_transactions/{id}");
+        // ids without a digit in them are still ids
+        assertThat(StripeTrafficArchive.key("DELETE", "/v1/subscriptions/sub_HaXyLkQwErTy")).isEqualTo("DELETE /v1/subscriptions/{id}");
+    }
+
+    @Test
+    public void keyKeepsCollectionsAndActions() {
+        assertThat(StripeTrafficArchive.key("POST", "/v1/payment_methods")).isEqualTo("POST /v1/payment_methods");
+        assertThat(StripeTrafficArchive.key("POST", "/v1/payment_methods/pm_1HaXy2Lk/attach"))
+                .isEqualTo("POST /v1/payment_methods/{id}/attach");
+        assertThat(StripeTrafficArchive.key("GET", "/v1/payment_intents")).isEqualTo("GET /v1/payment_intents");
+        assertThat(StripeTrafficArchive.key("GET", "/v1/webhook_endpoints")).isEqualTo("GET /v1/webhook_endpoints");
+        assertThat(StripeTrafficArchive.key("POST", "/v1/subscription_items/si_1HaXy2Lk/usage_records"))
+                .isEqualTo("POST /v1/subscription_items/{id}/usage_records");
+        assertThat(StripeTrafficArchive.key("GET", "/v1/invoices/upcoming")).isEqualTo("GET /v1/invoices/upcoming");
+    }
+}
@@ -0,0 +1,83 @@
+package com.tubebreakup.stripe.ops.standin;
+
+import com.stripe.exception.StripeException;
+import com.stripe.net.ApiResource;
+import com.stripe.net.HttpClient;
+import com.stripe.net.HttpHeaders;
+import com.stripe.net.LiveStripeResponseGetter;
+import com.stripe.net.StripeRequest;
+import com.stripe.net.StripeResponse;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Answers stripe-java's requests from a StripeTrafficArchive instead of the
+// network. Each request gets the next recorded response for its key, cycling
+// through them, after waiting that response's recorded latency multiplied by
+// latencyScale (0 replies at once, 2 simulates a Stripe twice as slow). So the
+// replayed traffic has the recorded latency distribution per operation.
+// Requests with no recorded key get a 404 resource_missing error. Response
+// bodies are served as recorded: ids in them are the recorded ones.
+public class StripeTrafficReplayer extends HttpClient {
+
+    private final StripeTrafficArchive archive;
+
+    private final double latencyScale;
+
+    private final Map<String, AtomicLong> cursors = new ConcurrentHashMap<>();
+
+    private final AtomicLong missed = new AtomicLong();
+
+    public StripeTrafficReplayer(StripeTrafficArchive archive, double latencyScale) {
+        this.archive = archive;
+        this.latencyScale = latencyScale;
+    }
+
+    // routes every stripe-java request in this JVM to this replayer
+    public StripeTrafficReplayer install() {
+        ApiResource.setStripeResponseGetter(new LiveStripeResponseGetter(this));
+        return this;
+    }
+
+    // requests that had no recorded response
+    public long getMissedCount() {
+        return missed.get();
+    }
+
+    @Override
+    public StripeResponse request(StripeRequest request) throws StripeException {
+        String key = StripeTrafficArchive.key(request.method().name(), request.url().getPath());
+        List<StripeTrafficArchive.Entry> entries = archive.get(key);
+        if (entries.isEmpty()) {
+            missed.incrementAndGet();
+            return response(404, "{\"error\":{\"type\":\"invalid_request_error\",\"code\":\"resource_missing\","
+                    + "\"message\":\"No recorded response for " + key + "\"}}");
+        }
+        long next = cursors.computeIfAbsent(key, k -> new AtomicLong()).getAndIncrement();
+        StripeTrafficArchive.Entry entry = entries.get((int) (next % entries.size()));
+        delay((long) (entry.getLatencyNanos() * latencyScale));
+        return response(entry.getStatus(), archive.body(entry));
+    }
+
+    private static void delay(long nanos) {
+        if (nanos <= 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static StripeResponse response(int status, String body) {
+        Map<String, List<String>> headers = new LinkedHashMap<>();
+        headers.put("Request-Id", Collections.singletonList("req_replay" + System.nanoTime()));
+        return new StripeResponse(status, HttpHeaders.of(headers), body);
+    }
+}
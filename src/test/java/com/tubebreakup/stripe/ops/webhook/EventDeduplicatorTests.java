@@ -0,0 +1,38 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class EventDeduplicatorTests {
+
+    @Test
+    public void dropsRepeatedIds() {
+        EventDeduplicator deduplicator = new EventDeduplicator(10);
+
+        assertThat(deduplicator.markSeen("evt_1")).isTrue();
+        assertThat(deduplicator.markSeen("evt_1")).isFalse();
+        assertThat(deduplicator.markSeen("evt_2")).isTrue();
+    }
+
+    @Test
+    public void forgottenIdsGetThroughAgain() {
+        EventDeduplicator deduplicator = new EventDeduplicator(10);
+        deduplicator.markSeen("evt_1");
+
+        deduplicator.forget("evt_1");
+
+        assertThat(deduplicator.markSeen("evt_1")).isTrue();
+    }
+
+    @Test
+    public void remembersOnlyTheMostRecentIds() {
+        EventDeduplicator deduplicator = new EventDeduplicator(3);
+        for (int i = 1; i <= 4; i++) {
+            deduplicator.markSeen("evt_" + i);
+        }
+
+        assertThat(deduplicator.markSeen("evt_1")).isTrue();
+        assertThat(deduplicator.markSeen("evt_4")).isFalse();
+    }
+}
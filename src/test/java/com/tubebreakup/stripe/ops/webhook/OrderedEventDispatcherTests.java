@@ -0,0 +1,105 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OrderedEventDispatcherTests {
+
+    private OrderedEventDispatcher dispatcher;
+
+    @AfterEach
+    public void shutdown() throws InterruptedException {
+        if (dispatcher != null) {
+            dispatcher.shutdown(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void runsEachKeysTasksInSubmissionOrder() throws InterruptedException {
+        dispatcher = new OrderedEventDispatcher(4, 10000);
+        Map<String, List<Integer>> runs = new HashMap<>();
+        for (int key = 0; key < 50; key++) {
+            runs.put("cus_" + key, Collections.synchronizedList(new ArrayList<>()));
+        }
+        for (int sequence = 0; sequence < 100; sequence++) {
+            for (Map.Entry<String, List<Integer>> entry : runs.entrySet()) {
+                int position = sequence;
+                assertThat(dispatcher.submit(entry.getKey(), () -> entry.getValue().add(position))).isTrue();
+            }
+        }
+
+        assertThat(dispatcher.shutdown(10, TimeUnit.SECONDS)).isZero();
+
+        for (List<Integer> run : runs.values()) {
+            assertThat(run).hasSize(100).isSorted();
+        }
+    }
+
+    @Test
+    public void runsDifferentKeysInParallel() throws InterruptedException {
+        dispatcher = new OrderedEventDispatcher(2, 10);
+        String[] keys = keysOnDifferentLanes(2);
+        CountDownLatch secondRan = new CountDownLatch(1);
+        CountDownLatch firstFinished = new CountDownLatch(1);
+
+        dispatcher.submit(keys[0], () -> {
+            try {
+                // blocks its lane until the other lane has run
+                if (secondRan.await(5, TimeUnit.SECONDS)) {
+                    firstFinished.countDown();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        dispatcher.submit(keys[1], secondRan::countDown);
+
+        assertThat(firstFinished.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void refusesTasksWhenTheLaneIsFull() throws InterruptedException {
+        dispatcher = new OrderedEventDispatcher(1, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        dispatcher.submit("cus_1", () -> {
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // wait for the lane's thread to take the blocking task off the queue
+        while (dispatcher.getQueuedCount() > 0) {
+            Thread.sleep(1);
+        }
+
+        assertThat(dispatcher.submit("cus_1", () -> { })).isTrue();
+        assertThat(dispatcher.submit("cus_1", () -> { })).isTrue();
+        assertThat(dispatcher.submit("cus_1", () -> { })).isFalse();
+        release.countDown();
+    }
+
+    // keys whose hashes fall on distinct lanes of a dispatcher with that many lanes
+    private static String[] keysOnDifferentLanes(int laneCount) {
+        String[] keys = new String[laneCount];
+        for (int i = 0, found = 0; found < laneCount; i++) {
+            String key = "cus_" + i;
+            int lane = Math.floorMod(key.hashCode(), laneCount);
+            if (keys[lane] == null) {
+                keys[lane] = key;
+                found++;
+            }
+        }
+        return keys;
+    }
+}
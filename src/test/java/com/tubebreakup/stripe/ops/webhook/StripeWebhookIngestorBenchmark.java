@@ -0,0 +1,137 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import com.stripe.model.Event;
+import com.stripe.model.StripeObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Replays a recorded renewal event stream (src/test/resources/webhooks) through
+// the ingestor: signature check, parse, dedup and per-customer dispatch, until
+// every delivery has been handled. A share of the deliveries are redeliveries
+// of an earlier event, as Stripe sends them after a slow or failed ack.
+//
+//   mvn -Pbenchmark verify -Dbenchmark.include=StripeWebhookIngestorBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StripeWebhookIngestorBenchmark {
+
+    static final int BATCH = 1000;
+
+    static final String RECORDED_CUSTOMER = "cus_RECORDED";
+
+    @Param({"500"})
+    private int customers;
+
+    @Param({"5"})
+    private int redeliveryPercent;
+
+    private List<String> recorded;
+
+    private StripeWebhookIngestor ingestor;
+
+    private String[] payloads = new String[BATCH];
+
+    private String[] signatures = new String[BATCH];
+
+    private long sequence;
+
+    private long expectedHandled;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        recorded = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                getClass().getResourceAsStream("/webhooks/renewal-events.ndjson"), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.trim().isEmpty()) {
+                    recorded.add(line);
+                }
+            }
+        }
+        ingestor = StripeWebhookIngestorTests.ingestor(new CountingHandler(), false);
+    }
+
+    // fresh event ids each invocation, so only the planted redeliveries are duplicates
+    @Setup(Level.Invocation)
+    public void prepareBatch() {
+        int unique = 0;
+        for (int i = 0; i < BATCH; i++) {
+            if (i > 0 && i % 100 < redeliveryPercent) {
+                payloads[i] = payloads[i - 1];
+                signatures[i] = signatures[i - 1];
+                continue;
+            }
+            long id = sequence++;
+            String template = recorded.get((int) (id % recorded.size()));
+            String payload = template
+                    .replaceFirst("\"id\":\"evt_[^\"]*\"", "\"id\":\"evt_replay" + id + "\"")
+                    .replace(RECORDED_CUSTOMER, "cus_replay" + (id % customers));
+            payloads[i] = payload;
+            signatures[i] = WebhookPayloads.signature(payload, WebhookPayloads.SECRET);
+            unique++;
+        }
+        expectedHandled += unique;
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        ingestor.destroy();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long replay() {
+        for (int i = 0; i < BATCH; i++) {
+            ingestor.ingest(payloads[i], signatures[i]);
+        }
+        while (ingestor.getHandledCount() + ingestor.getFailedCount() < expectedHandled) {
+            Thread.yield();
+        }
+        return ingestor.getHandledCount();
+    }
+
+    static class CountingHandler implements StripeEventHandler<StripeObject> {
+
+        private final AtomicLong handled = new AtomicLong();
+
+        @Override
+        public Class<StripeObject> getObjectType() {
+            return StripeObject.class;
+        }
+
+        @Override
+        public boolean supports(String eventType) {
+            return true;
+        }
+
+        @Override
+        public void handle(Event event, StripeObject object) {
+            handled.incrementAndGet();
+        }
+    }
+}
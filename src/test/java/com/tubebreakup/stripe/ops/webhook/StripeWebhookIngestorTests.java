@@ -0,0 +1,187 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import com.google.gson.JsonParseException;
+import com.stripe.exception.SignatureVerificationException;
+import com.stripe.model.Event;
+import com.stripe.model.Subscription;
+import com.tubebreakup.exception.ErrorCodedHttpException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class StripeWebhookIngestorTests {
+
+    private StripeWebhookIngestor ingestor;
+
+    @AfterEach
+    public void shutdown() throws Exception {
+        if (ingestor != null) {
+            ingestor.destroy();
+        }
+    }
+
+    @Test
+    public void handlesRedeliveredEventsOnce() throws Exception {
+        RecordingHandler handler = new RecordingHandler(0);
+        ingestor = ingestor(handler, false);
+
+        deliver("evt_1", "cus_1", "active");
+        deliver("evt_1", "cus_1", "active");
+        deliver("evt_2", "cus_1", "past_due");
+        awaitProcessed(2);
+
+        assertThat(handler.events).containsExactly("evt_1", "evt_2");
+        assertThat(ingestor.getDuplicateCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void handlesACustomersEventsInOrder() throws Exception {
+        RecordingHandler handler = new RecordingHandler(0);
+        ingestor = ingestor(handler, false);
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            deliver("evt_" + i, "cus_" + (i % 3 == 0 ? "a" : "b" + i), "active");
+            if (i % 3 == 0) {
+                expected.add("evt_" + i);
+            }
+        }
+        awaitProcessed(200);
+
+        List<String> forCustomerA = new ArrayList<>(handler.customerEvents("cus_a"));
+        assertThat(forCustomerA).containsExactlyElementsOf(expected);
+    }
+
+    @Test
+    public void failedEventsAreHandledAgainWhenRedelivered() throws Exception {
+        RecordingHandler handler = new RecordingHandler(1);
+        ingestor = ingestor(handler, false);
+
+        deliver("evt_1", "cus_1", "active");
+        awaitProcessed(1);
+        assertThat(ingestor.getFailedCount()).isEqualTo(1);
+
+        deliver("evt_1", "cus_1", "active");
+        awaitProcessed(2);
+
+        assertThat(ingestor.getHandledCount()).isEqualTo(1);
+        assertThat(handler.events).containsExactly("evt_1", "evt_1");
+    }
+
+    @Test
+    public void acknowledgingAfterHandlingFailsTheDeliveryWhenAHandlerFails() throws Exception {
+        RecordingHandler handler = new RecordingHandler(1);
+        ingestor = ingestor(handler, true);
+
+        assertThatThrownBy(() -> deliver("evt_1", "cus_1", "active")).isInstanceOf(ErrorCodedHttpException.class);
+
+        deliver("evt_1", "cus_1", "active");
+        assertThat(ingestor.getHandledCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void rejectsInvalidSignatures() {
+        ingestor = ingestor(new RecordingHandler(0), false);
+        String payload = WebhookPayloads.event("evt_1", "customer.subscription.updated", 1,
+                WebhookPayloads.subscription("sub_1", "cus_1", "active"));
+
+        assertThatThrownBy(() -> ingestor.ingest(payload, WebhookPayloads.signature(payload, "whsec_other")))
+                .isInstanceOf(ErrorCodedHttpException.class)
+                .hasCauseInstanceOf(SignatureVerificationException.class);
+    }
+
+    @Test
+    public void rejectsMalformedPayloadsAsSuch() {
+        ingestor = ingestor(new RecordingHandler(0), false);
+        String payload = "{\"id\":\"evt_1\",";
+
+        assertThatThrownBy(() -> ingestor.ingest(payload, WebhookPayloads.signature(payload, WebhookPayloads.SECRET)))
+                .isInstanceOf(ErrorCodedHttpException.class)
+                .hasCauseInstanceOf(JsonParseException.class);
+    }
+
+    private void deliver(String eventId, String customerId, String status) {
+        String payload = WebhookPayloads.event(eventId, "customer.subscription.updated", 1,
+                WebhookPayloads.subscription("sub_" + customerId, customerId, status));
+        ingestor.ingest(payload, WebhookPayloads.signature(payload, WebhookPayloads.SECRET));
+    }
+
+    private void awaitProcessed(long events) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (ingestor.getHandledCount() + ingestor.getFailedCount() < events && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertThat(ingestor.getHandledCount() + ingestor.getFailedCount()).isEqualTo(events);
+    }
+
+    static StripeWebhookIngestor ingestor(StripeEventHandler<?> handler, boolean acknowledgeAfterHandling) {
+        StripeWebhookIngestor ingestor = new StripeWebhookIngestor();
+        ReflectionTestUtils.setField(ingestor, "webhookSecret", WebhookPayloads.SECRET);
+        ReflectionTestUtils.setField(ingestor, "laneCount", 4);
+        ReflectionTestUtils.setField(ingestor, "laneCapacity", 10000);
+        ReflectionTestUtils.setField(ingestor, "dedupSize", 100000);
+        ReflectionTestUtils.setField(ingestor, "acknowledgeAfterHandling", acknowledgeAfterHandling);
+        ReflectionTestUtils.setField(ingestor, "handlingTimeoutMillis", 5000L);
+        ReflectionTestUtils.setField(ingestor, "shutdownTimeoutSeconds", 5L);
+        ReflectionTestUtils.setField(ingestor, "handlers", Collections.singletonList(handler));
+        try {
+            ingestor.afterPropertiesSet();
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+        return ingestor;
+    }
+
+    static class RecordingHandler implements StripeEventHandler<Subscription> {
+
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        private final List<String[]> deliveries = Collections.synchronizedList(new ArrayList<>());
+
+        private final AtomicInteger failuresLeft;
+
+        RecordingHandler(int failures) {
+            this.failuresLeft = new AtomicInteger(failures);
+        }
+
+        @Override
+        public Class<Subscription> getObjectType() {
+            return Subscription.class;
+        }
+
+        @Override
+        public boolean supports(String eventType) {
+            return true;
+        }
+
+        @Override
+        public void handle(Event event, Subscription subscription) {
+            events.add(event.getId());
+            deliveries.add(new String[]{subscription.getCustomer(), event.getId()});
+            if (failuresLeft.getAndDecrement() > 0) {
+                throw new IllegalStateException("handler failure");
+            }
+        }
+
+        List<String> customerEvents(String customerId) {
+            List<String> ids = new ArrayList<>();
+            synchronized (deliveries) {
+                for (String[] delivery : deliveries) {
+                    if (delivery[0].equals(customerId)) {
+                        ids.add(delivery[1]);
+                    }
+                }
+            }
+            return ids;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.tubebreakup.stripe.ops.webhook;
+
+import com.stripe.Stripe;
+import com.stripe.net.Webhook;
+
+// Builds webhook deliveries the way Stripe sends them: an event envelope in
+// this library's API version, and a Stripe-Signature header for a secret.
+public class WebhookPayloads {
+
+    public static final String SECRET = "whsec_test";
+
+    public static String event(String eventId, String type, long created, String objectJson) {
+        return "{\"id\":\"" + eventId + "\",\"object\":\"event\",\"api_version\":\"" + Stripe.API_VERSION + "\","
+                + "\"created\":" + created + ",\"type\":\"" + type + "\",\"livemode\":false,\"pending_webhooks\":1,"
+                + "\"data\":{\"object\":" + objectJson + "}}";
+    }
+
+    public static String subscription(String subscriptionId, String customerId, String status) {
+        return "{\"id\":\"" + subscriptionId + "\",\"object\":\"subscription\",\"customer\":\"" + customerId + "\","
+                + "\"status\":\"" + status + "\"}";
+    }
+
+    public static String signature(String payload, String secret) {
+        long timestamp = Webhook.Util.getTimeNow();
+        try {
+            String signature = Webhook.Util.computeHmacSha256(secret, timestamp + "." + payload);
+            return "t=" + timestamp + "," + Webhook.Signature.EXPECTED_SCHEME + "=" + signature;
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}